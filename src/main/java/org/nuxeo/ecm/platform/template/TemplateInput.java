@@ -74,7 +74,9 @@ public class TemplateInput implements Serializable {
     public TemplateInput getCopy(boolean readOnly) {
         TemplateInput item = new TemplateInput(name);
         item.booleanValue = booleanValue;
-        item.dateValue = dateValue;
+        // Date is mutable : don't share it with the copy
+        item.dateValue = dateValue == null ? null : new Date(
+                dateValue.getTime());
         item.source = source;
         item.desciption = desciption;
         item.stringValue = stringValue;
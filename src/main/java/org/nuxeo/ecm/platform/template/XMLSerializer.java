@@ -18,26 +18,29 @@
 
 package org.nuxeo.ecm.platform.template;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dom4j.Attribute;
-import org.dom4j.Document;
 import org.dom4j.DocumentFactory;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.QName;
-import org.dom4j.tree.DefaultElement;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.template.serializer.JsonTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.serializer.StreamingTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.serializer.TemplateInputSerializer;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * {@link TemplateInput} parameters are stored in the {@link DocumentModel} as a
  * single String Property via XML Serialization. This class contains the
  * Serialization/Deserialization logic.
+ * <p>
+ * The actual work is delegated to a {@link TemplateInputSerializer} that can
+ * be selected with the {@link #SERIALIZER_CLASS_PROPERTY} runtime property.
  * 
  * @author Tiry (tdelprat@nuxeo.com)
  * 
@@ -50,6 +53,16 @@ public class XMLSerializer {
 
     public static final String XML_NAMESPACE_PREFIX = "nxdt";
 
+    public static final String DATE_FORMAT = "yyyy-MM-dd hh:mm:ss:sss";
+
+    /**
+     * Runtime property giving the {@link TemplateInputSerializer} class used
+     * to write parameters, {@link StreamingTemplateInputSerializer} by
+     * default. Use {@link JsonTemplateInputSerializer} for the compact
+     * encoding.
+     */
+    public static final String SERIALIZER_CLASS_PROPERTY = "org.nuxeo.template.params.serializer.class";
+
     public static final Namespace ns = new Namespace(XML_NAMESPACE_PREFIX,
             XML_NAMESPACE);
 
@@ -59,97 +72,88 @@ public class XMLSerializer {
     public static final QName fieldTag = DocumentFactory.getInstance().createQName(
             "field", ns);
 
+    /**
+     * @deprecated {@link SimpleDateFormat} is not thread safe, use
+     *             {@link #formatDate(Date)} and {@link #parseDate(String)}
+     */
+    @Deprecated
     public static final SimpleDateFormat dateFormat = new SimpleDateFormat(
-            "yyyy-MM-dd hh:mm:ss:sss");
-
-    public static String serialize(List<TemplateInput> params) {
-
-        Element root = DocumentFactory.getInstance().createElement(fieldsTag);
-
-        for (TemplateInput input : params) {
-
-            Element field = root.addElement(fieldTag);
-
-            field.addAttribute("name", input.getName());
-
-            InputType type = input.getType();
-            if (type == null) {
-                log.warn(input.getName() + " is null");
-            }
-            field.addAttribute("type", type.getValue());
+            DATE_FORMAT);
 
-            if (input.isReadOnly()) {
-                field.addAttribute("readonly", "true");
-            }
+    protected static final ThreadLocal<SimpleDateFormat> dateFormats = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(DATE_FORMAT);
+        }
+    };
 
-            if (input.isAutoLoop()) {
-                field.addAttribute("autoloop", "true");
-            }
+    protected static volatile TemplateInputSerializer serializer;
 
-            if (InputType.StringValue.equals(type)) {
-                field.addAttribute("value", input.getStringValue());
-            } else if (InputType.DateValue.equals(type)) {
-                field.addAttribute("value",
-                        dateFormat.format(input.getDateValue()));
-            } else if (InputType.BooleanValue.equals(type)) {
-                field.addAttribute("value", input.getBooleanValue().toString());
-            } else {
-                field.addAttribute("source", input.getSource());
-            }
+    protected static final TemplateInputSerializer jsonSerializer = new JsonTemplateInputSerializer();
 
-            if (input.getDesciption() != null) {
-                field.setText(input.getDesciption());
-            }
+    public static String formatDate(Date date) {
+        if (date == null) {
+            return null;
         }
-        return root.asXML();
+        return dateFormats.get().format(date);
     }
 
-    public static List<TemplateInput> readFromXml(String xml) throws Exception {
-
-        List<TemplateInput> result = new ArrayList<TemplateInput>();
-
-        Document xmlDoc = DocumentHelper.parseText(xml);
-
-        List nodes = xmlDoc.getRootElement().elements(fieldTag);
-
-        for (Object node : nodes) {
-
-            DefaultElement elem = (DefaultElement) node;
-            Attribute name = elem.attribute("name");
-            TemplateInput param = new TemplateInput(name.getValue());
-
-            InputType type = InputType.StringValue;
-
-            if (elem.attribute("type") != null) {
-                type = InputType.getByValue(elem.attribute("type").getValue());
-                param.setType(type);
-            }
+    public static Date parseDate(String value) throws ParseException {
+        return dateFormats.get().parse(value);
+    }
 
-            String strValue = elem.attributeValue("value");
-            if (InputType.StringValue.equals(type)) {
-                param.setStringValue(strValue);
-            } else if (InputType.DateValue.equals(type)) {
-                param.setDateValue(dateFormat.parse(strValue));
-            } else if (InputType.BooleanValue.equals(type)) {
-                param.setBooleanValue(new Boolean(strValue));
-            } else {
-                param.setSource(elem.attributeValue("source"));
+    public static TemplateInputSerializer getSerializer() {
+        TemplateInputSerializer result = serializer;
+        if (result == null) {
+            synchronized (XMLSerializer.class) {
+                result = serializer;
+                if (result == null) {
+                    result = createSerializer();
+                    serializer = result;
+                }
             }
+        }
+        return result;
+    }
 
-            if (elem.attribute("readonly") != null) {
-                param.setReadOnly(Boolean.parseBoolean(elem.attributeValue("readonly")));
-            }
+    /**
+     * Forces the serializer to use, mainly for tests. Passing null restores
+     * the configured one.
+     */
+    public static void setSerializer(TemplateInputSerializer newSerializer) {
+        serializer = newSerializer;
+    }
 
-            if (elem.attribute("autoloop") != null) {
-                param.setAutoLoop(Boolean.parseBoolean(elem.attributeValue("autoloop")));
+    protected static TemplateInputSerializer createSerializer() {
+        // runtime may not be started, i.e. in unit tests
+        String className = Framework.getRuntime() != null ? Framework.getProperty(SERIALIZER_CLASS_PROPERTY)
+                : System.getProperty(SERIALIZER_CLASS_PROPERTY);
+        if (className != null && !className.trim().isEmpty()) {
+            try {
+                return (TemplateInputSerializer) Class.forName(
+                        className.trim()).newInstance();
+            } catch (Exception e) {
+                log.error("Unable to instantiate serializer " + className
+                        + ", using default implementation", e);
             }
+        }
+        return new StreamingTemplateInputSerializer();
+    }
 
-            param.setDesciption(elem.getText());
+    public static String serialize(List<TemplateInput> params) {
+        return getSerializer().serialize(params);
+    }
 
-            result.add(param);
+    /**
+     * Reads parameters serialized in any of the supported encodings, whatever
+     * the configured serializer : the XML and JSON encodings can coexist in
+     * the repository.
+     */
+    public static List<TemplateInput> readFromXml(String xml) throws Exception {
+        if (JsonTemplateInputSerializer.isJson(xml)) {
+            return jsonSerializer.readFromXml(xml);
         }
-
-        return result;
+        return getSerializer().readFromXml(xml);
     }
 
 }
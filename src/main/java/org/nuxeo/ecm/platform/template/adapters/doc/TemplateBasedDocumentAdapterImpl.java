@@ -19,18 +19,26 @@ package org.nuxeo.ecm.platform.template.adapters.doc;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.Lock;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.schema.types.primitives.DateType;
 import org.nuxeo.ecm.platform.template.TemplateInput;
-import org.nuxeo.ecm.platform.template.XMLSerializer;
 import org.nuxeo.ecm.platform.template.adapters.AbstractTemplateDocument;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.RenderCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateInputCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateSourceCache;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.convert.ConvertHelper;
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
@@ -53,12 +61,45 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     protected ConvertHelper convertHelper = new ConvertHelper();
 
-    protected final TemplateBindings bindings;
+    // loaded on first use, see getBindings()
+    protected transient TemplateBindings bindings;
+
+    // nxts:bindings property the bindings were loaded from
+    protected transient Property bindingsProperty;
+
+    // true when the property was last written from the bindings
+    protected transient boolean bindingsWritten;
 
     public TemplateBasedDocumentAdapterImpl(DocumentModel doc)
             throws ClientException {
         this.adaptedDoc = doc;
-        bindings = new TemplateBindings(doc);
+    }
+
+    /**
+     * Returns the bindings of the document, loading them on first use.
+     * <p>
+     * Adapters are cached by the {@link DocumentModel}, so the bindings are
+     * reloaded when the property they were read from has been replaced (the
+     * document was saved or refreshed) or modified by someone else.
+     */
+    protected TemplateBindings getBindings() throws ClientException {
+        Property property = adaptedDoc.getProperty(TemplateBindings.BINDING_PROP_NAME);
+        if (bindings == null || property != bindingsProperty
+                || (property.isDirty() && !bindingsWritten)) {
+            bindings = new TemplateBindings(adaptedDoc);
+            bindingsProperty = property;
+            bindingsWritten = false;
+        }
+        return bindings;
+    }
+
+    /**
+     * Writes the bindings to the document property, without saving the
+     * document.
+     */
+    protected void saveBindings() throws ClientException {
+        getBindings().save(adaptedDoc);
+        bindingsWritten = true;
     }
 
     public DocumentModel setTemplate(DocumentModel template, boolean save)
@@ -71,20 +112,20 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
         }
         String tid = source.getId();
         String templateName = source.getName();
-        if (!bindings.containsTemplateId(tid)) {
+        if (!getBindings().containsTemplateId(tid)) {
             if (templateName == null) {
                 templateName = TemplateBindings.DEFAULT_BINDING;
             }
             TemplateBinding tb = new TemplateBinding();
             tb.setTemplateId(tid);
             tb.setName(templateName);
-            bindings.add(tb);
+            getBindings().add(tb);
+            saveBindings();
             try {
                 initializeFromTemplate(templateName, false);
             } catch (Exception e) {
                 throw new ClientException(e);
             }
-            bindings.save(adaptedDoc);
             if (save) {
                 doSave();
             }
@@ -95,9 +136,9 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     public DocumentModel removeTemplateBinding(String templateName, boolean save)
             throws ClientException {
-        if (bindings.containsTemplateName(templateName)) {
-            bindings.removeByName(templateName);
-            bindings.save(adaptedDoc);
+        if (getBindings().containsTemplateName(templateName)) {
+            getBindings().removeByName(templateName);
+            saveBindings();
             if (save) {
                 doSave();
             }
@@ -125,23 +166,59 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     public DocumentModel getSourceTemplateDoc(String templateName)
             throws Exception {
+        return getSourceTemplateDoc(templateName, false);
+    }
+
+    /**
+     * Looks up the template document through the {@link TemplateSourceCache}.
+     *
+     * @param readOnly if true, the returned document may be a detached copy
+     *            shared with other sessions, only usable to read the template
+     *            metadata
+     */
+    protected DocumentModel getSourceTemplateDoc(String templateName,
+            boolean readOnly) throws Exception {
         TemplateBinding binding = null;
         if (templateName == null) {
-            binding = bindings.get();
+            binding = getBindings().get();
         } else {
-            binding = bindings.get(templateName);
+            binding = getBindings().get(templateName);
         }
         if (binding == null) {
             return null;
         }
-        IdRef tRef = new IdRef(binding.getTemplateId());
-        return getSession().getDocument(tRef);
+        TemplateSourceCache cache = getTemplateProcessorService().getTemplateSourceCache();
+        if (readOnly) {
+            return cache.getReadOnlySourceTemplateDoc(getSession(),
+                    binding.getTemplateId());
+        }
+        return cache.getSourceTemplateDoc(getSession(), binding.getTemplateId());
+    }
+
+    /**
+     * Returns the template to read its metadata (type, format, blob ...) when
+     * rendering.
+     */
+    protected TemplateSourceDocument getReadOnlySourceTemplate(
+            String templateName) throws Exception {
+        DocumentModel template = getSourceTemplateDoc(templateName, true);
+        if (template != null) {
+            return template.getAdapter(TemplateSourceDocument.class);
+        }
+        return null;
     }
 
     public List<TemplateSourceDocument> getSourceTemplates() {
 
         List<TemplateSourceDocument> result = new ArrayList<TemplateSourceDocument>();
 
+        TemplateBindings bindings;
+        try {
+            bindings = getBindings();
+        } catch (ClientException e) {
+            log.error("Unable to read template bindings", e);
+            return result;
+        }
         for (TemplateBinding binding : bindings) {
             try {
                 result.add(getSourceTemplate(binding.getName()));
@@ -164,7 +241,7 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
     public String getTemplateType(String templateName) {
         TemplateSourceDocument source = null;
         try {
-            source = getSourceTemplate(templateName);
+            source = getReadOnlySourceTemplate(templateName);
         } catch (Exception e) {
             log.error("Unable to find source template for name " + templateName);
             return null;
@@ -196,7 +273,7 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
             myParams.add(myParam);
         }
 
-        bindings.get(templateName).setData(myParams);
+        getBindings().get(templateName).setData(myParams);
 
         if (tmpl.useAsMainContent()) {
             // copy the template as main blob
@@ -204,8 +281,9 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
             if (bh != null) {
                 bh.setBlob(tmpl.getTemplateBlob());
             }
-            bindings.get(templateName).setUseMainContentAsTemplate(true);
+            getBindings().get(templateName).setUseMainContentAsTemplate(true);
         }
+        saveBindings();
 
         if (save) {
             doSave();
@@ -215,7 +293,9 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     @Override
     protected void doSave() throws ClientException {
-        bindings.save(adaptedDoc);
+        if (bindings != null) {
+            saveBindings();
+        }
         super.doSave();
     }
 
@@ -230,13 +310,29 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
     public Blob renderWithTemplate(String templateName) throws Exception {
         TemplateProcessor processor = getTemplateProcessor(templateName);
         if (processor != null) {
+            String format = getReadOnlySourceTemplate(templateName).getOutputFormat();
+            RenderCache cache = getTemplateProcessorService().getRenderCache();
+            String cacheKey = getRenderCacheKey(cache, processor,
+                    templateName, format);
+            if (cacheKey != null) {
+                Blob cached = cache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
             Blob blob = processor.renderTemplate(this, templateName);
-            String format = getSourceTemplate(templateName).getOutputFormat();
             if (blob != null && format != null && !format.isEmpty()) {
-                return convertBlob(blob, format);
-            } else {
-                return blob;
+                blob = convertBlob(blob, format);
+            }
+            if (blob != null && cacheKey != null) {
+                try {
+                    blob = cache.put(cacheKey, blob);
+                } catch (Exception e) {
+                    log.warn("Unable to store rendering result in cache : "
+                            + e.getMessage());
+                }
             }
+            return blob;
         } else {
             throw new ClientException(
                     "No template processor found for template type="
@@ -244,6 +340,77 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
         }
     }
 
+    /**
+     * Builds the key used to store the rendering result in the
+     * {@link RenderCache} : template digest, document id, modification date,
+     * change token, lifecycle state, lock, current user, binding name and
+     * output format. Returns null if the result must not be cached.
+     */
+    protected String getRenderCacheKey(RenderCache cache,
+            TemplateProcessor processor, String templateName, String format)
+            throws Exception {
+        if (cache == null || !cache.isEnabled() || adaptedDoc.getId() == null
+                || adaptedDoc.isDirty()
+                || !adaptedDoc.hasSchema("dublincore")) {
+            return null;
+        }
+        Calendar modified = (Calendar) adaptedDoc.getPropertyValue("dc:modified");
+        if (modified == null) {
+            return null;
+        }
+        CoreSession session = adaptedDoc.getCoreSession();
+        if (session == null) {
+            return null;
+        }
+        Blob templateBlob = getTemplateBlob(templateName);
+        if (templateBlob == null) {
+            return null;
+        }
+        if (getTemplateProcessorService().isContextDependent(processor,
+                templateBlob)
+                || hasTimeDependentParams(templateName)) {
+            cache.recordBypass();
+            return null;
+        }
+        Lock lock = adaptedDoc.getLockInfo();
+        String lockKey = lock == null ? "" : lock.getOwner() + "@"
+                + lock.getCreated().getTimeInMillis();
+        // the rendering sees the document with the rights of the user
+        return TemplateCache.buildKey(BlobDigestHelper.getDigest(templateBlob),
+                adaptedDoc.getId(),
+                String.valueOf(modified.getTimeInMillis()),
+                String.valueOf(adaptedDoc.getChangeToken()),
+                String.valueOf(adaptedDoc.getCurrentLifeCycleState()),
+                lockKey, session.getPrincipal().getName(), templateName,
+                format == null ? "" : format);
+    }
+
+    /**
+     * Dates parameters bound to an empty property are rendered with the
+     * current date.
+     */
+    protected boolean hasTimeDependentParams(String templateName)
+            throws ClientException {
+        List<TemplateInput> params = getReadOnlyParams(templateName);
+        if (params == null) {
+            return false;
+        }
+        for (TemplateInput param : params) {
+            if (param.isSourceValue()) {
+                try {
+                    Property property = adaptedDoc.getProperty(param.getSource());
+                    if (property.getValue() == null
+                            && DateType.ID.equals(property.getType().getName())) {
+                        return true;
+                    }
+                } catch (Exception e) {
+                    // unresolvable source : rendered as empty
+                }
+            }
+        }
+        return false;
+    }
+
     public Blob renderAndStoreAsAttachment(String templateName, boolean save)
             throws Exception {
         Blob blob = renderWithTemplate(templateName);
@@ -272,7 +439,7 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
      */
 
     public Blob getTemplateBlob(String templateName) throws Exception {
-        TemplateSourceDocument source = getSourceTemplate(templateName);
+        TemplateSourceDocument source = getReadOnlySourceTemplate(templateName);
         if (source != null) {
             if (source.useAsMainContent()) {
                 BlobHolder bh = getAdaptedDoc().getAdapter(BlobHolder.class);
@@ -297,17 +464,37 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
     }
 
     public boolean hasParams(String templateName) throws ClientException {
-        return getParams(templateName).size() > 0;
+        return getReadOnlyParams(templateName).size() > 0;
     }
 
     public List<TemplateInput> getParams(String templateName)
             throws ClientException {
 
-        TemplateBinding binding = bindings.get(templateName);
+        TemplateBinding binding = getBindings().get(templateName);
         if (binding != null) {
             String xml = binding.getData();
             try {
-                return XMLSerializer.readFromXml(xml);
+                return TemplateInputCache.getParams(xml);
+            } catch (Exception e) {
+                log.error("Unable to parse parameters", e);
+                return new ArrayList<TemplateInput>();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shared parsed parameters, without copying them : the
+     * returned list and its items must not be modified.
+     */
+    protected List<TemplateInput> getReadOnlyParams(String templateName)
+            throws ClientException {
+
+        TemplateBinding binding = getBindings().get(templateName);
+        if (binding != null) {
+            String xml = binding.getData();
+            try {
+                return TemplateInputCache.getReadOnlyParams(xml);
             } catch (Exception e) {
                 log.error("Unable to parse parameters", e);
                 return new ArrayList<TemplateInput>();
@@ -318,10 +505,10 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     public DocumentModel saveParams(String templateName,
             List<TemplateInput> params, boolean save) throws Exception {
-        TemplateBinding binding = bindings.get(templateName);
+        TemplateBinding binding = getBindings().get(templateName);
         if (binding != null) {
             binding.setData(params);
-            bindings.save(adaptedDoc);
+            saveBindings();
         }
         if (save) {
             doSave();
@@ -329,14 +516,18 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
         return adaptedDoc;
     }
 
+    protected TemplateProcessorService getTemplateProcessorService() {
+        return Framework.getLocalService(TemplateProcessorService.class);
+    }
+
     protected TemplateProcessor getTemplateProcessor(String templateName) {
-        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        TemplateProcessorService tps = getTemplateProcessorService();
         return tps.getProcessor(getTemplateType(templateName));
     }
 
     public boolean hasEditableParams(String templateName)
             throws ClientException {
-        for (TemplateInput param : getParams(templateName)) {
+        for (TemplateInput param : getReadOnlyParams(templateName)) {
             if (!param.isReadOnly()) {
                 return true;
             }
@@ -346,8 +537,9 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
 
     public String getTemplateNameForRendition(String renditionName) {
         try {
-            for (TemplateBinding binding : bindings) {
-                if (renditionName.equals(getSourceTemplate(binding.getName()).getTargetRenditionName())) {
+            for (TemplateBinding binding : getBindings()) {
+                if (renditionName.equals(getReadOnlySourceTemplate(
+                        binding.getName()).getTargetRenditionName())) {
                     return binding.getName();
                 }
             }
@@ -358,7 +550,12 @@ public class TemplateBasedDocumentAdapterImpl extends AbstractTemplateDocument
     }
 
     public List<String> getTemplateNames() {
-        return bindings.getNames();
+        try {
+            return getBindings().getNames();
+        } catch (ClientException e) {
+            log.error("Unable to read template bindings", e);
+            return new ArrayList<String>();
+        }
     }
 
 }
@@ -79,6 +79,15 @@ public class TemplateBindings extends ArrayList<TemplateBinding> {
         return null;
     }
 
+    public TemplateBinding getByTemplateId(String templateId) {
+        for (TemplateBinding tb : this) {
+            if (templateId.equals(tb.getTemplateId())) {
+                return tb;
+            }
+        }
+        return null;
+    }
+
     public void addOrUpdate(TemplateBinding tb) {
         TemplateBinding existing = get(tb.getName());
         if (existing == null) {
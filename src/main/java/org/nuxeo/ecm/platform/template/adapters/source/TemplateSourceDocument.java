@@ -47,6 +47,14 @@ public interface TemplateSourceDocument {
 
     public void initTemplate(boolean save) throws Exception;
 
+    /**
+     * Tells if the parameters extraction of this template is pending, see
+     * {@link org.nuxeo.ecm.platform.template.service.DeferredTemplateInit}.
+     */
+    public boolean isInitializing();
+
+    public void setInitializing(boolean initializing, boolean save);
+
     public void initTypesBindings() throws Exception;
 
     public Blob getTemplateBlob() throws PropertyException, ClientException;
@@ -72,6 +80,23 @@ public interface TemplateSourceDocument {
     public List<TemplateBasedDocument> getTemplateBasedDocuments()
             throws ClientException;
 
+    /**
+     * Returns a page of the documents bound to this template.
+     */
+    public List<TemplateBasedDocument> getTemplateBasedDocuments(long offset,
+            int pageSize) throws ClientException;
+
+    public boolean hasTemplateBasedDocuments() throws ClientException;
+
+    public long getTemplateBasedDocumentsCount() throws ClientException;
+
+    /**
+     * Counts the bound documents up to <code>max</code>, without reading the
+     * other rows.
+     */
+    public long getTemplateBasedDocumentsCount(long max)
+            throws ClientException;
+
     public void removeForcedType(String type, boolean save)
             throws ClientException;
 
@@ -31,6 +31,7 @@ import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.XMLSerializer;
 import org.nuxeo.ecm.platform.template.adapters.AbstractTemplateDocument;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.cache.TemplateInputCache;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
 import org.nuxeo.runtime.api.Framework;
@@ -71,6 +72,8 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
 
     public static final String TEMPLATE_RENDITION_PROP = "tmpl:targetRenditionName";
 
+    public static final String TEMPLATE_INITIALIZING_PROP = "tmpl:initializing";
+
     public static final String TEMPLATE_FACET = "Template";
 
     private static final long serialVersionUID = 1L;
@@ -84,6 +87,16 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
     }
 
     public List<TemplateInput> getParams() throws ClientException {
+        return getParams(false);
+    }
+
+    /**
+     * Parses the parameters through the {@link TemplateInputCache}. When
+     * readOnly is true, the shared list is returned without copying it : the
+     * list and its items must not be modified.
+     */
+    protected List<TemplateInput> getParams(boolean readOnly)
+            throws ClientException {
         String dataPath = getTemplateParamsXPath();
 
         if (adaptedDoc.getPropertyValue(dataPath) == null) {
@@ -92,7 +105,10 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
         String xml = adaptedDoc.getPropertyValue(dataPath).toString();
 
         try {
-            return XMLSerializer.readFromXml(xml);
+            if (readOnly) {
+                return TemplateInputCache.getReadOnlyParams(xml);
+            }
+            return TemplateInputCache.getParams(xml);
         } catch (Exception e) {
             log.error("Unable to parse parameters", e);
             return new ArrayList<TemplateInput>();
@@ -100,7 +116,7 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
     }
 
     public boolean hasEditableParams() throws ClientException {
-        for (TemplateInput param : getParams()) {
+        for (TemplateInput param : getParams(true)) {
             if (!param.isReadOnly()) {
                 return true;
             }
@@ -176,16 +192,43 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
                     }
                 }
                 TemplateProcessor processor = getTemplateProcessor();
+                List<TemplateInput> params = null;
                 if (processor != null) {
-                    List<TemplateInput> params = processor.getInitialParametersDefinition(blob);
-                    saveParams(params, save);
+                    params = processor.getInitialParametersDefinition(blob);
                 }
+                // set before saving so that the save does not init again
                 getAdaptedDoc().getContextData().put(
                         TemplateSourceDocument.INIT_DONE_FLAG, true);
+                if (params != null) {
+                    saveParams(params, save);
+                }
             }
         }
     }
 
+    public boolean isInitializing() {
+        try {
+            Boolean initializing = (Boolean) getAdaptedDoc().getPropertyValue(
+                    TEMPLATE_INITIALIZING_PROP);
+            return Boolean.TRUE.equals(initializing);
+        } catch (Exception e) {
+            log.error("Unable to read template initializing prop ", e);
+            return false;
+        }
+    }
+
+    public void setInitializing(boolean initializing, boolean save) {
+        try {
+            getAdaptedDoc().setPropertyValue(TEMPLATE_INITIALIZING_PROP,
+                    Boolean.valueOf(initializing));
+            if (save) {
+                doSave();
+            }
+        } catch (Exception e) {
+            log.error("Error while setting initializing flag", e);
+        }
+    }
+
     public boolean allowInstanceOverride() {
         try {
             Boolean allowOverride = (Boolean) getAdaptedDoc().getPropertyValue(
@@ -316,6 +359,28 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
                 adaptedDoc);
     }
 
+    public List<TemplateBasedDocument> getTemplateBasedDocuments(long offset,
+            int pageSize) throws ClientException {
+        return Framework.getLocalService(TemplateProcessorService.class).getLinkedTemplateBasedDocuments(
+                adaptedDoc, offset, pageSize);
+    }
+
+    public boolean hasTemplateBasedDocuments() throws ClientException {
+        return Framework.getLocalService(TemplateProcessorService.class).hasLinkedTemplateBasedDocuments(
+                adaptedDoc);
+    }
+
+    public long getTemplateBasedDocumentsCount() throws ClientException {
+        return Framework.getLocalService(TemplateProcessorService.class).countLinkedTemplateBasedDocuments(
+                adaptedDoc);
+    }
+
+    public long getTemplateBasedDocumentsCount(long max)
+            throws ClientException {
+        return Framework.getLocalService(TemplateProcessorService.class).countLinkedTemplateBasedDocuments(
+                adaptedDoc, max);
+    }
+
     public String getOutputFormat() {
         try {
             return (String) getAdaptedDoc().getPropertyValue(
@@ -362,6 +427,11 @@ public class TemplateSourceDocumentAdapterImpl extends AbstractTemplateDocument
     public void setTemplateBlob(Blob blob, boolean save) throws Exception {
         BlobHolder bh = getAdaptedDoc().getAdapter(BlobHolder.class);
         if (bh != null) {
+            Blob oldBlob = bh.getBlob();
+            if (oldBlob != null) {
+                TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+                tps.invalidateTemplateCaches(oldBlob);
+            }
             bh.setBlob(blob);
             initTemplate(false);
             if (save) {
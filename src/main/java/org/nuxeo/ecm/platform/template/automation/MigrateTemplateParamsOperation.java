@@ -0,0 +1,53 @@
+package org.nuxeo.ecm.platform.template.automation;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.platform.template.service.ParamsMigrationReport;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Operation to rewrite the template parameters of the repository with the
+ * configured encoding
+ */
+@Operation(id = MigrateTemplateParamsOperation.ID, category = Constants.CAT_SERVICES, label = "Migrate template parameters", description = "Rewrites the template parameters of all the documents with the encoding configured by org.nuxeo.template.params.serializer.class, in batches. The migration runs in background : returns a text report of its progress, with the size and parse time savings. Call again with statusOnly to follow it. Requires administrator rights.")
+public class MigrateTemplateParamsOperation {
+
+    public static final String ID = "TemplateProcessor.MigrateParams";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "batchSize", required = false)
+    protected Integer batchSize = 0;
+
+    @Param(name = "statusOnly", required = false)
+    protected boolean statusOnly = false;
+
+    @OperationMethod
+    public Blob run() throws Exception {
+        if (!((NuxeoPrincipal) session.getPrincipal()).isAdministrator()) {
+            throw new ClientException(
+                    "Template parameters migration requires administrator rights");
+        }
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        ParamsMigrationReport report;
+        if (statusOnly) {
+            report = tps.getParamsMigration(session.getRepositoryName());
+        } else {
+            report = tps.migrateParams(session.getRepositoryName(), batchSize);
+        }
+        String text = report == null ? "No migration started"
+                : report.toString();
+        return new StringBlob(text, "text/plain");
+    }
+}
@@ -8,10 +8,15 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
+import org.nuxeo.ecm.platform.template.service.RenderJob;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * Operation to wrapp the rendition process
@@ -19,11 +24,14 @@ import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
  * @author <a href="mailto:tdelprat@nuxeo.com">Tiry</a>
  * 
  */
-@Operation(id = RenderWithTemplateOperation.ID, category = Constants.CAT_CONVERSION, label = "Render with template", description = "Render the target document with the associated template if any. Returns the rendered Blob or the main Blob if no template is associated to the document.")
+@Operation(id = RenderWithTemplateOperation.ID, category = Constants.CAT_CONVERSION, label = "Render with template", description = "Render the target document with the associated template if any. Returns the rendered Blob or the main Blob if no template is associated to the document. When async is set, the rendering is queued, stored and saved on the document once done : store and save must then be set, and the operation returns a text/plain Blob holding the id of the rendering job, to be used with TemplateProcessorService.getRenderJob.")
 public class RenderWithTemplateOperation {
 
     public static final String ID = "TemplateProcessor.Render";
 
+    // name of the Blob returned for asynchronous renderings
+    public static final String JOB_ID_FILENAME = "renderJobId.txt";
+
     @Context
     protected OperationContext ctx;
 
@@ -36,10 +44,26 @@ public class RenderWithTemplateOperation {
     @Param(name = "save", required = false, values = "true")
     protected Boolean save = true;
 
+    @Param(name = "async", required = false, values = "false")
+    protected Boolean async = false;
+
     @OperationMethod
     public Blob run(DocumentModel targetDocument) throws Exception {
         TemplateBasedDocument renderable = targetDocument.getAdapter(TemplateBasedDocument.class);
         if (renderable != null) {
+            if (async) {
+                // result is only available once stored on the document
+                if (!store || !save) {
+                    throw new ClientException(
+                            "Asynchronous rendering requires store and save");
+                }
+                TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+                RenderJob job = tps.submitRendering(renderable, templateName,
+                        true, RenderJob.DEFAULT_PRIORITY);
+                Blob jobBlob = new StringBlob(job.getId(), "text/plain");
+                jobBlob.setFilename(JOB_ID_FILENAME);
+                return jobBlob;
+            }
             if (store) {
                 return renderable.renderAndStoreAsAttachment(templateName, save);
             } else {
@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Computes a content digest for template {@link Blob}s.
+ * <p>
+ * Blobs coming from the repository already carry the digest of their binary,
+ * so the stream is only read for transient blobs.
+ */
+public class BlobDigestHelper {
+
+    protected static final int BUFFER_SIZE = 1024 * 64; // 64K
+
+    protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String getDigest(Blob blob) throws IOException {
+        if (blob == null) {
+            return null;
+        }
+        String digest = blob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return digest;
+        }
+        return computeDigest(blob.getStream());
+    }
+
+    public static String computeDigest(InputStream in) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    protected static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.processors.SpillingOutputStream;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Default {@link RenderCache} implementation : rendering results are stored
+ * as files in a local directory, the index is kept in memory.
+ * <p>
+ * The total size of the stored files is bounded : when it goes over the
+ * configured size, the least recently used results are deleted. Since the
+ * index is not persisted, the directory is emptied when the cache is created.
+ * <p>
+ * The cache is disabled unless {@link #MAX_SIZE_PROPERTY} is set : results
+ * are shared by the renderings of the same document state, which does not
+ * take into account the modifications saved without updating the DublinCore
+ * metadata.
+ */
+public class DiskRenderCache implements RenderCache {
+
+    protected static final Log log = LogFactory.getLog(DiskRenderCache.class);
+
+    public static final String MAX_SIZE_PROPERTY = "org.nuxeo.template.render.cache.maxSize";
+
+    public static final String DIRECTORY_PROPERTY = "org.nuxeo.template.render.cache.dir";
+
+    // disabled by default
+    public static final long DEFAULT_MAX_SIZE = 0;
+
+    protected static final int BUFFER_SIZE = 1024 * 64; // 64K
+
+    // results up to this size are returned as in memory blobs
+    protected static final long IN_MEMORY_THRESHOLD = 1024 * 1024;
+
+    protected final File directory;
+
+    protected final long maxSize;
+
+    protected final AtomicLong totalSize = new AtomicLong();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong bypasses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    // guarded by itself, iterated from the least recently used entry; the
+    // files are deleted out of the lock
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    protected static class Entry {
+
+        protected final File file;
+
+        protected final long length;
+
+        protected final String mimeType;
+
+        protected final String encoding;
+
+        protected final String filename;
+
+        protected Entry(File file, Blob result) {
+            this.file = file;
+            length = file.length();
+            mimeType = result.getMimeType();
+            encoding = result.getEncoding();
+            filename = result.getFilename();
+        }
+    }
+
+    public DiskRenderCache() {
+        this(getDefaultDirectory(), TemplateCache.getConfiguredValue(
+                MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+    }
+
+    public DiskRenderCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (maxSize > 0) {
+            if (directory.exists()) {
+                // left over by a previous run, the index is lost
+                FileUtils.emptyDirectory(directory);
+            } else {
+                directory.mkdirs();
+            }
+        }
+    }
+
+    protected static File getDefaultDirectory() {
+        String path = Framework.getProperty(DIRECTORY_PROPERTY);
+        if (path == null || path.trim().isEmpty()) {
+            // use the server temp directory so that several instances
+            // running on the same host don't share the cache directory
+            Environment env = Environment.getDefault();
+            File tmp = env != null && env.getTemp() != null ? env.getTemp()
+                    : new File(System.getProperty("java.io.tmpdir"));
+            return new File(tmp, "nxtemplate-render-cache");
+        }
+        return new File(path.trim());
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    @Override
+    public Blob get(String key) throws IOException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            Blob result = copy(entry);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns a copy of the stored result so that the caller is not affected
+     * if the entry is evicted while the Blob is in use.
+     */
+    protected Blob copy(Entry entry) throws IOException {
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(entry.file));
+        } catch (FileNotFoundException e) {
+            // evicted by a concurrent thread
+            return null;
+        }
+        SpillingOutputStream out = new SpillingOutputStream(
+                IN_MEMORY_THRESHOLD);
+        Blob blob = null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            blob = out.getBlob(entry.mimeType);
+        } finally {
+            in.close();
+            if (blob == null) {
+                out.discard();
+            }
+        }
+        blob.setEncoding(entry.encoding);
+        blob.setFilename(entry.filename);
+        return blob;
+    }
+
+    @Override
+    public Blob put(String key, Blob result) throws IOException {
+        if (!isEnabled() || result == null) {
+            return result;
+        }
+        File file = File.createTempFile("render", ".bin", directory);
+        try {
+            InputStream in = result.getStream();
+            try {
+                FileUtils.copyToFile(in, file);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        if (file.length() > maxSize) {
+            // not cached, the file is handed over to the caller
+            Blob blob = new FileBlob(file, result.getMimeType(),
+                    result.getEncoding());
+            blob.setFilename(result.getFilename());
+            Framework.trackFile(file, blob);
+            return blob;
+        }
+        Entry entry = new Entry(file, result);
+        // copied before the entry is visible so that it can't be evicted
+        Blob stored = copy(entry);
+        List<Entry> released = new ArrayList<Entry>();
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            totalSize.addAndGet(entry.length);
+            if (previous != null) {
+                release(previous, released);
+            }
+            Iterator<Entry> it = entries.values().iterator();
+            while (totalSize.get() > maxSize && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                evictions.incrementAndGet();
+                release(eldest, released);
+            }
+        }
+        delete(released);
+        return stored;
+    }
+
+    /**
+     * Removes the entry from the total size, its file is deleted later with
+     * {@link #delete(List)}. Called with the lock held.
+     */
+    protected void release(Entry entry, List<Entry> released) {
+        totalSize.addAndGet(-entry.length);
+        released.add(entry);
+    }
+
+    protected void delete(List<Entry> released) {
+        for (Entry entry : released) {
+            if (!entry.file.delete()) {
+                log.debug("Unable to delete " + entry.file.getPath());
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String templateDigest) {
+        if (templateDigest == null) {
+            return;
+        }
+        String prefix = templateDigest + TemplateCache.KEY_SEPARATOR;
+        List<Entry> released = new ArrayList<Entry>();
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> candidate = it.next();
+                if (candidate.getKey().startsWith(prefix)) {
+                    it.remove();
+                    release(candidate.getValue(), released);
+                }
+            }
+        }
+        delete(released);
+    }
+
+    @Override
+    public void clear() {
+        List<Entry> released = new ArrayList<Entry>();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                release(entry, released);
+            }
+            entries.clear();
+        }
+        delete(released);
+    }
+
+    @Override
+    public void recordBypass() {
+        bypasses.incrementAndGet();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getTotalSize() {
+        return totalSize.get();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "renderCache [size=" + size() + ", bytes=" + getTotalSize()
+                + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", bypasses=" + getBypasses() + ", evictions="
+                + getEvictions() + "]";
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Cache for the results of
+ * {@link org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument#renderWithTemplate(String)}.
+ * <p>
+ * Keys are built with {@link TemplateCache#buildKey(String, String...)}
+ * starting with the template blob digest, so that all the results rendered
+ * from a template can be dropped when the template is modified.
+ * <p>
+ * The implementation can be changed using the
+ * {@link #RENDER_CACHE_CLASS_PROPERTY} runtime property.
+ */
+public interface RenderCache {
+
+    public static final String RENDER_CACHE_CLASS_PROPERTY = "org.nuxeo.template.render.cache.class";
+
+    /**
+     * Returns a copy of the cached rendering result, or null.
+     */
+    public Blob get(String key) throws IOException;
+
+    /**
+     * Stores a rendering result. The stream of the given Blob is consumed :
+     * the returned Blob must be used instead.
+     */
+    public Blob put(String key, Blob result) throws IOException;
+
+    /**
+     * Removes all the results rendered from the given template digest.
+     */
+    public void invalidate(String templateDigest);
+
+    public void clear();
+
+    /**
+     * Records a rendering that could not use the cache because its context
+     * depends on the time or on the current user.
+     */
+    public void recordBypass();
+
+    public boolean isEnabled();
+
+    public long getHits();
+
+    public long getMisses();
+
+    public long getBypasses();
+
+    public long getEvictions();
+
+}
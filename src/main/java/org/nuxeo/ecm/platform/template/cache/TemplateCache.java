@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Bounded LRU cache used by the template processors to keep prepared templates
+ * in memory. Keys are built from the template blob digest (see
+ * {@link BlobDigestHelper}) so that a modified template never hits a stale
+ * entry. Entries can optionally expire after a given time.
+ * <p>
+ * The cache is shared by all the rendering threads : it is backed by an
+ * access ordered {@link LinkedHashMap}, so that finding the least recently
+ * used entry does not depend on the cache size. The lock is only held for
+ * the map operations.
+ */
+public class TemplateCache<V> {
+
+    protected static final Log log = LogFactory.getLog(TemplateCache.class);
+
+    public static final String KEY_SEPARATOR = ":";
+
+    protected final String name;
+
+    protected final int maxSize;
+
+    protected final long maxAge;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    // guarded by itself, iterated from the least recently used entry
+    protected final LinkedHashMap<String, Entry<V>> entries;
+
+    protected static class Entry<V> {
+
+        protected final V value;
+
+        protected final long created = System.currentTimeMillis();
+
+        protected Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    public TemplateCache(String name, int maxSize) {
+        this(name, maxSize, 0);
+    }
+
+    /**
+     * @param maxAge time to live of the entries in milliseconds, entries
+     *            never expire if 0
+     */
+    public TemplateCache(String name, int maxSize, long maxAge) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, TemplateCache.Entry<V>> eldest) {
+                if (size() > TemplateCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Reads a cache size from the runtime configuration.
+     */
+    public static int getConfiguredSize(String propertyName, int defaultSize) {
+        return (int) getConfiguredValue(propertyName, defaultSize);
+    }
+
+    /**
+     * Reads a numeric cache setting from the runtime configuration.
+     */
+    public static long getConfiguredValue(String propertyName,
+            long defaultValue) {
+        // runtime may not be started, i.e. in unit tests
+        String value = Framework.getRuntime() != null ? Framework.getProperty(propertyName)
+                : System.getProperty(propertyName);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value " + value + " for " + propertyName
+                    + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static String buildKey(String digest, String... parts) {
+        StringBuilder sb = new StringBuilder(digest);
+        for (String part : parts) {
+            sb.append(KEY_SEPARATOR);
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    public V get(String key) {
+        V value = peek(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Same as {@link #get(String)} but without updating the statistics.
+     */
+    public V peek(String key) {
+        synchronized (entries) {
+            // moves the entry to the most recently used end
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (maxAge > 0
+                    && System.currentTimeMillis() - entry.created > maxAge) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    public void put(String key, V value) {
+        if (maxSize <= 0) {
+            return;
+        }
+        Entry<V> entry = new Entry<V>(value);
+        synchronized (entries) {
+            // the least recently used entry is evicted when over maxSize
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes all entries built from the given template digest.
+     */
+    public void invalidate(String digest) {
+        if (digest == null) {
+            return;
+        }
+        String prefix = digest + KEY_SEPARATOR;
+        synchronized (entries) {
+            Iterator<String> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.equals(digest) || key.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " [size=" + size() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions="
+                + getEvictions() + "]";
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+
+/**
+ * Memoizes the parsing of the {@link TemplateInput} parameters stored as XML
+ * in the documents : a single rendering reads the parameters several times
+ * (hasParams, hasEditableParams, processor, binding resolver ...).
+ * <p>
+ * The cache is keyed by the XML string itself, so a modified parameter list
+ * never hits a stale entry. Parsed lists are shared and must not be modified
+ * : {@link #getReadOnlyParams(String)} returns the shared unmodifiable list
+ * for read only usages, {@link #getParams(String)} returns a copy that the
+ * caller is free to modify.
+ */
+public class TemplateInputCache {
+
+    public static final String CACHE_SIZE_PROPERTY = "org.nuxeo.template.params.cache.size";
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    protected static final TemplateCache<List<TemplateInput>> cache = new TemplateCache<List<TemplateInput>>(
+            "TemplateInputs", TemplateCache.getConfiguredSize(
+                    CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+
+    private TemplateInputCache() {
+    }
+
+    /**
+     * Returns the shared parsed parameters : the list and its items must not
+     * be modified.
+     */
+    public static List<TemplateInput> getReadOnlyParams(String xml)
+            throws Exception {
+        List<TemplateInput> params = cache.get(xml);
+        if (params == null) {
+            params = Collections.unmodifiableList(XMLSerializer.readFromXml(xml));
+            cache.put(xml, params);
+        }
+        return params;
+    }
+
+    /**
+     * Returns a modifiable copy of the parsed parameters.
+     */
+    public static List<TemplateInput> getParams(String xml) throws Exception {
+        List<TemplateInput> params = getReadOnlyParams(xml);
+        List<TemplateInput> copy = new ArrayList<TemplateInput>(params.size());
+        for (TemplateInput param : params) {
+            copy.add(param.getCopy(param.isReadOnly()));
+        }
+        return copy;
+    }
+
+    public static TemplateCache<List<TemplateInput>> getCache() {
+        return cache;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Cache of the TemplateSource documents looked up by the template based
+ * documents, on two levels :
+ * <ul>
+ * <li>per transaction : documents fetched by a session are reused by the same
+ * session until the end of the transaction,</li>
+ * <li>shared (optional) : detached copies of the templates are kept across
+ * transactions to read the template metadata needed for rendering, without
+ * any repository access.</li>
+ * </ul>
+ * Entries are invalidated when a TemplateSource is modified or removed, and
+ * shared entries again once the modifying transaction is completed, so that
+ * a copy reloaded meanwhile from the previous committed state is not kept.
+ * Since other cluster nodes are not notified, shared entries also expire
+ * after {@link #SHARED_CACHE_TTL_PROPERTY} milliseconds.
+ * <p>
+ * The READ permission of the current user on the template is checked when a
+ * shared entry is returned.
+ */
+public class TemplateSourceCache {
+
+    protected static final Log log = LogFactory.getLog(TemplateSourceCache.class);
+
+    public static final String SHARED_CACHE_SIZE_PROPERTY = "org.nuxeo.template.source.cache.size";
+
+    public static final String SHARED_CACHE_TTL_PROPERTY = "org.nuxeo.template.source.cache.ttl";
+
+    // shared cache is disabled by default
+    public static final int DEFAULT_SHARED_CACHE_SIZE = 0;
+
+    public static final long DEFAULT_SHARED_CACHE_TTL = 60 * 1000;
+
+    protected final TemplateCache<DocumentModel> shared;
+
+    protected final Map<Transaction, Map<String, DocumentModel>> transactionCaches = new ConcurrentHashMap<Transaction, Map<String, DocumentModel>>();
+
+    public TemplateSourceCache() {
+        int size = TemplateCache.getConfiguredSize(SHARED_CACHE_SIZE_PROPERTY,
+                DEFAULT_SHARED_CACHE_SIZE);
+        long ttl = TemplateCache.getConfiguredValue(SHARED_CACHE_TTL_PROPERTY,
+                DEFAULT_SHARED_CACHE_TTL);
+        shared = size > 0 ? new TemplateCache<DocumentModel>("TemplateSources",
+                size, ttl) : null;
+    }
+
+    public boolean isSharedCacheEnabled() {
+        return shared != null;
+    }
+
+    /**
+     * Returns the template document bound to the given session, fetching it
+     * at most once per transaction.
+     */
+    public DocumentModel getSourceTemplateDoc(CoreSession session,
+            String templateId) throws ClientException {
+        Map<String, DocumentModel> txCache = getTransactionCache();
+        String key = TemplateCache.buildKey(templateId, session.getSessionId());
+        DocumentModel doc = txCache == null ? null : txCache.get(key);
+        if (doc == null) {
+            doc = session.getDocument(new IdRef(templateId));
+            if (txCache != null) {
+                txCache.put(key, doc);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Returns a template document that may be shared with other sessions and
+     * threads : it is detached and must only be used to read the template
+     * metadata.
+     *
+     * @throws ClientException if the user of the session can not read the
+     *             template
+     */
+    public DocumentModel getReadOnlySourceTemplateDoc(CoreSession session,
+            String templateId) throws ClientException {
+        if (shared == null) {
+            return getSourceTemplateDoc(session, templateId);
+        }
+        String key = TemplateCache.buildKey(templateId,
+                session.getRepositoryName());
+        IdRef ref = new IdRef(templateId);
+        DocumentModel doc = shared.get(key);
+        if (doc != null
+                && !session.hasPermission(ref, SecurityConstants.READ)) {
+            // let the repository report the denied access
+            return session.getDocument(ref);
+        }
+        if (doc == null) {
+            doc = session.getDocument(ref);
+            doc.detach(true);
+            // adapters are cached by the document : create it before the
+            // document is shared
+            doc.getAdapter(TemplateSourceDocument.class);
+            shared.put(key, doc);
+        }
+        return doc;
+    }
+
+    public void invalidate(String templateId) {
+        if (shared != null) {
+            shared.invalidate(templateId);
+            invalidateAfterCompletion(templateId);
+        }
+        Map<String, DocumentModel> txCache = getTransactionCache();
+        if (txCache != null) {
+            String prefix = templateId + TemplateCache.KEY_SEPARATOR;
+            Iterator<String> it = txCache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Until the modification is committed, a concurrent rendering can put the
+     * previous state of the template back in the shared cache.
+     */
+    protected void invalidateAfterCompletion(final String templateId) {
+        if (!TransactionHelper.isTransactionActive()) {
+            return;
+        }
+        try {
+            Transaction tx = TransactionHelper.lookupTransactionManager().getTransaction();
+            if (tx == null || tx.getStatus() != Status.STATUS_ACTIVE) {
+                return;
+            }
+            tx.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    shared.invalidate(templateId);
+                }
+            });
+        } catch (Exception e) {
+            log.debug("Unable to invalidate template " + templateId
+                    + " after commit", e);
+        }
+    }
+
+    public void clear() {
+        if (shared != null) {
+            shared.clear();
+        }
+        transactionCaches.clear();
+    }
+
+    public TemplateCache<DocumentModel> getSharedCache() {
+        return shared;
+    }
+
+    /**
+     * Returns the cache of the current transaction, or null if there is no
+     * active transaction.
+     */
+    protected Map<String, DocumentModel> getTransactionCache() {
+        if (!TransactionHelper.isTransactionActive()) {
+            return null;
+        }
+        try {
+            final Transaction tx = TransactionHelper.lookupTransactionManager().getTransaction();
+            if (tx == null || tx.getStatus() != Status.STATUS_ACTIVE) {
+                return null;
+            }
+            Map<String, DocumentModel> txCache = transactionCaches.get(tx);
+            if (txCache == null) {
+                // a transaction is bound to a single thread
+                txCache = new HashMap<String, DocumentModel>();
+                tx.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        transactionCaches.remove(tx);
+                    }
+                });
+                transactionCaches.put(tx, txCache);
+            }
+            return txCache;
+        } catch (Exception e) {
+            log.debug("Unable to use the transaction cache", e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.fm;
+
+import java.util.Iterator;
+
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateSequenceModel;
+
+/**
+ * Freemarker model exposing {@link LazyAuditEntries} : entries are only
+ * fetched when the template dereferences them. <code>#list</code> uses the
+ * collection view and fetches the pages as they are iterated, index access
+ * and <code>?size</code> fetch up to the needed entry.
+ */
+public class AuditEntriesModel implements TemplateSequenceModel,
+        TemplateCollectionModel {
+
+    protected final LazyAuditEntries entries;
+
+    protected final ObjectWrapper wrapper;
+
+    public AuditEntriesModel(LazyAuditEntries entries, ObjectWrapper wrapper) {
+        this.entries = entries;
+        this.wrapper = wrapper;
+    }
+
+    public LazyAuditEntries getEntries() {
+        return entries;
+    }
+
+    @Override
+    public TemplateModel get(int index) throws TemplateModelException {
+        if (index < 0) {
+            return null;
+        }
+        try {
+            return wrapper.wrap(entries.get(index));
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (RuntimeException e) {
+            throw new TemplateModelException("Unable to read audit entries",
+                    e);
+        }
+    }
+
+    @Override
+    public int size() throws TemplateModelException {
+        try {
+            return entries.size();
+        } catch (RuntimeException e) {
+            throw new TemplateModelException("Unable to read audit entries",
+                    e);
+        }
+    }
+
+    @Override
+    public TemplateModelIterator iterator() throws TemplateModelException {
+        final Iterator<LogEntry> it = entries.iterator();
+        return new TemplateModelIterator() {
+
+            @Override
+            public boolean hasNext() throws TemplateModelException {
+                try {
+                    return it.hasNext();
+                } catch (RuntimeException e) {
+                    throw new TemplateModelException(
+                            "Unable to read audit entries", e);
+                }
+            }
+
+            @Override
+            public TemplateModel next() throws TemplateModelException {
+                return wrapper.wrap(it.next());
+            }
+        };
+    }
+
+}
@@ -36,6 +36,15 @@ public class FMContextBuilder {
     public static final String[] RESERVED_VAR_NAMES = { "doc", "document",
             "auditEntries", "username" };
 
+    /**
+     * Variables whose value depends on the current user, on the time or on
+     * other documents (including the Freemarker .now built-in) : renderings
+     * using them can not be cached.
+     */
+    public static final String[] CONTEXT_DEPENDENT_VAR_NAMES = {
+            "auditEntries", "username", "principal", "fn", "Fn", "fonctions",
+            "now" };
+
     public static List<LogEntry> testAuditEntries;
 
     public static Map<String, Object> build(DocumentModel doc) throws Exception {
@@ -44,6 +53,20 @@ public class FMContextBuilder {
 
     public static Map<String, Object> build(DocumentModel doc,
             boolean wrapAuditEntries) throws Exception {
+        return build(doc, wrapAuditEntries, true);
+    }
+
+    /**
+     * Builds the rendering context of the document.
+     * <p>
+     * Audit entries are exposed as a {@link LazyAuditEntries} list (or an
+     * {@link AuditEntriesModel} when wrapped) that only queries the audit
+     * when the template reads it. When the caller knows the template does
+     * not use <code>auditEntries</code>, the variable is not added at all.
+     */
+    public static Map<String, Object> build(DocumentModel doc,
+            boolean wrapAuditEntries, boolean withAuditEntries)
+            throws Exception {
 
         Map<String, Object> ctx = new HashMap<String, Object>();
         DocumentObjectWrapper nuxeoWrapper = new DocumentObjectWrapper(null);
@@ -65,28 +88,26 @@ public class FMContextBuilder {
         ctx.put("username", session.getPrincipal().getName());
         ctx.put("principal", session.getPrincipal());
 
+        if (!withAuditEntries) {
+            return ctx;
+        }
+
         // add audit context info
         DocumentHistoryReader historyReader = Framework.getLocalService(DocumentHistoryReader.class);
-        List<LogEntry> auditEntries = null;
+        LazyAuditEntries auditEntries = null;
         if (historyReader != null) {
-            auditEntries = historyReader.getDocumentHistory(doc, 0, 1000);
+            auditEntries = new LazyAuditEntries(doc, historyReader);
         } else {
             if (Framework.isTestModeSet() && testAuditEntries != null) {
-                auditEntries = testAuditEntries;
+                auditEntries = new LazyAuditEntries(doc, testAuditEntries);
             } else {
                 log.warn("Can not add Audit info to rendering context");
             }
         }
         if (auditEntries != null) {
-            try {
-                auditEntries = preprocessAuditEntries(auditEntries, session,
-                        "en");
-            } catch (Throwable e) {
-                log.warn("Unable to preprocess Audit entries : "
-                        + e.getMessage());
-            }
             if (wrapAuditEntries) {
-                ctx.put("auditEntries", nuxeoWrapper.wrap(auditEntries));
+                ctx.put("auditEntries", new AuditEntriesModel(auditEntries,
+                        nuxeoWrapper));
             } else {
                 ctx.put("auditEntries", auditEntries);
             }
@@ -122,11 +143,17 @@ public class FMContextBuilder {
     public static Map<String, Object> build(
             TemplateBasedDocument templateBasedDocument, String templateName)
             throws Exception {
+        return build(templateBasedDocument, templateName, true);
+    }
+
+    public static Map<String, Object> build(
+            TemplateBasedDocument templateBasedDocument, String templateName,
+            boolean withAuditEntries) throws Exception {
 
         DocumentModel doc = templateBasedDocument.getAdaptedDoc();
         List<TemplateInput> params = templateBasedDocument.getParams(templateName);
 
-        Map<String, Object> context = build(doc);
+        Map<String, Object> context = build(doc, true, withAuditEntries);
         DocumentObjectWrapper nuxeoWrapper = new DocumentObjectWrapper(null);
 
         for (TemplateInput param : params) {
@@ -18,8 +18,15 @@
 
 package org.nuxeo.ecm.platform.template.fm;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,16 +44,31 @@ import org.nuxeo.ecm.platform.template.TemplateInput;
  */
 public class FreeMarkerVariableExtractor {
 
-    protected final static Pattern simpleVariableMatcher = Pattern.compile("\\$\\{([^\\}]*)\\}");
-
     protected final static String[] spliters = new String[] { ".", "?", "=",
             ">", "<", "!", " ", "[" };
 
-    protected final static Pattern[] directiveMatchers = new Pattern[] {
-            Pattern.compile("\\[\\#if\\s([^\\]]*)\\]"),
-            Pattern.compile("\\[\\#list\\s(.+)\\sas\\s([^\\]]*)\\]") };
+    protected final static Pattern listSeparator = Pattern.compile("\\sas\\s");
+
+    // longer expressions are not variable references (unterminated ${ or [#)
+    protected final static int MAX_TOKEN_LENGTH = 4096;
+
+    protected static final int BUFFER_SIZE = 1024 * 8;
 
-    protected final static Pattern[] assignMatchers = new Pattern[] { Pattern.compile("\\[\\#assign\\s(.+)=.*\\]") };
+    // matches any use of a context dependent variable, including in
+    // expressions the variable extraction does not handle
+    protected final static Pattern contextDependentMatcher = buildContextDependentMatcher();
+
+    protected static Pattern buildContextDependentMatcher() {
+        StringBuilder sb = new StringBuilder("\\b(");
+        for (int i = 0; i < FMContextBuilder.CONTEXT_DEPENDENT_VAR_NAMES.length; i++) {
+            if (i > 0) {
+                sb.append("|");
+            }
+            sb.append(FMContextBuilder.CONTEXT_DEPENDENT_VAR_NAMES[i]);
+        }
+        sb.append(")\\b");
+        return Pattern.compile(sb.toString());
+    }
 
     protected static String extractVariableName(String match) {
 
@@ -72,62 +94,159 @@ public class FreeMarkerVariableExtractor {
 
     }
 
-    public static List<String> extractVariables(String content) {
-
-        List<String> variables = new ArrayList<String>();
-
-        List<String> blackListedVariables = new ArrayList<String>();
+    /**
+     * Returns true if the template content may use one of the
+     * {@link FMContextBuilder#CONTEXT_DEPENDENT_VAR_NAMES}. The check is
+     * conservative : a plain text occurrence of one of the names is enough.
+     */
+    public static boolean isContextDependent(String content) {
+        if (content == null) {
+            return false;
+        }
+        return contextDependentMatcher.matcher(content).find();
+    }
 
-        Matcher matcher = simpleVariableMatcher.matcher(content);
+    /**
+     * Returns true if the template content may use the given variable. Like
+     * {@link #isContextDependent(String)}, any plain text occurrence of the
+     * name is enough : a false positive only costs an unneeded binding.
+     */
+    public static boolean usesVariable(String content, String varName) {
+        if (content == null) {
+            return false;
+        }
+        return Pattern.compile("\\b" + Pattern.quote(varName) + "\\b").matcher(
+                content).find();
+    }
 
-        matcher.matches();
-        while (matcher.find()) {
-            if (matcher.groupCount() > 0) {
-                String v = extractVariableName(matcher.group(1));
-                if (!variables.contains(v)) {
-                    variables.add(v);
-                }
-            }
+    public static List<String> extractVariables(String content) {
+        try {
+            return extractVariables(new StringReader(content));
+        } catch (IOException e) {
+            // can not happen with a StringReader
+            throw new IllegalStateException(e);
         }
+    }
 
-        for (Pattern dPattern : directiveMatchers) {
-            Matcher dmatcher = dPattern.matcher(content);
-            dmatcher.matches();
-            while (dmatcher.find()) {
-                if (dmatcher.groupCount() > 0) {
-                    String v = extractVariableName(dmatcher.group(1));
-                    if (!variables.contains(v)) {
-                        variables.add(v);
+    /**
+     * Extracts the variables used in the template read from the given
+     * {@link Reader} in a single pass. The content is never fully loaded in
+     * memory : only the expression being parsed is buffered. Recognized
+     * constructs are <code>${...}</code>, <code>[#if ...]</code>,
+     * <code>[#list ... as ...]</code> and <code>[#assign ...]</code>.
+     * <p>
+     * Variables are returned in order of first use. The Reader is not closed.
+     */
+    public static List<String> extractVariables(Reader reader)
+            throws IOException {
+
+        Set<String> variables = new LinkedHashSet<String>();
+
+        Set<String> blackListedVariables = new HashSet<String>();
+
+        StringBuilder token = new StringBuilder();
+        // opening sequence of the token being read : '$', '[' or 0
+        char tokenType = 0;
+        char previous = 0;
+        char quote = 0;
+        int depth = 0;
+        boolean inToken = false;
+
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (!inToken) {
+                    if ((c == '{' && previous == '$')
+                            || (c == '#' && previous == '[')) {
+                        inToken = true;
+                        tokenType = previous;
+                        token.setLength(0);
+                        quote = 0;
+                        depth = 0;
+                        // so that "${${" does not restart a token
+                        c = 0;
+                    }
+                    previous = c;
+                    continue;
+                }
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
                     }
-                    if (dmatcher.groupCount() > 1) {
-                        blackListedVariables.add(extractVariableName(dmatcher.group(2)));
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (tokenType == '[' && c == '[') {
+                    depth++;
+                } else if ((tokenType == '$' && c == '}')
+                        || (tokenType == '[' && c == ']' && depth-- == 0)) {
+                    if (tokenType == '$') {
+                        variables.add(extractVariableName(token.toString()));
+                    } else {
+                        parseDirective(token.toString(), variables,
+                                blackListedVariables);
                     }
+                    inToken = false;
+                    previous = 0;
+                    continue;
                 }
-            }
-        }
-
-        for (Pattern dPattern : assignMatchers) {
-            Matcher dmatcher = dPattern.matcher(content);
-            dmatcher.matches();
-            while (dmatcher.find()) {
-                if (dmatcher.groupCount() > 0) {
-                    String v = extractVariableName(dmatcher.group(1));
-                    blackListedVariables.add(extractVariableName(v));
+                token.append(c);
+                if (token.length() > MAX_TOKEN_LENGTH) {
+                    inToken = false;
+                    previous = 0;
                 }
             }
         }
 
         // remove internal variables
-        for (String bVar : blackListedVariables) {
-            variables.remove(bVar);
-        }
+        variables.removeAll(blackListedVariables);
 
         // remove reserved variables that don't need specific bindings
-        for (String bVar : FMContextBuilder.RESERVED_VAR_NAMES) {
-            variables.remove(bVar);
-        }
+        variables.removeAll(Arrays.asList(FMContextBuilder.RESERVED_VAR_NAMES));
 
-        return variables;
+        return new ArrayList<String>(variables);
+    }
+
+    /**
+     * Handles the content of a <code>[#...]</code> directive, without the
+     * brackets and the leading '#'.
+     */
+    protected static void parseDirective(String directive,
+            Set<String> variables, Set<String> blackListedVariables) {
+        int idx = 0;
+        while (idx < directive.length()
+                && Character.isLetter(directive.charAt(idx))) {
+            idx++;
+        }
+        if (idx == directive.length()
+                || !Character.isWhitespace(directive.charAt(idx))) {
+            return;
+        }
+        String name = directive.substring(0, idx);
+        String expression = directive.substring(idx + 1);
+        if ("if".equals(name)) {
+            variables.add(extractVariableName(expression));
+        } else if ("list".equals(name)) {
+            Matcher matcher = listSeparator.matcher(expression);
+            int start = -1;
+            int end = -1;
+            while (matcher.find()) {
+                start = matcher.start();
+                end = matcher.end();
+            }
+            if (start > 0) {
+                variables.add(extractVariableName(expression.substring(0,
+                        start)));
+                blackListedVariables.add(extractVariableName(expression.substring(end)));
+            }
+        } else if ("assign".equals(name)) {
+            int eq = expression.indexOf('=');
+            if (eq > 0) {
+                blackListedVariables.add(extractVariableName(expression.substring(
+                        0, eq)));
+            }
+        }
     }
 
 }
@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.fm;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.ClientRuntimeException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.audit.api.DocumentHistoryReader;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+
+/**
+ * Read only {@link List} of the audit entries of a document, fetched page by
+ * page when the entries are accessed. Nothing is queried until the list is
+ * used, iterating only fetches the pages that are actually read and the
+ * number of entries is capped.
+ * <p>
+ * Entries are preprocessed (comments and event ids translation) one page at a
+ * time. The list is meant to be used by a single rendering.
+ */
+public class LazyAuditEntries extends AbstractList<LogEntry> {
+
+    protected static final Log log = LogFactory.getLog(LazyAuditEntries.class);
+
+    public static final String PAGE_SIZE_PROPERTY = "org.nuxeo.template.audit.pageSize";
+
+    public static final String MAX_ENTRIES_PROPERTY = "org.nuxeo.template.audit.maxEntries";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    protected static final String LANG = "en";
+
+    protected final DocumentModel doc;
+
+    protected final DocumentHistoryReader historyReader;
+
+    // entries provided by unit tests when there is no audit service
+    protected final List<LogEntry> source;
+
+    protected final int pageSize;
+
+    protected final int maxEntries;
+
+    protected final List<LogEntry> loaded = new ArrayList<LogEntry>();
+
+    protected int fetchedPages = 0;
+
+    protected boolean complete = false;
+
+    public LazyAuditEntries(DocumentModel doc,
+            DocumentHistoryReader historyReader) {
+        this(doc, historyReader, null, getConfiguredPageSize(),
+                getConfiguredMaxEntries());
+    }
+
+    public LazyAuditEntries(DocumentModel doc, List<LogEntry> source) {
+        this(doc, null, source, getConfiguredPageSize(),
+                getConfiguredMaxEntries());
+    }
+
+    protected LazyAuditEntries(DocumentModel doc,
+            DocumentHistoryReader historyReader, List<LogEntry> source,
+            int pageSize, int maxEntries) {
+        this.doc = doc;
+        this.historyReader = historyReader;
+        this.source = source;
+        this.pageSize = Math.max(pageSize, 1);
+        this.maxEntries = maxEntries;
+    }
+
+    public static int getConfiguredPageSize() {
+        return TemplateCache.getConfiguredSize(PAGE_SIZE_PROPERTY,
+                DEFAULT_PAGE_SIZE);
+    }
+
+    public static int getConfiguredMaxEntries() {
+        return TemplateCache.getConfiguredSize(MAX_ENTRIES_PROPERTY,
+                DEFAULT_MAX_ENTRIES);
+    }
+
+    protected List<LogEntry> fetchPage(int pageIndex) throws ClientException {
+        if (historyReader != null) {
+            // pages are numbered from 0
+            return historyReader.getDocumentHistory(doc, pageIndex, pageSize);
+        }
+        int from = Math.min(pageIndex * pageSize, source.size());
+        int to = Math.min(from + pageSize, source.size());
+        return source.subList(from, to);
+    }
+
+    /**
+     * Fetches the next page, returns false when there are no more entries.
+     */
+    protected boolean fetchNextPage() {
+        if (complete) {
+            return false;
+        }
+        int room = maxEntries - loaded.size();
+        if (room <= 0) {
+            complete = true;
+            return false;
+        }
+        List<LogEntry> page;
+        try {
+            page = fetchPage(fetchedPages);
+        } catch (ClientException e) {
+            complete = true;
+            throw new ClientRuntimeException(
+                    "Unable to read audit entries of " + doc.getId(), e);
+        }
+        fetchedPages++;
+        if (page == null) {
+            page = Collections.emptyList();
+        }
+        if (page.size() < pageSize) {
+            complete = true;
+        }
+        if (page.size() >= room) {
+            if (page.size() > room) {
+                log.debug("Audit entries of " + doc.getId()
+                        + " truncated to " + maxEntries);
+            }
+            page = page.subList(0, room);
+            complete = true;
+        }
+        if (page.isEmpty()) {
+            return false;
+        }
+        page = new ArrayList<LogEntry>(page);
+        try {
+            FMContextBuilder.preprocessAuditEntries(page,
+                    doc.getCoreSession(), LANG);
+        } catch (Throwable e) {
+            log.warn("Unable to preprocess Audit entries : " + e.getMessage());
+        }
+        loaded.addAll(page);
+        return true;
+    }
+
+    public boolean isFetched() {
+        return fetchedPages > 0;
+    }
+
+    @Override
+    public LogEntry get(int index) {
+        while (index >= loaded.size() && fetchNextPage()) {
+            // fetch up to the requested entry
+        }
+        return loaded.get(index);
+    }
+
+    @Override
+    public int size() {
+        while (fetchNextPage()) {
+            // fetch all the entries
+        }
+        return loaded.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    @Override
+    public Iterator<LogEntry> iterator() {
+        return new Iterator<LogEntry>() {
+
+            protected int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (next >= loaded.size() && fetchNextPage()) {
+                    // fetch the next page when the loaded ones are read
+                }
+                return next < loaded.size();
+            }
+
+            @Override
+            public LogEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return loaded.get(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
@@ -27,7 +27,7 @@ public class TemplateDeletionGuard implements EventListener {
 
                 TemplateSourceDocument templateDoc = targetDoc.getAdapter(TemplateSourceDocument.class);
                 if (templateDoc != null && !Framework.isTestModeSet()) {
-                    if (templateDoc.getTemplateBasedDocuments().size() > 0) {
+                    if (templateDoc.hasTemplateBasedDocuments()) {
                         TransactionHelper.setTransactionRollbackOnly();
                         event.cancel();
                         // XXX should do better
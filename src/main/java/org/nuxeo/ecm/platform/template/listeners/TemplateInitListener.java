@@ -20,6 +20,8 @@ package org.nuxeo.ecm.platform.template.listeners;
 
 import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_CREATE;
 import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_UPDATED;
 
 import java.util.List;
 
@@ -44,7 +46,8 @@ import org.nuxeo.runtime.api.Framework;
  * Listener to manage initialization :
  *
  * <ul>
- *   <li> of the TemplateSourceDocument : init the parameters </li>
+ *   <li> of the TemplateSourceDocument : init the parameters, or mark the template as initializing when the
+ *   {@link org.nuxeo.ecm.platform.template.service.DeferredTemplateInit} is enabled </li>
  *   <li> of the other DocumentModels if they need to be automatically associated to a template </li>
  * </ul>
  *
@@ -59,6 +62,11 @@ public class TemplateInitListener implements EventListener {
 
         EventContext ctx = event.getContext();
 
+        if (DOCUMENT_CREATED.equals(event.getName()) || DOCUMENT_UPDATED.equals(event.getName())) {
+            handleDeferredInit(ctx);
+            return;
+        }
+
         if (ABOUT_TO_CREATE.equals(event.getName()) || BEFORE_DOC_UPDATE.equals(event.getName()) )
         {
             if (ctx instanceof DocumentEventContext) {
@@ -83,7 +91,16 @@ public class TemplateInitListener implements EventListener {
                     List<TemplateInput> params = templateDoc.getParams();
                     if (params==null || params.size()==0) {
                         try {
-                            templateDoc.initTemplate(false);
+                            TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+                            if (tps.isDeferredInit()) {
+                                // extracted after commit, see handleDeferredInit
+                                if (targetDoc.getContextData(TemplateSourceDocument.INIT_DONE_FLAG) == null
+                                        && templateDoc.getTemplateBlob() != null) {
+                                    templateDoc.setInitializing(true, false);
+                                }
+                            } else {
+                                templateDoc.initTemplate(false);
+                            }
                         } catch (Exception e) {
                             log.error("Error during parameter automatic initialization", e);
                         }
@@ -116,4 +133,24 @@ public class TemplateInitListener implements EventListener {
             }
         }
     }
+
+    /**
+     * Queues the parameters extraction of the templates marked as
+     * initializing, now that they have an id.
+     */
+    protected void handleDeferredInit(EventContext ctx) throws ClientException {
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+        DocumentModel targetDoc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (targetDoc.isVersion()) {
+            return;
+        }
+        TemplateSourceDocument templateDoc = targetDoc.getAdapter(TemplateSourceDocument.class);
+        if (templateDoc != null && templateDoc.isInitializing()) {
+            TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+            tps.scheduleInit(templateDoc);
+        }
+    }
+
 }
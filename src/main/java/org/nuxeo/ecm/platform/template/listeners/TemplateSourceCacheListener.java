@@ -0,0 +1,39 @@
+package org.nuxeo.ecm.platform.template.listeners;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocumentAdapterImpl;
+import org.nuxeo.ecm.platform.template.cache.TemplateSourceCache;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Drops modified or removed TemplateSource documents from the
+ * {@link TemplateSourceCache}.
+ */
+public class TemplateSourceCacheListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) throws ClientException {
+
+        if (!DocumentEventTypes.DOCUMENT_UPDATED.equals(event.getName())
+                && !DocumentEventTypes.DOCUMENT_REMOVED.equals(event.getName())) {
+            return;
+        }
+        EventContext ctx = event.getContext();
+        if (ctx instanceof DocumentEventContext) {
+            DocumentModel targetDoc = ((DocumentEventContext) ctx).getSourceDocument();
+            if (targetDoc != null
+                    && targetDoc.getId() != null
+                    && targetDoc.hasFacet(TemplateSourceDocumentAdapterImpl.TEMPLATE_FACET)) {
+                TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+                tps.getTemplateSourceCache().invalidate(targetDoc.getId());
+            }
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package org.nuxeo.ecm.platform.template.listeners;
 
 import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_REMOVED;
 import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_UPDATED;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.LifeCycleConstants;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventContext;
@@ -14,6 +16,7 @@ import org.nuxeo.ecm.core.event.PostCommitEventListener;
 import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.core.event.impl.ShallowDocumentModel;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocumentAdapterImpl;
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
 import org.nuxeo.runtime.api.Framework;
 
@@ -21,16 +24,24 @@ public class TemplateTypeBindingListener implements PostCommitEventListener {
 
     protected static Log log = LogFactory.getLog(TemplateTypeBindingListener.class);
 
+    protected static boolean isHandled(String eventName) {
+        return DOCUMENT_CREATED.equals(eventName)
+                || DOCUMENT_UPDATED.equals(eventName)
+                || DOCUMENT_REMOVED.equals(eventName)
+                || LifeCycleConstants.TRANSITION_EVENT.equals(eventName);
+    }
+
     @Override
     public void handleEvent(EventBundle eventBundle) throws ClientException {
         if (eventBundle.containsEventName(DOCUMENT_CREATED)
-                || eventBundle.containsEventName(DOCUMENT_UPDATED)) {
+                || eventBundle.containsEventName(DOCUMENT_UPDATED)
+                || eventBundle.containsEventName(DOCUMENT_REMOVED)
+                || eventBundle.containsEventName(LifeCycleConstants.TRANSITION_EVENT)) {
 
             TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
 
             for (Event event : eventBundle) {
-                if (DOCUMENT_CREATED.equals(event.getName())
-                        || DOCUMENT_UPDATED.equals(event.getName())) {
+                if (isHandled(event.getName())) {
                     EventContext ctx = event.getContext();
                     if (ctx instanceof DocumentEventContext) {
                         DocumentEventContext docCtx = (DocumentEventContext) ctx;
@@ -39,6 +50,12 @@ public class TemplateTypeBindingListener implements PostCommitEventListener {
                         if (targetDoc.isVersion()) {
                             continue;
                         }
+                        if (DOCUMENT_REMOVED.equals(event.getName())) {
+                            if (targetDoc.hasFacet(TemplateSourceDocumentAdapterImpl.TEMPLATE_FACET)) {
+                                tps.unregisterTypeMapping(targetDoc.getId());
+                            }
+                            continue;
+                        }
                         if (targetDoc instanceof ShallowDocumentModel) {
                             log.warn("Skip unconnected document with type "
                                     + targetDoc.getType() + " and path "
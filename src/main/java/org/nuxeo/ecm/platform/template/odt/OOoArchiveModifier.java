@@ -18,144 +18,135 @@
 
 package org.nuxeo.ecm.platform.template.odt;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
 
 import org.nuxeo.common.utils.FileUtils;
-import org.nuxeo.common.utils.ZipUtils;
 import org.nuxeo.ecm.core.api.Blob;
 
 /**
  *
  * Helper used to modify a ODT/Zip archive for addition Pictures
  * (and potentially fragments)
+ * <p>
+ * The archive is rewritten in a single pass by a {@link ZipArchiveRewriter} :
+ * the untouched entries are copied without recompression, the blobs are added
+ * as new entries and the manifest is patched while it is copied. Nothing is
+ * unzipped to disk.
+ *
  * @author Tiry (tdelprat@nuxeo.com)
  *
  */
 public class OOoArchiveModifier {
 
+    public static final String MIMETYPE_ENTRY = "mimetype";
+
+    public static final String MANIFEST_ENTRY = "META-INF/manifest.xml";
+
+    protected static final String MANIFEST_END_TAG = "</manifest:manifest>";
+
     public File updateArchive(File workingDir, File oooFile, List<Blob> blobs) throws Exception {
         if (blobs==null || blobs.size()==0) {
             return oooFile;
         }
 
-        File unzipDir = new File(workingDir, "unzip-" + oooFile.getName());
-        unzipDir.mkdirs();
-
-        ZipUtils.unzip(oooFile, unzipDir);
-
-        File pictureDirs = new File(unzipDir, "Pictures");
-        if (!pictureDirs.exists()) {
-            pictureDirs.mkdir();
-            pictureDirs = new File(unzipDir, "Pictures");
+        final Map<String, Blob> addedEntries = new LinkedHashMap<String, Blob>();
+        for (Blob blob : blobs) {
+            addedEntries.put(getEntryName(blob), blob);
         }
 
-        File contentDirs = new File(unzipDir, "Content");
-        if (!contentDirs.exists()) {
-            contentDirs.mkdir();
-            contentDirs = new File(unzipDir, "Content");
+        ZipArchiveRewriter rewriter = new ZipArchiveRewriter(oooFile);
+        for (Map.Entry<String, Blob> added : addedEntries.entrySet()) {
+            rewriter.put(added.getKey(), added.getValue());
         }
-
-        StringBuffer blobsManifest = new StringBuffer();
-        for (Blob blob : blobs) {
-            if (blob.getMimeType().startsWith("image")) {
-                FileUtils.copyToFile(blob.getStream(), new File(pictureDirs, blob.getFilename()));
-            } else {
-                FileUtils.copyToFile(blob.getStream(), new File(contentDirs, blob.getFilename()));
+        rewriter.replace(MANIFEST_ENTRY, new ZipArchiveRewriter.EntryWriter() {
+            @Override
+            public void write(InputStream original, OutputStream out)
+                    throws IOException {
+                writeManifest(original, out, addedEntries);
             }
+        });
 
-            blobsManifest.append("<manifest:file-entry manifest:media-type=\"");
-            blobsManifest.append(blob.getMimeType());
-            if (blob.getMimeType().startsWith("image")) {
-               blobsManifest.append("\" manifest:full-path=\"Pictures/");
-            } else {
-                blobsManifest.append("\" manifest:full-path=\"Content/");
-            }
-            blobsManifest.append(blob.getFilename());
-            blobsManifest.append("\"/>\n");
+        File updated = File.createTempFile("update-", "-" + oooFile.getName(),
+                workingDir);
+        try {
+            rewriter.writeTo(updated);
+        } catch (IOException e) {
+            updated.delete();
+            throw e;
         }
 
-        File xmlManifestFile = new File (unzipDir.getPath() + "/META-INF/manifest.xml");
-        String xmlManifest = FileUtils.readFile(xmlManifestFile);
-        int idx = xmlManifest.indexOf("</manifest:manifest>");
-        xmlManifest = xmlManifest.substring(0,idx) + blobsManifest.toString() + xmlManifest.substring(idx);
-        FileUtils.writeFile(xmlManifestFile, xmlManifest.getBytes());
-
-        String path = oooFile.getAbsolutePath();
-
-        oooFile.delete();
-
-        oooFile = new File(path);
-        oooFile.createNewFile();
-
-        //ZipUtils.zip(unzipDir.listFiles(), oooFile);
-        mkOOoZip(unzipDir, oooFile);
-
-        FileUtils.deleteTree(unzipDir);
-
+        if (!oooFile.delete() || !updated.renameTo(oooFile)) {
+            updated.delete();
+            throw new IOException("Unable to replace " + oooFile);
+        }
         return oooFile;
-
     }
 
-    protected void mkOOoZip(File directory, File outFile) throws Exception {
-
-        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(outFile));
-
-        File manif = new File(directory, "mimetype");
-        writeOOoEntry(zipOutputStream, manif.getName(), manif, ZipEntry.STORED);
-
-        for (File fileEntry : directory.listFiles()) {
-            if (!fileEntry.getName().equals(manif.getName())) {
-                writeOOoEntry(zipOutputStream, fileEntry.getName(), fileEntry, ZipEntry.DEFLATED);
-            }
+    protected String getEntryName(Blob blob) {
+        if (isPicture(blob)) {
+            return "Pictures/" + blob.getFilename();
+        } else {
+            return "Content/" + blob.getFilename();
         }
+    }
 
-        zipOutputStream.close();
+    protected boolean isPicture(Blob blob) {
+        return blob.getMimeType() != null
+                && blob.getMimeType().startsWith("image");
     }
 
-    protected void writeOOoEntry(ZipOutputStream zipOutputStream, String entryName, File fileEntry, int zipMethod) throws Exception {
+    protected void writeManifest(InputStream original, OutputStream out,
+            Map<String, Blob> addedEntries) throws IOException {
+        String xmlManifest = new String(FileUtils.readBytes(original), "UTF-8");
 
-        if (fileEntry.isDirectory()) {
-            entryName = entryName + "/";
-            ZipEntry zentry = new ZipEntry(entryName);
-            zipOutputStream.putNextEntry(zentry);
-            zipOutputStream.closeEntry();
-            for (File child : fileEntry.listFiles()) {
-                writeOOoEntry(zipOutputStream, entryName + child.getName(), child, zipMethod);
-            }
-            return;
+        StringBuilder blobsManifest = new StringBuilder();
+        for (Map.Entry<String, Blob> added : addedEntries.entrySet()) {
+            blobsManifest.append("<manifest:file-entry manifest:media-type=\"");
+            blobsManifest.append(escape(added.getValue().getMimeType()));
+            blobsManifest.append("\" manifest:full-path=\"");
+            blobsManifest.append(escape(added.getKey()));
+            blobsManifest.append("\"/>\n");
         }
 
-        ZipEntry zipEntry = new ZipEntry(entryName);
-        InputStream entryInputStream = new FileInputStream(fileEntry);
-        zipEntry.setMethod(zipMethod);
-        if (zipMethod == ZipEntry.STORED) {
-            byte[] inputBytes = FileUtils.readBytes(entryInputStream);
-            CRC32 crc = new CRC32();
-            crc.update(inputBytes);
-            zipEntry.setCrc(crc.getValue());
-            zipEntry.setSize(inputBytes.length);
-            zipEntry.setCompressedSize(inputBytes.length);
-            zipOutputStream.putNextEntry(zipEntry);
-            FileUtils.copy(new ByteArrayInputStream(inputBytes), zipOutputStream);
-        } else {
-            zipOutputStream.putNextEntry(zipEntry);
-            FileUtils.copy(entryInputStream, zipOutputStream);
+        int idx = xmlManifest.lastIndexOf(MANIFEST_END_TAG);
+        if (idx >= 0) {
+            xmlManifest = xmlManifest.substring(0, idx)
+                    + blobsManifest.toString() + xmlManifest.substring(idx);
         }
-        try {
-            entryInputStream.close();
-        } catch (IOException e) {
-            // NOP
+        out.write(xmlManifest.getBytes("UTF-8"));
+    }
+
+    protected static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            default:
+                sb.append(c);
+            }
         }
-        zipOutputStream.closeEntry();
+        return sb.toString();
     }
 
 }
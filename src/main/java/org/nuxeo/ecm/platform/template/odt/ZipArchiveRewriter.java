@@ -0,0 +1,550 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.odt;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Rewrites a ZIP based document (ODT, DOCX...) into a new archive, copying
+ * the unchanged entries as raw bytes : they are neither inflated nor
+ * deflated again, only the replaced and added entries are compressed.
+ * <p>
+ * The order and the metadata of the copied entries are kept, so a STORED
+ * mimetype entry stays first and uncompressed. Replaced entries keep their
+ * position in the archive, added entries are written at the end.
+ * <p>
+ * ZIP64 archives are not supported.
+ */
+public class ZipArchiveRewriter {
+
+    /**
+     * Provides the content of a replaced or added entry.
+     */
+    public interface EntryWriter {
+
+        /**
+         * Writes the new content of the entry to out, which must not be
+         * closed.
+         *
+         * @param original the content of the replaced entry, null for an
+         *            added entry
+         */
+        void write(InputStream original, OutputStream out) throws IOException;
+    }
+
+    protected static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    protected static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+    protected static final int END_SIG = 0x06054b50;
+
+    protected static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+
+    protected static final int LOCAL_HEADER_SIZE = 30;
+
+    protected static final int CENTRAL_HEADER_SIZE = 46;
+
+    protected static final int END_SIZE = 22;
+
+    protected static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    protected static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+    protected static final int FLAG_UTF8 = 0x800;
+
+    protected static final int VERSION = 20;
+
+    protected static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    protected static final int BUFFER_SIZE = 1024 * 64; // 64K
+
+    protected final File source;
+
+    protected final Map<String, EntryWriter> writers = new LinkedHashMap<String, EntryWriter>();
+
+    protected final Set<String> removed = new HashSet<String>();
+
+    // entries that are not added when missing from the source archive
+    protected final Set<String> replaceOnly = new HashSet<String>();
+
+    protected int copiedEntries;
+
+    protected int compressedEntries;
+
+    /**
+     * An entry of the central directory of the source archive.
+     */
+    protected static class CentralEntry {
+
+        protected final byte[] header;
+
+        protected final String name;
+
+        protected CentralEntry(byte[] header, String name) {
+            this.header = header;
+            this.name = name;
+        }
+
+        protected int getFlags() {
+            return readShort(header, 8);
+        }
+
+        protected long getDosTime() {
+            return readInt(header, 12);
+        }
+
+        protected long getCompressedSize() {
+            return readInt(header, 20);
+        }
+
+        protected long getLocalHeaderOffset() {
+            return readInt(header, 42);
+        }
+    }
+
+    /**
+     * Counts the bytes written to the target archive.
+     */
+    protected static class ArchiveOutputStream extends FilterOutputStream {
+
+        protected long written;
+
+        protected ArchiveOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Stream given to the {@link EntryWriter}s, closing it does not close
+     * the archive.
+     */
+    protected static class EntryOutputStream extends FilterOutputStream {
+
+        protected EntryOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    public ZipArchiveRewriter(File source) {
+        this.source = source;
+    }
+
+    /**
+     * Replaces the content of the given entry, the entry is added if it does
+     * not exist in the source archive.
+     */
+    public ZipArchiveRewriter rewrite(String name, EntryWriter writer) {
+        writers.put(name, writer);
+        removed.remove(name);
+        replaceOnly.remove(name);
+        return this;
+    }
+
+    /**
+     * Replaces the content of the given entry if it exists in the source
+     * archive.
+     */
+    public ZipArchiveRewriter replace(String name, EntryWriter writer) {
+        rewrite(name, writer);
+        replaceOnly.add(name);
+        return this;
+    }
+
+    public ZipArchiveRewriter put(String name, final byte[] content) {
+        return rewrite(name, new EntryWriter() {
+            @Override
+            public void write(InputStream original, OutputStream out)
+                    throws IOException {
+                out.write(content);
+            }
+        });
+    }
+
+    public ZipArchiveRewriter put(String name, final Blob blob) {
+        return rewrite(name, new EntryWriter() {
+            @Override
+            public void write(InputStream original, OutputStream out)
+                    throws IOException {
+                copy(blob.getStream(), out);
+            }
+        });
+    }
+
+    public ZipArchiveRewriter remove(String name) {
+        writers.remove(name);
+        replaceOnly.remove(name);
+        removed.add(name);
+        return this;
+    }
+
+    /**
+     * Returns the number of entries copied without recompression by the last
+     * write.
+     */
+    public int getCopiedEntries() {
+        return copiedEntries;
+    }
+
+    /**
+     * Returns the number of entries compressed by the last write.
+     */
+    public int getCompressedEntries() {
+        return compressedEntries;
+    }
+
+    public void writeTo(File target) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                target), BUFFER_SIZE);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the new archive to the given stream, which is flushed but not
+     * closed.
+     */
+    public void writeTo(OutputStream target) throws IOException {
+        copiedEntries = 0;
+        compressedEntries = 0;
+        ArchiveOutputStream out = new ArchiveOutputStream(target);
+        List<byte[]> centralDirectory = new ArrayList<byte[]>();
+        Set<String> written = new HashSet<String>();
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        ZipFile zip = null;
+        try {
+            for (CentralEntry entry : readCentralDirectory(raf)) {
+                if (removed.contains(entry.name)) {
+                    continue;
+                }
+                EntryWriter writer = writers.get(entry.name);
+                if (writer == null) {
+                    centralDirectory.add(copyEntry(raf, entry, out));
+                } else {
+                    if (zip == null) {
+                        zip = new ZipFile(source);
+                    }
+                    ZipEntry original = zip.getEntry(entry.name);
+                    InputStream in = original != null ? zip.getInputStream(original)
+                            : null;
+                    try {
+                        centralDirectory.add(writeEntry(entry.name,
+                                entry.getDosTime(), writer, in, out));
+                    } finally {
+                        if (in != null) {
+                            in.close();
+                        }
+                    }
+                    written.add(entry.name);
+                }
+            }
+        } finally {
+            raf.close();
+            if (zip != null) {
+                zip.close();
+            }
+        }
+        long now = toDosTime(System.currentTimeMillis());
+        for (Map.Entry<String, EntryWriter> added : writers.entrySet()) {
+            if (!written.contains(added.getKey())
+                    && !replaceOnly.contains(added.getKey())) {
+                centralDirectory.add(writeEntry(added.getKey(), now,
+                        added.getValue(), null, out));
+            }
+        }
+        writeCentralDirectory(centralDirectory, out);
+        out.flush();
+    }
+
+    protected List<CentralEntry> readCentralDirectory(RandomAccessFile raf)
+            throws IOException {
+        byte[] end = readEndOfCentralDirectory(raf);
+        int count = readShort(end, 10);
+        long size = readInt(end, 12);
+        long offset = readInt(end, 16);
+        if (count == 0xFFFF || size == MAX_SIZE || offset == MAX_SIZE) {
+            throw new ZipException("ZIP64 archives are not supported : "
+                    + source);
+        }
+        byte[] directory = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(directory);
+
+        List<CentralEntry> entries = new ArrayList<CentralEntry>(count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > directory.length
+                    || readInt(directory, pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Invalid central directory : " + source);
+            }
+            int nameLength = readShort(directory, pos + 28);
+            int length = CENTRAL_HEADER_SIZE + nameLength
+                    + readShort(directory, pos + 30)
+                    + readShort(directory, pos + 32);
+            byte[] header = new byte[length];
+            System.arraycopy(directory, pos, header, 0, length);
+            String name = new String(header, CENTRAL_HEADER_SIZE, nameLength,
+                    "UTF-8");
+            entries.add(new CentralEntry(header, name));
+            pos += length;
+        }
+        return entries;
+    }
+
+    protected byte[] readEndOfCentralDirectory(RandomAccessFile raf)
+            throws IOException {
+        long length = raf.length();
+        int tail = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] buffer = new byte[tail];
+        raf.seek(length - tail);
+        raf.readFully(buffer);
+        for (int pos = tail - END_SIZE; pos >= 0; pos--) {
+            if (readInt(buffer, pos) == END_SIG) {
+                byte[] end = new byte[END_SIZE];
+                System.arraycopy(buffer, pos, end, 0, END_SIZE);
+                return end;
+            }
+        }
+        throw new ZipException("Not a ZIP archive : " + source);
+    }
+
+    /**
+     * Copies the local header, the compressed data and the data descriptor of
+     * the entry, and returns its central directory header.
+     */
+    protected byte[] copyEntry(RandomAccessFile raf, CentralEntry entry,
+            ArchiveOutputStream out) throws IOException {
+        long offset = entry.getLocalHeaderOffset();
+        byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+        raf.seek(offset);
+        raf.readFully(localHeader);
+        if (readInt(localHeader, 0) != LOCAL_HEADER_SIG) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        long length = LOCAL_HEADER_SIZE + readShort(localHeader, 26)
+                + readShort(localHeader, 28) + entry.getCompressedSize();
+        if ((entry.getFlags() & FLAG_DATA_DESCRIPTOR) != 0) {
+            byte[] signature = new byte[4];
+            raf.seek(offset + length);
+            raf.readFully(signature);
+            // the signature of the data descriptor is optional
+            length += readInt(signature, 0) == DATA_DESCRIPTOR_SIG ? 16 : 12;
+        }
+
+        long newOffset = out.written;
+        raf.seek(offset);
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = (int) Math.min(buffer.length, remaining);
+            raf.readFully(buffer, 0, read);
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        copiedEntries++;
+
+        byte[] header = entry.header.clone();
+        writeInt(header, 42, newOffset);
+        return header;
+    }
+
+    /**
+     * Writes a deflated entry with the content provided by the writer, and
+     * returns its central directory header. The sizes and CRC follow the data
+     * in a data descriptor, so that the content is never buffered.
+     */
+    protected byte[] writeEntry(String name, long dosTime, EntryWriter writer,
+            InputStream original, ArchiveOutputStream out) throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+        long offset = out.written;
+
+        byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+        writeInt(localHeader, 0, LOCAL_HEADER_SIG);
+        writeShort(localHeader, 4, VERSION);
+        writeShort(localHeader, 6, flags);
+        writeShort(localHeader, 8, ZipEntry.DEFLATED);
+        writeInt(localHeader, 10, dosTime);
+        // crc and sizes are in the data descriptor
+        writeShort(localHeader, 26, nameBytes.length);
+        out.write(localHeader);
+        out.write(nameBytes);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        long size;
+        long compressedSize;
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(
+                    new EntryOutputStream(out), deflater, BUFFER_SIZE);
+            OutputStream entryOut = new EntryOutputStream(
+                    new CheckedOutputStream(deflated, crc));
+            writer.write(original, entryOut);
+            entryOut.flush();
+            deflated.finish();
+            size = deflater.getBytesRead();
+            compressedSize = deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+        if (size > MAX_SIZE || compressedSize > MAX_SIZE) {
+            throw new ZipException("Entry too large : " + name);
+        }
+        compressedEntries++;
+
+        byte[] descriptor = new byte[16];
+        writeInt(descriptor, 0, DATA_DESCRIPTOR_SIG);
+        writeInt(descriptor, 4, crc.getValue());
+        writeInt(descriptor, 8, compressedSize);
+        writeInt(descriptor, 12, size);
+        out.write(descriptor);
+
+        byte[] header = new byte[CENTRAL_HEADER_SIZE + nameBytes.length];
+        writeInt(header, 0, CENTRAL_HEADER_SIG);
+        writeShort(header, 4, VERSION);
+        writeShort(header, 6, VERSION);
+        writeShort(header, 8, flags);
+        writeShort(header, 10, ZipEntry.DEFLATED);
+        writeInt(header, 12, dosTime);
+        writeInt(header, 16, crc.getValue());
+        writeInt(header, 20, compressedSize);
+        writeInt(header, 24, size);
+        writeShort(header, 28, nameBytes.length);
+        writeInt(header, 42, offset);
+        System.arraycopy(nameBytes, 0, header, CENTRAL_HEADER_SIZE,
+                nameBytes.length);
+        return header;
+    }
+
+    protected void writeCentralDirectory(List<byte[]> headers,
+            ArchiveOutputStream out) throws IOException {
+        if (headers.size() >= 0xFFFF) {
+            throw new ZipException("Too many entries : " + headers.size());
+        }
+        long offset = out.written;
+        for (byte[] header : headers) {
+            out.write(header);
+        }
+        long size = out.written - offset;
+        if (offset > MAX_SIZE) {
+            throw new ZipException("Archive too large");
+        }
+        byte[] end = new byte[END_SIZE];
+        writeInt(end, 0, END_SIG);
+        writeShort(end, 8, headers.size());
+        writeShort(end, 10, headers.size());
+        writeInt(end, 12, size);
+        writeInt(end, 16, offset);
+        out.write(end);
+    }
+
+    protected static long toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25)
+                | ((cal.get(Calendar.MONTH) + 1) << 21)
+                | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+                | (cal.get(Calendar.HOUR_OF_DAY) << 11)
+                | (cal.get(Calendar.MINUTE) << 5)
+                | (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    protected static int readShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    protected static long readInt(byte[] b, int off) {
+        return (readShort(b, off) | ((long) readShort(b, off + 2) << 16)) & MAX_SIZE;
+    }
+
+    protected static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    protected static void writeInt(byte[] b, int off, long value) {
+        writeShort(b, off, (int) (value & 0xFFFF));
+        writeShort(b, off + 2, (int) ((value >>> 16) & 0xFFFF));
+    }
+
+    protected static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -28,11 +28,15 @@ import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
 
 /**
  * Common code between the implementations of {@link TemplateProcessor}
+ * <p>
+ * The lifecycle callbacks do nothing by default, processors keeping prepared
+ * templates override them.
  * 
  * @author Tiry (tdelprat@nuxeo.com)
  * 
  */
-public abstract class AbstractTemplateProcessor implements TemplateProcessor {
+public abstract class AbstractTemplateProcessor implements
+        LifecycleAwareTemplateProcessor {
 
     protected static final int BUFFER_SIZE = 1024 * 64; // 64K
 
@@ -57,4 +61,21 @@ public abstract class AbstractTemplateProcessor implements TemplateProcessor {
         return sourceTemplateBlob;
     }
 
+    @Override
+    public void init() throws Exception {
+        // NOP
+    }
+
+    @Override
+    public boolean warmUp(TemplateSourceDocument templateSource)
+            throws Exception {
+        // nothing is prepared by default
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+        // NOP
+    }
+
 }
@@ -0,0 +1,33 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.processors;
+
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+
+/**
+ * Interface for {@link TemplateProcessor} that keep prepared templates in a
+ * {@link TemplateCache}. The cache entries are invalidated when the template
+ * blob of a TemplateSource is replaced.
+ */
+public interface CacheableTemplateProcessor extends TemplateProcessor {
+
+    public void invalidateCache(String templateDigest);
+
+    public TemplateCache<?> getCache();
+}
@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.processors;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Interface for {@link TemplateProcessor} able to tell if the result of a
+ * rendering only depends on the document and on the template. Only the
+ * results of such processors are kept in the
+ * {@link org.nuxeo.ecm.platform.template.cache.RenderCache}.
+ */
+public interface ContextAwareTemplateProcessor extends TemplateProcessor {
+
+    /**
+     * Returns true if the template uses context values that depend on the
+     * time or on the current user, like the username or the audit entries.
+     */
+    public boolean isContextDependent(Blob templateBlob) throws Exception;
+
+}
@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.processors;
+
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+
+/**
+ * Interface for {@link TemplateProcessor} that need to be notified of their
+ * lifecycle.
+ * <p>
+ * A single instance is created for each registered processor and shared by
+ * all the rendering threads, so implementations must be thread safe. The
+ * instance is initialized once before being used, can be asked to prepare
+ * templates ahead of their first rendering, and is shut down when its
+ * contribution is removed or replaced.
+ */
+public interface LifecycleAwareTemplateProcessor extends TemplateProcessor {
+
+    /**
+     * Called once, before the processor is used for rendering.
+     */
+    public void init() throws Exception;
+
+    /**
+     * Prepares the template provided by the given source (parsing,
+     * compilation...) so that its first rendering does not pay for it.
+     *
+     * @return true if something was prepared, false if the processor has
+     *         nothing to prepare for this template
+     */
+    public boolean warmUp(TemplateSourceDocument templateSource)
+            throws Exception;
+
+    /**
+     * Called when the processor is no longer used : releases the prepared
+     * templates and any other resource held by the instance.
+     */
+    public void shutdown();
+
+}
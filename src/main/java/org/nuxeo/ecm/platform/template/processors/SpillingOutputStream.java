@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.processors;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * {@link OutputStream} that keeps the rendering result in memory until it
+ * reaches a given size, and then spills it to a temporary file. Used to avoid
+ * holding big rendering results in the heap.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    protected final long threshold;
+
+    protected ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    protected File file;
+
+    protected OutputStream out;
+
+    protected long written = 0;
+
+    public SpillingOutputStream(long threshold) {
+        this.threshold = threshold;
+        out = memory;
+    }
+
+    protected void checkThreshold(int len) throws IOException {
+        if (file == null && written + len > threshold) {
+            file = File.createTempFile("NXTemplateResult", ".tmp");
+            OutputStream fileOut = new BufferedOutputStream(
+                    new FileOutputStream(file), AbstractTemplateProcessor.BUFFER_SIZE);
+            memory.writeTo(fileOut);
+            memory = null;
+            out = fileOut;
+        }
+        written += len;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkThreshold(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkThreshold(len);
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Drops the written data. Must be called when {@link #getBlob(String)}
+     * won't be, i.e. on failure, so that a spilled temporary file is not
+     * left on disk.
+     */
+    public void discard() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing to do, the data is dropped anyway
+        }
+        memory = null;
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Returns the written data as a {@link Blob}. When the data was spilled
+     * to disk, the temporary file is tracked so that it is deleted when the
+     * Blob is garbage collected.
+     */
+    public Blob getBlob(String mimeType) throws IOException {
+        close();
+        if (isInMemory()) {
+            return new ByteArrayBlob(memory.toByteArray(), mimeType);
+        }
+        Blob blob = new FileBlob(file);
+        blob.setMimeType(mimeType);
+        Framework.trackFile(file, blob);
+        return blob;
+    }
+
+}
@@ -19,20 +19,27 @@
 package org.nuxeo.ecm.platform.template.processors.docx;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.tree.DefaultElement;
-import org.nuxeo.common.utils.FileUtils;
-import org.nuxeo.common.utils.ZipUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
@@ -40,8 +47,11 @@ import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.platform.template.InputType;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.odt.ZipArchiveRewriter;
 import org.nuxeo.ecm.platform.template.processors.AbstractTemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.BidirectionalTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.xdocreport.ZipXmlHelper;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * WordXML implementation of the {@link BidirectionalTemplateProcessor}. Uses
@@ -53,88 +63,239 @@ import org.nuxeo.ecm.platform.template.processors.BidirectionalTemplateProcessor
 public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
         implements BidirectionalTemplateProcessor {
 
+    public static final String WORD_XML_DATE_FORMAT = "yyyy-MM-dd'T'hh:mm:ss'Z'";
+
+    /**
+     * @deprecated {@link SimpleDateFormat} is not thread safe and the
+     *             processor instance is shared, use
+     *             {@link #getWordXMLDateFormat()}
+     */
+    @Deprecated
     public static SimpleDateFormat wordXMLDateFormat = new SimpleDateFormat(
-            "yyyy-MM-dd'T'hh:mm:ss'Z'");
+            WORD_XML_DATE_FORMAT);
+
+    protected static final ThreadLocal<SimpleDateFormat> wordXMLDateFormats = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(WORD_XML_DATE_FORMAT);
+        }
+    };
+
+    public static SimpleDateFormat getWordXMLDateFormat() {
+        return wordXMLDateFormats.get();
+    }
 
     public static final String TEMPLATE_TYPE = "wordXMLTemplate";
 
-    @SuppressWarnings("rawtypes")
+    public static final String CUSTOM_PROPERTIES_ENTRY = "docProps/custom.xml";
+
+    protected final XMLInputFactory inputFactory;
+
+    protected final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    public WordXMLRawTemplateProcessor() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+                Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Renders the template by rewriting the custom properties of the archive,
+     * all the other entries are copied as is.
+     */
     public Blob renderTemplate(TemplateBasedDocument templateDocument,
             String templateName) throws Exception {
 
-        File workingDir = getWorkingDir();
-
         Blob blob = templateDocument.getTemplateBlob(templateName);
         String fileName = blob.getFilename();
         List<TemplateInput> params = templateDocument.getParams(templateName);
-        File sourceZipFile = File.createTempFile("WordXMLTemplate", ".zip");
-        blob.transferTo(sourceZipFile);
 
-        ZipUtils.unzip(sourceZipFile, workingDir);
+        final Map<String, String> values = new HashMap<String, String>();
+        for (TemplateInput param : params) {
+            values.put(param.getName(), getPropertyValue(templateDocument,
+                    param));
+        }
 
-        File xmlCustomFile = new File(workingDir.getAbsolutePath()
-                + "/docProps/custom.xml");
+        File sourceZipFile = null;
+        File source = null;
+        if (blob instanceof FileBlob) {
+            source = ((FileBlob) blob).getFile();
+        }
+        if (source == null) {
+            sourceZipFile = File.createTempFile("WordXMLTemplate", ".zip");
+            blob.transferTo(sourceZipFile);
+            source = sourceZipFile;
+        }
 
-        String xmlContent = FileUtils.readFile(xmlCustomFile);
+        File newZipFile = File.createTempFile("newWordXMLTemplate", ".docx");
+        try {
+            new ZipArchiveRewriter(source).replace(CUSTOM_PROPERTIES_ENTRY,
+                    new ZipArchiveRewriter.EntryWriter() {
+                        @Override
+                        public void write(InputStream original,
+                                OutputStream out) throws IOException {
+                            writeCustomProperties(original, out, values);
+                        }
+                    }).writeTo(newZipFile);
+        } catch (IOException e) {
+            newZipFile.delete();
+            throw e;
+        } finally {
+            if (sourceZipFile != null) {
+                sourceZipFile.delete();
+            }
+        }
 
-        Document xmlDoc = DocumentHelper.parseText(xmlContent);
+        Blob newBlob = new FileBlob(newZipFile);
+        newBlob.setFilename(fileName);
+        // mark the file for automatic deletion on GC
+        Framework.trackFile(newZipFile, newBlob);
+        return newBlob;
+    }
 
-        List nodes = xmlDoc.getRootElement().elements();
+    protected String getPropertyValue(TemplateBasedDocument templateDocument,
+            TemplateInput param) throws Exception {
+        String strValue = null;
+        if (param.isSourceValue()) {
+            Property property = templateDocument.getAdaptedDoc().getProperty(
+                    param.getSource());
+            if (property != null) {
+                Serializable value = templateDocument.getAdaptedDoc().getPropertyValue(
+                        param.getSource());
+                if (value instanceof Date) {
+                    strValue = getWordXMLDateFormat().format((Date) value);
+                } else if (value != null) {
+                    strValue = value.toString();
+                }
+            }
+        } else {
+            if (InputType.StringValue.equals(param.getType())) {
+                strValue = param.getStringValue();
+            } else if (InputType.BooleanValue.equals(param.getType())) {
+                strValue = String.valueOf(param.getBooleanValue());
+            } else if (InputType.DateValue.equals(param.getType())
+                    && param.getDateValue() != null) {
+                strValue = getWordXMLDateFormat().format(param.getDateValue());
+            }
+        }
+        return strValue != null ? strValue : "";
+    }
 
-        for (Object node : nodes) {
-            DefaultElement elem = (DefaultElement) node;
-            if ("property".equals(elem.getName())) {
-                String name = elem.attributeValue("name");
-                TemplateInput param = getParamByName(name, params);
-                DefaultElement valueElem = (DefaultElement) elem.elements().get(
-                        0);
-                String strValue = "";
-                if (param.isSourceValue()) {
-                    Property property = templateDocument.getAdaptedDoc().getProperty(
-                            param.getSource());
-                    if (property != null) {
-                        Serializable value = templateDocument.getAdaptedDoc().getPropertyValue(
-                                param.getSource());
-                        if (value != null) {
-                            if (value instanceof Date) {
-                                strValue = wordXMLDateFormat.format((Date) value);
-                            } else {
-                                strValue = value.toString();
+    /**
+     * Copies the custom properties XML, replacing the value of each property
+     * that has a parameter with the same name. The value is the first child
+     * element of the property. The cursor API is used so that the attributes
+     * keep their original order.
+     */
+    protected void writeCustomProperties(InputStream original,
+            OutputStream out, Map<String, String> values) throws IOException {
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(original);
+            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out,
+                    "UTF-8");
+            int depth = 0;
+            // depth of the value element being replaced, 0 if none
+            int replacedDepth = 0;
+            String value = null;
+            String version = reader.getVersion();
+            writer.writeStartDocument("UTF-8", version == null ? "1.0"
+                    : version);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (replacedDepth > 0) {
+                        break;
+                    }
+                    copyStartElement(reader, writer);
+                    if (depth == 2) {
+                        value = null;
+                        if ("property".equals(reader.getLocalName())) {
+                            String name = reader.getAttributeValue(null, "name");
+                            if (name != null) {
+                                value = values.get(name);
                             }
                         }
+                    } else if (depth == 3 && value != null) {
+                        writer.writeCharacters(value);
+                        value = null;
+                        replacedDepth = depth;
                     }
-                } else {
-                    if (InputType.StringValue.equals(param.getType())) {
-                        strValue = param.getStringValue();
-                    } else if (InputType.BooleanValue.equals(param.getType())) {
-                        strValue = param.getBooleanValue().toString();
-                    } else if (InputType.DateValue.equals(param.getType())) {
-                        strValue = wordXMLDateFormat.format(param.getDateValue());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (replacedDepth == 0 || depth == replacedDepth) {
+                        replacedDepth = 0;
+                        writer.writeEndElement();
+                    }
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (replacedDepth == 0) {
+                        writer.writeCharacters(reader.getTextCharacters(),
+                                reader.getTextStart(), reader.getTextLength());
                     }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    if (replacedDepth == 0) {
+                        writer.writeCData(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (replacedDepth == 0) {
+                        writer.writeComment(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(),
+                            reader.getPIData());
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    writer.writeEndDocument();
+                    break;
+                default:
+                    break;
                 }
-                valueElem.setText(strValue);
             }
+            writer.flush();
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to rewrite "
+                    + CUSTOM_PROPERTIES_ENTRY, e);
         }
+    }
 
-        String newXMLContent = xmlDoc.asXML();
-
-        File newZipFile = File.createTempFile("newWordXMLTemplate", ".docx");
-        xmlCustomFile.delete();
-        File newXMLFile = new File(xmlCustomFile.getAbsolutePath());
-        FileUtils.writeFile(newXMLFile, newXMLContent);
-
-        File[] files = workingDir.listFiles();
-        ZipUtils.zip(files, newZipFile);
-
-        // clean up
-        FileUtils.deleteTree(workingDir);
-        sourceZipFile.delete();
-        newZipFile.deleteOnExit();
-
-        Blob newBlob = new FileBlob(newZipFile);
-        newBlob.setFilename(fileName);
-
-        return newBlob;
+    protected void copyStartElement(XMLStreamReader reader,
+            XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = reader.getPrefix();
+        String namespace = reader.getNamespaceURI();
+        writer.writeStartElement(prefix == null ? "" : prefix,
+                reader.getLocalName(), namespace == null ? "" : namespace);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String nsPrefix = reader.getNamespacePrefix(i);
+            if (nsPrefix == null || nsPrefix.length() == 0) {
+                writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+            } else {
+                writer.writeNamespace(nsPrefix, reader.getNamespaceURI(i));
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attPrefix = reader.getAttributePrefix(i);
+            String attNamespace = reader.getAttributeNamespace(i);
+            if (attNamespace == null || attNamespace.length() == 0) {
+                writer.writeAttribute(reader.getAttributeLocalName(i),
+                        reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(attPrefix == null ? "" : attPrefix,
+                        attNamespace, reader.getAttributeLocalName(i),
+                        reader.getAttributeValue(i));
+            }
+        }
     }
 
     @SuppressWarnings("rawtypes")
@@ -142,7 +303,7 @@ public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
             throws Exception {
         List<TemplateInput> params = new ArrayList<TemplateInput>();
 
-        String xmlContent = readPropertyFile(blob.getStream());
+        String xmlContent = readPropertyFile(blob);
 
         Document xmlDoc = DocumentHelper.parseText(xmlContent);
 
@@ -183,24 +344,15 @@ public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
     }
 
     public String readPropertyFile(InputStream in) throws Exception {
-        ZipInputStream zIn = new ZipInputStream(in);
-        ZipEntry zipEntry = zIn.getNextEntry();
-        String xmlContent = null;
-        while (zipEntry != null) {
-            if (zipEntry.getName().equals("docProps/custom.xml")) {
-                StringBuilder sb = new StringBuilder();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int read;
-                while ((read = zIn.read(buffer)) != -1) {
-                    sb.append(new String(buffer, 0, read));
-                }
-                xmlContent = sb.toString();
-                break;
-            }
-            zipEntry = zIn.getNextEntry();
+        try {
+            return ZipXmlHelper.readXMLContent(in, CUSTOM_PROPERTIES_ENTRY);
+        } finally {
+            in.close();
         }
-        zIn.close();
-        return xmlContent;
+    }
+
+    protected String readPropertyFile(Blob blob) throws Exception {
+        return ZipXmlHelper.readXMLContent(blob, CUSTOM_PROPERTIES_ENTRY);
     }
 
     @SuppressWarnings("rawtypes")
@@ -210,7 +362,7 @@ public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
 
         Blob blob = templateDocument.getTemplateBlob(templateName);
 
-        String xmlContent = readPropertyFile(blob.getStream());
+        String xmlContent = readPropertyFile(blob);
 
         if (xmlContent == null) {
             return templateDocument.getAdaptedDoc();
@@ -242,7 +394,7 @@ public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
                     } else if (Date.class.getSimpleName().equals(
                             param.getType())) {
                         adaptedDoc.setPropertyValue(param.getSource(),
-                                wordXMLDateFormat.parse(xmlValue));
+                                getWordXMLDateFormat().parse(xmlValue));
                     }
                 } else {
                     if (InputType.StringValue.equals(param.getType())) {
@@ -250,7 +402,7 @@ public class WordXMLRawTemplateProcessor extends AbstractTemplateProcessor
                     } else if (InputType.BooleanValue.equals(param.getType())) {
                         param.setBooleanValue(new Boolean(xmlValue));
                     } else if (InputType.DateValue.equals(param.getType())) {
-                        param.setDateValue(wordXMLDateFormat.parse(xmlValue));
+                        param.setDateValue(getWordXMLDateFormat().parse(xmlValue));
                     }
                 }
             }
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.processors.fm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Freemarker {@link TemplateLoader} serving template sources registered under
+ * the digest of their blob.
+ * <p>
+ * Since a name always maps to the same content, Freemarker never needs to
+ * reparse a template while its source is in the cache : parsed templates are
+ * shared across renderings. When a source is evicted, Freemarker drops the
+ * parsed template at its next update check.
+ */
+public class DigestTemplateLoader implements TemplateLoader {
+
+    // content addressed sources never change
+    protected static final long LAST_MODIFIED = 0;
+
+    protected final TemplateCache<String> sources;
+
+    protected static class Source {
+
+        protected final String name;
+
+        protected final String content;
+
+        protected Source(String name, String content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Source && name.equals(((Source) other).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    public DigestTemplateLoader(TemplateCache<String> sources) {
+        this.sources = sources;
+    }
+
+    @Override
+    public Object findTemplateSource(String name) throws IOException {
+        String source = sources.peek(name);
+        if (source == null) {
+            return null;
+        }
+        return new Source(name, source);
+    }
+
+    @Override
+    public long getLastModified(Object templateSource) {
+        return LAST_MODIFIED;
+    }
+
+    @Override
+    public Reader getReader(Object templateSource, String encoding)
+            throws IOException {
+        return new StringReader(((Source) templateSource).content);
+    }
+
+    @Override
+    public void closeTemplateSource(Object templateSource) throws IOException {
+        // NOP
+    }
+
+}
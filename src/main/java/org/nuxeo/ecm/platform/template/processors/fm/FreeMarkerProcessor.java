@@ -11,26 +11,142 @@ import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.platform.rendering.fm.FreemarkerEngine;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
 import org.nuxeo.ecm.platform.template.fm.FMContextBuilder;
 import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
 import org.nuxeo.ecm.platform.template.processors.AbstractTemplateProcessor;
-import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.CacheableTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.ContextAwareTemplateProcessor;
 
-import freemarker.cache.StringTemplateLoader;
+import freemarker.cache.MruCacheStorage;
+import freemarker.template.Configuration;
 
 public class FreeMarkerProcessor extends AbstractTemplateProcessor implements
-        TemplateProcessor {
+        CacheableTemplateProcessor, ContextAwareTemplateProcessor {
 
-    protected StringTemplateLoader loader = new StringTemplateLoader();
+    public static final String CACHE_SIZE_PROPERTY = "org.nuxeo.template.freemarker.cache.size";
 
-    protected FreemarkerEngine fmEngine = null;
+    public static final String CACHE_MAXAGE_PROPERTY = "org.nuxeo.template.freemarker.cache.maxAge";
+
+    public static final int DEFAULT_CACHE_SIZE = 100;
+
+    // 1 hour
+    public static final long DEFAULT_CACHE_MAXAGE = 60 * 60 * 1000;
+
+    protected static final String TEMPLATE_KEY_PREFIX = "nxtemplate-";
+
+    protected final TemplateCache<String> sources = new TemplateCache<String>(
+            "Freemarker", TemplateCache.getConfiguredSize(CACHE_SIZE_PROPERTY,
+                    DEFAULT_CACHE_SIZE), TemplateCache.getConfiguredValue(
+                    CACHE_MAXAGE_PROPERTY, DEFAULT_CACHE_MAXAGE));
+
+    // whether the template with the given key reads auditEntries : keys are
+    // digests so the answer never changes
+    protected final TemplateCache<Boolean> auditUsage = new TemplateCache<Boolean>(
+            "FreemarkerAuditUsage", sources.getMaxSize(), sources.getMaxAge());
+
+    protected final DigestTemplateLoader loader = new DigestTemplateLoader(
+            sources);
+
+    // the processor is shared by all rendering threads : the engine must be
+    // safely published, all the per-rendering state stays on the stack
+    protected volatile FreemarkerEngine fmEngine = null;
 
     protected FreemarkerEngine getEngine() {
-        if (fmEngine == null) {
-            fmEngine = new FreemarkerEngine();
-            fmEngine.getConfiguration().setTemplateLoader(loader);
+        FreemarkerEngine engine = fmEngine;
+        if (engine == null) {
+            synchronized (this) {
+                engine = fmEngine;
+                if (engine == null) {
+                    engine = new FreemarkerEngine();
+                    Configuration cfg = engine.getConfiguration();
+                    cfg.setTemplateLoader(loader);
+                    // template names are digests : no localized variants
+                    cfg.setLocalizedLookup(false);
+                    // keep parsed templates strongly referenced as long as
+                    // their source is cached
+                    cfg.setCacheStorage(new MruCacheStorage(
+                            sources.getMaxSize(), sources.getMaxSize()));
+                    fmEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Registers the template source in the loader if needed and returns the
+     * name to use to render it.
+     */
+    protected String getTemplateKey(Blob sourceTemplateBlob) throws Exception {
+        String fmTemplateKey = TEMPLATE_KEY_PREFIX
+                + BlobDigestHelper.getDigest(sourceTemplateBlob);
+        if (sources.get(fmTemplateKey) == null) {
+            sources.put(fmTemplateKey, sourceTemplateBlob.getString());
+        }
+        return fmTemplateKey;
+    }
+
+    /**
+     * Returns true if the template may read the audit entries, so that the
+     * audit context is not even built for the templates that don't.
+     */
+    protected boolean usesAuditEntries(String fmTemplateKey,
+            Blob sourceTemplateBlob) throws Exception {
+        Boolean uses = auditUsage.peek(fmTemplateKey);
+        if (uses == null) {
+            String content = sources.peek(fmTemplateKey);
+            if (content == null) {
+                content = sourceTemplateBlob.getString();
+            }
+            uses = Boolean.valueOf(FreeMarkerVariableExtractor.usesVariable(
+                    content, "auditEntries"));
+            auditUsage.put(fmTemplateKey, uses);
+        }
+        return uses.booleanValue();
+    }
+
+    @Override
+    public void invalidateCache(String templateDigest) {
+        sources.invalidate(TEMPLATE_KEY_PREFIX + templateDigest);
+        auditUsage.invalidate(TEMPLATE_KEY_PREFIX + templateDigest);
+    }
+
+    @Override
+    public boolean warmUp(TemplateSourceDocument templateSource)
+            throws Exception {
+        Blob templateBlob = templateSource.getTemplateBlob();
+        if (templateBlob == null) {
+            return false;
         }
-        return fmEngine;
+        // parse the template so that it is in the Freemarker cache
+        getEngine().getConfiguration().getTemplate(getTemplateKey(templateBlob));
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            FreemarkerEngine engine = fmEngine;
+            if (engine != null) {
+                engine.getConfiguration().clearTemplateCache();
+                fmEngine = null;
+            }
+        }
+        sources.clear();
+        auditUsage.clear();
+    }
+
+    @Override
+    public TemplateCache<String> getCache() {
+        return sources;
+    }
+
+    @Override
+    public boolean isContextDependent(Blob templateBlob) throws Exception {
+        return FreeMarkerVariableExtractor.isContextDependent(templateBlob.getString());
     }
 
     @Override
@@ -40,29 +156,30 @@ public class FreeMarkerProcessor extends AbstractTemplateProcessor implements
         Blob sourceTemplateBlob = getSourceTemplateBlob(templateBasedDocument,
                 templateName);
 
-        String fmTemplateKey = "main" + System.currentTimeMillis();
-        /*
-         * if (sourceTemplateBlob instanceof SQLBlob) { fmTemplateKey =
-         * fmTemplateKey + ((SQLBlob)
-         * sourceTemplateBlob).getBinary().getDigest(); } else { fmTemplateKey =
-         * fmTemplateKey + System.currentTimeMillis(); }
-         */
-
-        String ftl = sourceTemplateBlob.getString();
-
-        loader.putTemplate(fmTemplateKey, ftl);
+        String fmTemplateKey = getTemplateKey(sourceTemplateBlob);
 
         Map<String, Object> ctx = FMContextBuilder.build(templateBasedDocument,
-                templateName);
+                templateName, usesAuditEntries(fmTemplateKey,
+                        sourceTemplateBlob));
 
         FMBindingResolver resolver = new FMBindingResolver();
         resolver.resolve(templateBasedDocument.getParams(templateName), ctx,
                 templateBasedDocument);
 
-        StringWriter writer = new StringWriter();
-        getEngine().render(fmTemplateKey, ctx, writer);
+        String content;
+        try {
+            content = render(fmTemplateKey, ctx);
+        } catch (Exception e) {
+            if (sources.peek(fmTemplateKey) != null) {
+                throw e;
+            }
+            // the source was evicted or invalidated by a concurrent thread
+            // between its registration and the rendering : retry once
+            sources.put(fmTemplateKey, sourceTemplateBlob.getString());
+            content = render(fmTemplateKey, ctx);
+        }
 
-        Blob result = new StringBlob(writer.toString());
+        Blob result = new StringBlob(content);
 
         result.setMimeType("text/html");
         String targetFileName = FileUtils.getFileNameNoExt(templateBasedDocument.getAdaptedDoc().getTitle());
@@ -71,6 +188,13 @@ public class FreeMarkerProcessor extends AbstractTemplateProcessor implements
         return result;
     }
 
+    protected String render(String fmTemplateKey, Map<String, Object> ctx)
+            throws Exception {
+        StringWriter writer = new StringWriter();
+        getEngine().render(fmTemplateKey, ctx, writer);
+        return writer.toString();
+    }
+
     @Override
     public List<TemplateInput> getInitialParametersDefinition(Blob blob)
             throws Exception {
@@ -20,14 +20,14 @@ package org.nuxeo.ecm.platform.template.processors.jod;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import net.sf.jooreports.templates.DocumentTemplate;
 import net.sf.jooreports.templates.DocumentTemplateFactory;
@@ -49,7 +49,10 @@ import org.nuxeo.ecm.platform.template.fm.FMContextBuilder;
 import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
 import org.nuxeo.ecm.platform.template.odt.OOoArchiveModifier;
 import org.nuxeo.ecm.platform.template.processors.AbstractTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.ContextAwareTemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.xdocreport.ZipXmlHelper;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * {@link TemplateProcessor} for ODT based templates.
@@ -61,7 +64,7 @@ import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
  * 
  */
 public class JODReportTemplateProcessor extends AbstractTemplateProcessor
-        implements TemplateProcessor {
+        implements ContextAwareTemplateProcessor {
 
     public static final String TEMPLATE_TYPE = "JODTemplate";
 
@@ -70,9 +73,18 @@ public class JODReportTemplateProcessor extends AbstractTemplateProcessor
             throws Exception {
 
         List<TemplateInput> params = new ArrayList<TemplateInput>();
-        String xmlContent = readXMLContent(blob);
+        Reader reader = ZipXmlHelper.openXMLContent(blob,
+                ZipXmlHelper.OOO_MAIN_FILE);
+        if (reader == null) {
+            return params;
+        }
 
-        List<String> vars = FreeMarkerVariableExtractor.extractVariables(xmlContent);
+        List<String> vars;
+        try {
+            vars = FreeMarkerVariableExtractor.extractVariables(reader);
+        } finally {
+            reader.close();
+        }
 
         for (String var : vars) {
             TemplateInput input = new TemplateInput(var);
@@ -85,6 +97,11 @@ public class JODReportTemplateProcessor extends AbstractTemplateProcessor
         return params;
     }
 
+    @Override
+    public boolean isContextDependent(Blob templateBlob) throws Exception {
+        return FreeMarkerVariableExtractor.isContextDependent(readXMLContent(templateBlob));
+    }
+
     @Override
     public Blob renderTemplate(TemplateBasedDocument templateBasedDocument,
             String templateName) throws Exception {
@@ -171,7 +188,12 @@ public class JODReportTemplateProcessor extends AbstractTemplateProcessor
         File generated = new File(workingDir, "JODReportresult");
         generated.createNewFile();
 
-        template.createDocument(context, new FileOutputStream(generated));
+        OutputStream out = new FileOutputStream(generated);
+        try {
+            template.createDocument(context, out);
+        } finally {
+            out.close();
+        }
 
         generated = modifier.updateArchive(workingDir, generated, blobsToInsert);
 
@@ -184,31 +206,14 @@ public class JODReportTemplateProcessor extends AbstractTemplateProcessor
             newBlob.setFilename(sourceTemplateBlob.getFilename());
         }
 
-        // XXX bad !
-        generated.deleteOnExit();
+        // mark the file for automatic deletion on GC
+        Framework.trackFile(generated, newBlob);
 
         return newBlob;
     }
 
     public String readXMLContent(Blob blob) throws Exception {
-        ZipInputStream zIn = new ZipInputStream(blob.getStream());
-        ZipEntry zipEntry = zIn.getNextEntry();
-        String xmlContent = null;
-        while (zipEntry != null) {
-            if (zipEntry.getName().equals("content.xml")) {
-                StringBuilder sb = new StringBuilder();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int read;
-                while ((read = zIn.read(buffer)) != -1) {
-                    sb.append(new String(buffer, 0, read));
-                }
-                xmlContent = sb.toString();
-                break;
-            }
-            zipEntry = zIn.getNextEntry();
-        }
-        zIn.close();
-        return xmlContent;
+        return ZipXmlHelper.readXMLContent(blob, ZipXmlHelper.OOO_MAIN_FILE);
     }
 
 }
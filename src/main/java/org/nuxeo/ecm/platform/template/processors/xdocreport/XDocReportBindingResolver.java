@@ -1,5 +1,8 @@
 package org.nuxeo.ecm.platform.template.processors.xdocreport;
 
+import java.util.Set;
+import java.util.TreeSet;
+
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.platform.template.processors.AbstractBindingResolver;
 
@@ -12,32 +15,63 @@ public class XDocReportBindingResolver extends AbstractBindingResolver {
 
     protected final FieldsMetadata metadata;
 
+    protected final Set<String> declaredFields = new TreeSet<String>();
+
     public XDocReportBindingResolver(FieldsMetadata metadata) {
         this.metadata = metadata;
     }
 
+    public void addFieldAsImage(String paramName) {
+        metadata.addFieldAsImage(paramName);
+        declaredFields.add("image:" + paramName);
+    }
+
+    public void addFieldAsList(String paramName) {
+        metadata.addFieldAsList(paramName);
+        declaredFields.add("list:" + paramName);
+    }
+
+    protected void addFieldAsHtml(String paramName) {
+        metadata.addFieldAsTextStyling(paramName, SyntaxKind.Html);
+        declaredFields.add("html:" + paramName);
+    }
+
+    /**
+     * Returns a stable description of the fields declared in the metadata, so
+     * that prepared reports can be shared between renderings that use the
+     * same metadata.
+     */
+    public String getMetadataSignature() {
+        StringBuilder sb = new StringBuilder();
+        for (String field : declaredFields) {
+            sb.append(field);
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
     @Override
     protected void handleHtmlField(String paramName, String htmlValue) {
-        metadata.addFieldAsTextStyling(paramName, SyntaxKind.Html);
+        addFieldAsHtml(paramName);
     }
 
     @Override
     protected void handleBlobField(String paramName, Blob blobValue) {
         if ("text/html".equals(blobValue.getMimeType())) {
-            metadata.addFieldAsTextStyling(paramName, SyntaxKind.Html);
+            addFieldAsHtml(paramName);
         }
     }
 
     @Override
     protected Object handlePictureField(String paramName, Blob blobValue) {
         IImageProvider imgBlob = new BlobImageProvider(blobValue);
-        metadata.addFieldAsImage(paramName);
+        addFieldAsImage(paramName);
         return imgBlob;
     }
 
     @Override
     protected Object handleLoop(String paramName, Object value) {
-        metadata.addFieldAsList(paramName);
+        addFieldAsList(paramName);
         try {
             return getWrapper().wrap(value);
         } catch (TemplateModelException e) {
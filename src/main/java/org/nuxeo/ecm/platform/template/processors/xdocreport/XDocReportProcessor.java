@@ -3,6 +3,7 @@ package org.nuxeo.ecm.platform.template.processors.xdocreport;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -16,10 +17,14 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.template.InputType;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
 import org.nuxeo.ecm.platform.template.fm.FMContextBuilder;
 import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
 import org.nuxeo.ecm.platform.template.processors.AbstractTemplateProcessor;
-import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.CacheableTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.ContextAwareTemplateProcessor;
 import org.nuxeo.runtime.api.Framework;
 
 import fr.opensagres.xdocreport.document.IXDocReport;
@@ -29,7 +34,7 @@ import fr.opensagres.xdocreport.template.TemplateEngineKind;
 import fr.opensagres.xdocreport.template.formatter.FieldsMetadata;
 
 public class XDocReportProcessor extends AbstractTemplateProcessor implements
-        TemplateProcessor {
+        CacheableTemplateProcessor, ContextAwareTemplateProcessor {
 
     protected static final Log log = LogFactory.getLog(XDocReportProcessor.class);
 
@@ -39,6 +44,18 @@ public class XDocReportProcessor extends AbstractTemplateProcessor implements
 
     public static final String DocX_TEMPLATE_TYPE = "DocX";
 
+    public static final String CACHE_SIZE_PROPERTY = "org.nuxeo.template.xdocreport.cache.size";
+
+    public static final int DEFAULT_CACHE_SIZE = 50;
+
+    protected static final String[] AUDIT_LIST_FIELDS = { "principalName",
+            "eventId", "eventDate", "docUUID", "docPath", "docType",
+            "category", "comment", "docLifeCycle", "repositoryId" };
+
+    protected final TemplateCache<IXDocReport> reportCache = new TemplateCache<IXDocReport>(
+            "XDocReport", TemplateCache.getConfiguredSize(CACHE_SIZE_PROPERTY,
+                    DEFAULT_CACHE_SIZE));
+
     protected String getTemplateFormat(Blob blob) {
         String filename = blob.getFilename();
         if (filename == null && blob instanceof FileBlob) {
@@ -57,23 +74,130 @@ public class XDocReportProcessor extends AbstractTemplateProcessor implements
         return OOO_TEMPLATE_TYPE;
     }
 
+    /**
+     * Returns the prepared report for the given template, loading it only if
+     * it is not yet in the cache. The key includes the metadata signature
+     * because the fields metadata is used when the report is preprocessed.
+     */
+    protected IXDocReport getReport(Blob templateBlob, String templateName,
+            String metadataSignature, FieldsMetadata metadata)
+            throws Exception {
+        String key = TemplateCache.buildKey(
+                BlobDigestHelper.getDigest(templateBlob), templateName,
+                metadataSignature);
+        IXDocReport report = reportCache.get(key);
+        if (report == null) {
+            report = XDocReportRegistry.getRegistry().loadReport(
+                    templateBlob.getStream(), TemplateEngineKind.Freemarker,
+                    false);
+            report.setFieldsMetadata(metadata);
+            reportCache.put(key, report);
+        }
+        return report;
+    }
+
+    /**
+     * Returns a resolver with the fields that can be declared before the
+     * parameters are resolved : pictures and audit entries.
+     */
+    protected XDocReportBindingResolver createResolver(
+            List<TemplateInput> params, FieldsMetadata metadata) {
+        XDocReportBindingResolver resolver = new XDocReportBindingResolver(
+                metadata);
+        if (params != null) {
+            for (TemplateInput param : params) {
+                if (param.getType() == InputType.PictureProperty) {
+                    resolver.addFieldAsImage(param.getName());
+                }
+            }
+        }
+        // add automatic loop on audit entries
+        for (String auditField : AUDIT_LIST_FIELDS) {
+            resolver.addFieldAsList("auditEntries." + auditField);
+        }
+        return resolver;
+    }
+
     @Override
-    public List<TemplateInput> getInitialParametersDefinition(Blob blob)
+    public void invalidateCache(String templateDigest) {
+        reportCache.invalidate(templateDigest);
+    }
+
+    /**
+     * Loads the report with the metadata declared by the template parameters.
+     * Documents whose parameters resolve to html fields or loops use a
+     * different signature and still prepare their own report.
+     */
+    @Override
+    public boolean warmUp(TemplateSourceDocument templateSource)
             throws Exception {
+        Blob templateBlob = templateSource.getTemplateBlob();
+        if (templateBlob == null) {
+            return false;
+        }
+        FieldsMetadata metadata = new FieldsMetadata();
+        XDocReportBindingResolver resolver = createResolver(
+                templateSource.getParams(), metadata);
+        getReport(templateBlob, templateSource.getName(),
+                resolver.getMetadataSignature(), metadata);
+        return true;
+    }
 
-        List<TemplateInput> params = new ArrayList<TemplateInput>();
-        String xmlContent = null;
+    @Override
+    public void shutdown() {
+        reportCache.clear();
+    }
+
+    @Override
+    public TemplateCache<IXDocReport> getCache() {
+        return reportCache;
+    }
 
+    protected String readTemplateContent(Blob blob) throws Exception {
         if (OOO_TEMPLATE_TYPE.equals(getTemplateFormat(blob))) {
-            xmlContent = ZipXmlHelper.readXMLContent(blob,
+            return ZipXmlHelper.readXMLContent(blob,
                     ZipXmlHelper.OOO_MAIN_FILE);
         } else if (DocX_TEMPLATE_TYPE.equals(getTemplateFormat(blob))) {
-            xmlContent = ZipXmlHelper.readXMLContent(blob,
+            return ZipXmlHelper.readXMLContent(blob,
                     ZipXmlHelper.DOCX_MAIN_FILE);
         }
+        return null;
+    }
+
+    protected Reader openTemplateContent(Blob blob) throws Exception {
+        if (OOO_TEMPLATE_TYPE.equals(getTemplateFormat(blob))) {
+            return ZipXmlHelper.openXMLContent(blob, ZipXmlHelper.OOO_MAIN_FILE);
+        } else if (DocX_TEMPLATE_TYPE.equals(getTemplateFormat(blob))) {
+            return ZipXmlHelper.openXMLContent(blob,
+                    ZipXmlHelper.DOCX_MAIN_FILE);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isContextDependent(Blob templateBlob) throws Exception {
+        String xmlContent = readTemplateContent(templateBlob);
+        if (xmlContent == null) {
+            // unknown format : don't take the risk
+            return true;
+        }
+        return FreeMarkerVariableExtractor.isContextDependent(xmlContent);
+    }
+
+    @Override
+    public List<TemplateInput> getInitialParametersDefinition(Blob blob)
+            throws Exception {
+
+        List<TemplateInput> params = new ArrayList<TemplateInput>();
+        Reader reader = openTemplateContent(blob);
 
-        if (xmlContent != null) {
-            List<String> vars = FreeMarkerVariableExtractor.extractVariables(xmlContent);
+        if (reader != null) {
+            List<String> vars;
+            try {
+                vars = FreeMarkerVariableExtractor.extractVariables(reader);
+            } finally {
+                reader.close();
+            }
 
             for (String var : vars) {
                 TemplateInput input = new TemplateInput(var);
@@ -90,45 +214,25 @@ public class XDocReportProcessor extends AbstractTemplateProcessor implements
         Blob sourceTemplateBlob = getSourceTemplateBlob(templateBasedDocument,
                 templateName);
 
-        // load the template
-        IXDocReport report = XDocReportRegistry.getRegistry().loadReport(
-                sourceTemplateBlob.getStream(), TemplateEngineKind.Freemarker,
-                false);
-
         // manage parameters
         List<TemplateInput> params = templateBasedDocument.getParams(templateName);
         FieldsMetadata metadata = new FieldsMetadata();
-        for (TemplateInput param : params) {
-            if (param.getType() == InputType.PictureProperty) {
-                metadata.addFieldAsImage(param.getName());
-            }
-        }
-        report.setFieldsMetadata(metadata);
+        XDocReportBindingResolver resolver = createResolver(params, metadata);
 
         // fill Freemarker context
         DocumentModel doc = templateBasedDocument.getAdaptedDoc();
         Map<String, Object> ctx = FMContextBuilder.build(doc);
-
-        XDocReportBindingResolver resolver = new XDocReportBindingResolver(
-                metadata);
         resolver.resolve(params, ctx, templateBasedDocument);
 
+        // load the template
+        IXDocReport report = getReport(sourceTemplateBlob, templateName,
+                resolver.getMetadataSignature(), metadata);
+
         // add default context vars
         IContext context = report.createContext();
         for (String key : ctx.keySet()) {
             context.put(key, ctx.get(key));
         }
-        // add automatic loop on audit entries
-        metadata.addFieldAsList("auditEntries.principalName");
-        metadata.addFieldAsList("auditEntries.eventId");
-        metadata.addFieldAsList("auditEntries.eventDate");
-        metadata.addFieldAsList("auditEntries.docUUID");
-        metadata.addFieldAsList("auditEntries.docPath");
-        metadata.addFieldAsList("auditEntries.docType");
-        metadata.addFieldAsList("auditEntries.category");
-        metadata.addFieldAsList("auditEntries.comment");
-        metadata.addFieldAsList("auditEntries.docLifeCycle");
-        metadata.addFieldAsList("auditEntries.repositoryId");
 
         File workingDir = getWorkingDir();
         File generated = new File(workingDir, "XDOCReportresult-"
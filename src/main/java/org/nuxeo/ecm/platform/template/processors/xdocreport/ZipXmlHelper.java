@@ -1,10 +1,28 @@
 package org.nuxeo.ecm.platform.template.processors.xdocreport;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 
+/**
+ * Reads a single XML entry of a zipped document.
+ * <p>
+ * When the Blob is backed by a file, the entry is located using the central
+ * directory of the archive and only this entry is inflated. Otherwise the
+ * stream is scanned until the entry is found. The content is always decoded
+ * as UTF-8.
+ *
+ * @author Tiry (tdelprat@nuxeo.com)
+ *
+ */
 public class ZipXmlHelper {
 
     protected static final int BUFFER_SIZE = 1024 * 64; // 64K
@@ -13,25 +31,104 @@ public class ZipXmlHelper {
 
     public static final String DOCX_MAIN_FILE = "word/document.xml";
 
-    public static String readXMLContent(Blob blob, String filename) throws Exception {
-        ZipInputStream zIn = new ZipInputStream(blob.getStream());
+    public static final String ENCODING = "UTF-8";
+
+    public static String readXMLContent(Blob blob, String filename)
+            throws Exception {
+        Reader reader = openXMLContent(blob, filename);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return readContent(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Opens a UTF-8 {@link Reader} on the given entry, or returns null if the
+     * archive has no such entry. Closing the Reader releases the archive.
+     */
+    public static Reader openXMLContent(Blob blob, String filename)
+            throws IOException {
+        File file = null;
+        if (blob instanceof FileBlob) {
+            file = ((FileBlob) blob).getFile();
+        }
+        if (file != null && file.isFile()) {
+            final ZipFile zipFile = new ZipFile(file);
+            ZipEntry zipEntry = zipFile.getEntry(filename);
+            if (zipEntry == null) {
+                zipFile.close();
+                return null;
+            }
+            return new InputStreamReader(zipFile.getInputStream(zipEntry),
+                    ENCODING) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            };
+        }
+        InputStream in = blob.getStream();
+        ZipInputStream zIn = new ZipInputStream(in);
         ZipEntry zipEntry = zIn.getNextEntry();
-        String xmlContent = null;
         while (zipEntry != null) {
             if (zipEntry.getName().equals(filename)) {
-                StringBuilder sb = new StringBuilder();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int read;
-                while ((read = zIn.read(buffer)) != -1) {
-                    sb.append(new String(buffer, 0, read));
-                }
-                xmlContent = sb.toString();
-                break;
+                return new InputStreamReader(zIn, ENCODING);
             }
             zipEntry = zIn.getNextEntry();
         }
         zIn.close();
-        return xmlContent;
+        return null;
+    }
+
+    public static String readXMLContent(File file, String filename)
+            throws IOException {
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            ZipEntry zipEntry = zipFile.getEntry(filename);
+            if (zipEntry == null) {
+                return null;
+            }
+            return readContent(new InputStreamReader(
+                    zipFile.getInputStream(zipEntry), ENCODING));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Scans the given zip stream until the entry is found. The stream is
+     * consumed but not closed.
+     */
+    public static String readXMLContent(InputStream in, String filename)
+            throws IOException {
+        ZipInputStream zIn = new ZipInputStream(in);
+        ZipEntry zipEntry = zIn.getNextEntry();
+        while (zipEntry != null) {
+            if (zipEntry.getName().equals(filename)) {
+                return readContent(new InputStreamReader(zIn, ENCODING));
+            }
+            zipEntry = zIn.getNextEntry();
+        }
+        return null;
+    }
+
+    // the decoder of the Reader keeps multi-bytes sequences split across reads
+    protected static String readContent(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
     }
 
 }
@@ -1,10 +1,11 @@
 package org.nuxeo.ecm.platform.template.processors.xslt;
 
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -14,14 +15,108 @@ import javax.xml.transform.stream.StreamSource;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
-import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
 import org.nuxeo.ecm.platform.template.processors.AbstractTemplateProcessor;
-import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.CacheableTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.ContextAwareTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.SpillingOutputStream;
 
 public class XSLTProcessor extends AbstractTemplateProcessor implements
-        TemplateProcessor {
+        CacheableTemplateProcessor, ContextAwareTemplateProcessor {
+
+    public static final String CACHE_SIZE_PROPERTY = "org.nuxeo.template.xslt.cache.size";
+
+    public static final int DEFAULT_CACHE_SIZE = 50;
+
+    public static final String SPILL_THRESHOLD_PROPERTY = "org.nuxeo.template.xslt.spill.threshold";
+
+    // 1 MB
+    public static final long DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    protected final TemplateCache<Templates> templatesCache = new TemplateCache<Templates>(
+            "XSLT", TemplateCache.getConfiguredSize(CACHE_SIZE_PROPERTY,
+                    DEFAULT_CACHE_SIZE));
+
+    protected volatile TransformerFactory tFactory;
+
+    protected TransformerFactory getTransformerFactory() {
+        TransformerFactory factory = tFactory;
+        if (factory == null) {
+            factory = TransformerFactory.newInstance();
+            tFactory = factory;
+        }
+        return factory;
+    }
+
+    /**
+     * Returns the compiled stylesheet, {@link Templates} are thread safe and
+     * can be shared, only the {@link Transformer} is created for each call.
+     */
+    protected Templates getTemplates(Blob sourceTemplateBlob) throws Exception {
+        String key = BlobDigestHelper.getDigest(sourceTemplateBlob);
+        Templates templates = templatesCache.get(key);
+        if (templates == null) {
+            TransformerFactory factory = getTransformerFactory();
+            InputStream xsl = sourceTemplateBlob.getStream();
+            try {
+                // TransformerFactory is not thread safe
+                synchronized (factory) {
+                    templates = factory.newTemplates(new StreamSource(xsl));
+                }
+            } finally {
+                xsl.close();
+            }
+            templatesCache.put(key, templates);
+        }
+        return templates;
+    }
+
+    @Override
+    public void init() throws Exception {
+        getTransformerFactory();
+    }
+
+    @Override
+    public boolean warmUp(TemplateSourceDocument templateSource)
+            throws Exception {
+        Blob templateBlob = templateSource.getTemplateBlob();
+        if (templateBlob == null) {
+            return false;
+        }
+        getTemplates(templateBlob);
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        templatesCache.clear();
+    }
+
+    protected long getSpillThreshold() {
+        return TemplateCache.getConfiguredValue(SPILL_THRESHOLD_PROPERTY,
+                DEFAULT_SPILL_THRESHOLD);
+    }
+
+    @Override
+    public void invalidateCache(String templateDigest) {
+        templatesCache.invalidate(templateDigest);
+    }
+
+    @Override
+    public TemplateCache<Templates> getCache() {
+        return templatesCache;
+    }
+
+    @Override
+    public boolean isContextDependent(Blob templateBlob) {
+        // the stylesheet is applied to the main Blob of the document, which
+        // can be modified without changing the render cache key
+        return true;
+    }
 
     @Override
     public Blob renderTemplate(TemplateBasedDocument templateBasedDocument,
@@ -41,9 +136,7 @@ public class XSLTProcessor extends AbstractTemplateProcessor implements
         Blob sourceTemplateBlob = getSourceTemplateBlob(templateBasedDocument,
                 templateName);
 
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer(new StreamSource(
-                sourceTemplateBlob.getStream()));
+        Transformer transformer = getTemplates(sourceTemplateBlob).newTransformer();
         transformer.setErrorListener(new ErrorListener() {
 
             @Override
@@ -66,12 +159,24 @@ public class XSLTProcessor extends AbstractTemplateProcessor implements
         });
         transformer.setURIResolver(null);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        transformer.transform(new StreamSource(xmlContent.getStream()),
-                new StreamResult(out));
-
-        Blob result = new ByteArrayBlob(out.toByteArray(), "text/xml");
+        // big results are written to a temporary file instead of the heap
+        SpillingOutputStream out = new SpillingOutputStream(
+                getSpillThreshold());
+        Blob result = null;
+        try {
+            InputStream in = xmlContent.getStream();
+            try {
+                transformer.transform(new StreamSource(in), new StreamResult(
+                        out));
+            } finally {
+                in.close();
+            }
+            result = out.getBlob("text/xml");
+        } finally {
+            if (result == null) {
+                out.discard();
+            }
+        }
         String targetFileName = FileUtils.getFileNameNoExt(templateBasedDocument.getAdaptedDoc().getTitle());
         // result.setFilename(targetFileName + ".xml");
         result.setFilename(targetFileName + ".html");
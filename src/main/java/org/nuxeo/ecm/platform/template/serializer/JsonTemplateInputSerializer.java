@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.serializer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.nuxeo.ecm.platform.template.InputType;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+
+/**
+ * Compact JSON encoding of the {@link TemplateInput} parameters :
+ *
+ * <pre>
+ * {"v":1,"p":[{"n":"name","t":"String","v":"value","d":"description"},
+ *             {"n":"date","t":"Date","v":1341234567890,"r":true},
+ *             {"n":"title","t":"source","s":"dc:title","l":true}]}
+ * </pre>
+ *
+ * Dates are stored as milliseconds, optional attributes are omitted. Data
+ * that is not JSON is read as legacy nxdt:templateParams XML, so documents
+ * don't have to be migrated before switching to this encoding.
+ */
+public class JsonTemplateInputSerializer implements TemplateInputSerializer {
+
+    public static final int VERSION = 1;
+
+    protected static final String VERSION_KEY = "v";
+
+    protected static final String PARAMS_KEY = "p";
+
+    protected static final String NAME_KEY = "n";
+
+    protected static final String TYPE_KEY = "t";
+
+    protected static final String VALUE_KEY = "v";
+
+    protected static final String SOURCE_KEY = "s";
+
+    protected static final String DESCRIPTION_KEY = "d";
+
+    protected static final String READONLY_KEY = "r";
+
+    protected static final String AUTOLOOP_KEY = "l";
+
+    protected static final JsonFactory factory = new JsonFactory();
+
+    protected final TemplateInputSerializer legacySerializer = new StreamingTemplateInputSerializer();
+
+    /**
+     * Tells if the given data uses this encoding.
+     */
+    public static boolean isJson(String data) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    public String serialize(List<TemplateInput> params) {
+        StringWriter writer = new StringWriter(32 + params.size() * 48);
+        try {
+            JsonGenerator gen = factory.createJsonGenerator(writer);
+            gen.writeStartObject();
+            gen.writeNumberField(VERSION_KEY, VERSION);
+            gen.writeArrayFieldStart(PARAMS_KEY);
+            for (TemplateInput input : params) {
+                gen.writeStartObject();
+                gen.writeStringField(NAME_KEY, input.getName());
+                InputType type = input.getType();
+                gen.writeStringField(TYPE_KEY, type.getValue());
+                if (input.isReadOnly()) {
+                    gen.writeBooleanField(READONLY_KEY, true);
+                }
+                if (input.isAutoLoop()) {
+                    gen.writeBooleanField(AUTOLOOP_KEY, true);
+                }
+                if (InputType.StringValue.equals(type)) {
+                    if (input.getStringValue() != null) {
+                        gen.writeStringField(VALUE_KEY, input.getStringValue());
+                    }
+                } else if (InputType.DateValue.equals(type)) {
+                    if (input.getDateValue() != null) {
+                        gen.writeNumberField(VALUE_KEY,
+                                input.getDateValue().getTime());
+                    }
+                } else if (InputType.BooleanValue.equals(type)) {
+                    gen.writeBooleanField(VALUE_KEY,
+                            input.getBooleanValue().booleanValue());
+                } else if (input.getSource() != null) {
+                    gen.writeStringField(SOURCE_KEY, input.getSource());
+                }
+                if (input.getDesciption() != null) {
+                    gen.writeStringField(DESCRIPTION_KEY,
+                            input.getDesciption());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.close();
+        } catch (IOException e) {
+            // can not happen when writing to a String
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    public List<TemplateInput> readFromXml(String data) throws Exception {
+        if (!isJson(data)) {
+            return legacySerializer.readFromXml(data);
+        }
+
+        List<TemplateInput> result = new ArrayList<TemplateInput>();
+        JsonParser parser = factory.createJsonParser(data);
+        try {
+            expect(parser, JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+                if (VERSION_KEY.equals(key)) {
+                    int version = parser.getIntValue();
+                    if (version > VERSION) {
+                        throw new JsonParseException(
+                                "Unsupported parameters version " + version,
+                                parser.getCurrentLocation());
+                    }
+                } else if (PARAMS_KEY.equals(key)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        result.add(readParam(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return result;
+    }
+
+    protected TemplateInput readParam(JsonParser parser) throws IOException {
+        TemplateInput param = new TemplateInput(null);
+        param.setDesciption("");
+        JsonToken value = null;
+        String strValue = null;
+        long longValue = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (NAME_KEY.equals(key)) {
+                param.setName(parser.getText());
+            } else if (TYPE_KEY.equals(key)) {
+                param.setType(InputType.getByValue(parser.getText()));
+            } else if (VALUE_KEY.equals(key)) {
+                value = token;
+                if (token == JsonToken.VALUE_NUMBER_INT) {
+                    longValue = parser.getLongValue();
+                } else {
+                    strValue = parser.getText();
+                }
+            } else if (SOURCE_KEY.equals(key)) {
+                param.setSource(parser.getText());
+            } else if (DESCRIPTION_KEY.equals(key)) {
+                param.setDesciption(parser.getText());
+            } else if (READONLY_KEY.equals(key)) {
+                param.setReadOnly(token == JsonToken.VALUE_TRUE);
+            } else if (AUTOLOOP_KEY.equals(key)) {
+                param.setAutoLoop(token == JsonToken.VALUE_TRUE);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        InputType type = param.getType();
+        if (value != null) {
+            if (InputType.StringValue.equals(type)) {
+                param.setStringValue(strValue);
+            } else if (InputType.DateValue.equals(type)) {
+                param.setDateValue(new Date(longValue));
+            } else if (InputType.BooleanValue.equals(type)) {
+                param.setBooleanValue(Boolean.valueOf(value == JsonToken.VALUE_TRUE));
+            }
+        }
+        return param;
+    }
+
+    protected void expect(JsonParser parser, JsonToken expected)
+            throws IOException {
+        if (parser.nextToken() != expected) {
+            throw new JsonParseException("Expected " + expected,
+                    parser.getCurrentLocation());
+        }
+    }
+
+}
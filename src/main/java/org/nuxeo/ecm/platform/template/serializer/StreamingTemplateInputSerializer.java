@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.serializer;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.template.InputType;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+
+/**
+ * {@link TemplateInputSerializer} that does not build any intermediate tree :
+ * parameters are written directly to a {@link StringBuilder} and read back
+ * with a StAX {@link XMLStreamReader}.
+ * <p>
+ * The output is byte for byte the one of the
+ * {@link Dom4jTemplateInputSerializer} : same attribute order, same escaping
+ * rules, empty elements written as <code>&lt;nxdt:field .../&gt;</code>.
+ */
+public class StreamingTemplateInputSerializer implements
+        TemplateInputSerializer {
+
+    protected static final Log log = LogFactory.getLog(StreamingTemplateInputSerializer.class);
+
+    protected static final String FIELDS_QNAME = XMLSerializer.XML_NAMESPACE_PREFIX
+            + ":" + XMLSerializer.fieldsTag.getName();
+
+    protected static final String FIELD_QNAME = XMLSerializer.XML_NAMESPACE_PREFIX
+            + ":" + XMLSerializer.fieldTag.getName();
+
+    protected final XMLInputFactory inputFactory;
+
+    public StreamingTemplateInputSerializer() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+                Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    public String serialize(List<TemplateInput> params) {
+
+        StringBuilder sb = new StringBuilder(64 + params.size() * 96);
+        sb.append('<').append(FIELDS_QNAME);
+        sb.append(" xmlns:").append(XMLSerializer.XML_NAMESPACE_PREFIX).append(
+                "=\"").append(XMLSerializer.XML_NAMESPACE).append('"');
+        if (params.isEmpty()) {
+            return sb.append("/>").toString();
+        }
+        sb.append('>');
+
+        for (TemplateInput input : params) {
+
+            sb.append('<').append(FIELD_QNAME);
+
+            appendAttribute(sb, "name", input.getName());
+
+            InputType type = input.getType();
+            if (type == null) {
+                log.warn(input.getName() + " is null");
+            }
+            appendAttribute(sb, "type", type.getValue());
+
+            if (input.isReadOnly()) {
+                appendAttribute(sb, "readonly", "true");
+            }
+
+            if (input.isAutoLoop()) {
+                appendAttribute(sb, "autoloop", "true");
+            }
+
+            if (InputType.StringValue.equals(type)) {
+                appendAttribute(sb, "value", input.getStringValue());
+            } else if (InputType.DateValue.equals(type)) {
+                appendAttribute(sb, "value",
+                        XMLSerializer.formatDate(input.getDateValue()));
+            } else if (InputType.BooleanValue.equals(type)) {
+                appendAttribute(sb, "value",
+                        input.getBooleanValue().toString());
+            } else {
+                appendAttribute(sb, "source", input.getSource());
+            }
+
+            if (input.getDesciption() != null) {
+                sb.append('>');
+                appendText(sb, input.getDesciption());
+                sb.append("</").append(FIELD_QNAME).append('>');
+            } else {
+                sb.append("/>");
+            }
+        }
+        return sb.append("</").append(FIELDS_QNAME).append('>').toString();
+    }
+
+    /**
+     * Null values are skipped, as dom4j does.
+     */
+    protected void appendAttribute(StringBuilder sb, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        sb.append(' ').append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            case '&':
+                sb.append("&amp;");
+                break;
+            default:
+                appendChar(sb, c);
+            }
+        }
+        sb.append('"');
+    }
+
+    protected void appendText(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '&':
+                sb.append("&amp;");
+                break;
+            default:
+                appendChar(sb, c);
+            }
+        }
+    }
+
+    protected void appendChar(StringBuilder sb, char c) {
+        if (c < 32 && c != '\t' && c != '\n' && c != '\r') {
+            sb.append("&#").append((int) c).append(';');
+        } else {
+            sb.append(c);
+        }
+    }
+
+    public List<TemplateInput> readFromXml(String xml) throws Exception {
+
+        List<TemplateInput> result = new ArrayList<TemplateInput>();
+
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(
+                xml));
+        try {
+            int depth = 0;
+            TemplateInput param = null;
+            StringBuilder text = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 2 && isFieldElement(reader)) {
+                        param = readField(reader);
+                        text = new StringBuilder();
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 2 && param != null) {
+                        // same as dom4j getText() : direct text content only
+                        param.setDesciption(text.toString());
+                        result.add(param);
+                        param = null;
+                    }
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (depth == 2 && param != null) {
+                        text.append(reader.getText());
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    protected boolean isFieldElement(XMLStreamReader reader) {
+        return XMLSerializer.fieldTag.getName().equals(reader.getLocalName())
+                && XMLSerializer.XML_NAMESPACE.equals(reader.getNamespaceURI());
+    }
+
+    protected TemplateInput readField(XMLStreamReader reader) throws Exception {
+
+        TemplateInput param = new TemplateInput(reader.getAttributeValue(null,
+                "name"));
+
+        InputType type = InputType.StringValue;
+
+        String typeValue = reader.getAttributeValue(null, "type");
+        if (typeValue != null) {
+            type = InputType.getByValue(typeValue);
+            param.setType(type);
+        }
+
+        String strValue = reader.getAttributeValue(null, "value");
+        if (InputType.StringValue.equals(type)) {
+            param.setStringValue(strValue);
+        } else if (InputType.DateValue.equals(type)) {
+            param.setDateValue(XMLSerializer.parseDate(strValue));
+        } else if (InputType.BooleanValue.equals(type)) {
+            param.setBooleanValue(new Boolean(strValue));
+        } else {
+            param.setSource(reader.getAttributeValue(null, "source"));
+        }
+
+        String readOnly = reader.getAttributeValue(null, "readonly");
+        if (readOnly != null) {
+            param.setReadOnly(Boolean.parseBoolean(readOnly));
+        }
+
+        String autoLoop = reader.getAttributeValue(null, "autoloop");
+        if (autoLoop != null) {
+            param.setAutoLoop(Boolean.parseBoolean(autoLoop));
+        }
+        return param;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.serializer;
+
+import java.util.List;
+
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+
+/**
+ * Serialization format of the {@link TemplateInput} parameters stored in the
+ * documents. Implementations must be thread safe : a single instance is used
+ * by {@link XMLSerializer}.
+ */
+public interface TemplateInputSerializer {
+
+    String serialize(List<TemplateInput> params);
+
+    List<TemplateInput> readFromXml(String xml) throws Exception;
+
+}
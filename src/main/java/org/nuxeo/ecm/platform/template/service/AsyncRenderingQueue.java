@@ -0,0 +1,407 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Runs the {@link RenderJob}s submitted to the
+ * {@link TemplateProcessorService}.
+ * <p>
+ * Each processor type has its own pool of worker threads, sized by the
+ * maxConcurrency attribute of the processor contribution, so that slow
+ * processors (JOD, XDocReport + PDF conversion) can not starve the other
+ * ones. Pending jobs are ordered by priority and then by submission order;
+ * the total number of pending jobs is bounded.
+ * <p>
+ * Each job runs in its own transaction, with a session opened as the user
+ * who submitted it, so that the rendering and the store are subject to
+ * their rights. A {@link #RENDERING_COMPLETED_EVENT} or
+ * {@link #RENDERING_FAILED_EVENT} event is fired when the job is done.
+ * <p>
+ * Jobs are kept in a map until they are done; only a bounded history of
+ * their status, without the rendered Blob, is kept afterwards.
+ */
+public class AsyncRenderingQueue {
+
+    protected static final Log log = LogFactory.getLog(AsyncRenderingQueue.class);
+
+    public static final String RENDERING_COMPLETED_EVENT = "templateRenderingCompleted";
+
+    public static final String RENDERING_FAILED_EVENT = "templateRenderingFailed";
+
+    public static final String JOB_ID_PROPERTY = "renderJobId";
+
+    public static final String TEMPLATE_NAME_PROPERTY = "templateName";
+
+    public static final String QUEUE_SIZE_PROPERTY = "org.nuxeo.template.async.queue.size";
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    // status of the done jobs is kept for lookup by id
+    public static final int JOB_HISTORY_SIZE = 1000;
+
+    protected final int capacity;
+
+    protected final AtomicInteger pending = new AtomicInteger();
+
+    protected final AtomicLong sequence = new AtomicLong();
+
+    protected final Map<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+    // scheduled and running jobs
+    protected final Map<String, RenderJob> jobs = new ConcurrentHashMap<String, RenderJob>();
+
+    protected final TemplateCache<RenderJob> history = new TemplateCache<RenderJob>(
+            "RenderJobs", JOB_HISTORY_SIZE);
+
+    protected volatile boolean shutdown = false;
+
+    public AsyncRenderingQueue() {
+        this(TemplateCache.getConfiguredSize(QUEUE_SIZE_PROPERTY,
+                DEFAULT_QUEUE_SIZE));
+    }
+
+    public AsyncRenderingQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    protected class RenderTask implements Runnable, Comparable<RenderTask> {
+
+        protected final RenderJob job;
+
+        protected final long seq = sequence.incrementAndGet();
+
+        protected RenderTask(RenderJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public int compareTo(RenderTask other) {
+            if (job.getPriority() != other.job.getPriority()) {
+                return job.getPriority() > other.job.getPriority() ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            pending.decrementAndGet();
+            execute(job);
+        }
+    }
+
+    protected static class RenderRunner extends UnrestrictedSessionRunner {
+
+        protected final RenderJob job;
+
+        protected Blob result;
+
+        protected RenderRunner(RenderJob job) {
+            super(job.getRepositoryName(), job.getOriginatingUser());
+            this.job = job;
+        }
+
+        @Override
+        public void run() throws ClientException {
+            result = render(session, job);
+        }
+    }
+
+    protected static Blob render(CoreSession session, RenderJob job)
+            throws ClientException {
+        DocumentModel doc = session.getDocument(new IdRef(job.getDocId()));
+        TemplateBasedDocument adapter = doc.getAdapter(TemplateBasedDocument.class);
+        if (adapter == null) {
+            throw new ClientException("Document " + job.getDocId()
+                    + " is not template based");
+        }
+        try {
+            Blob result;
+            if (job.isStore()) {
+                result = adapter.renderAndStoreAsAttachment(
+                        job.getTemplateName(), true);
+                session.save();
+            } else {
+                result = adapter.renderWithTemplate(job.getTemplateName());
+            }
+            return result;
+        } catch (ClientException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /**
+     * Renders with a session opened as the user who submitted the job. Jobs
+     * submitted from a system session keep running unrestricted.
+     */
+    protected Blob renderAsOriginatingUser(RenderJob job) throws Exception {
+        if (SecurityConstants.SYSTEM_USERNAME.equals(job.getOriginatingUser())) {
+            RenderRunner runner = new RenderRunner(job);
+            runner.runUnrestricted();
+            return runner.result;
+        }
+        LoginContext lc = Framework.loginAsUser(job.getOriginatingUser());
+        CoreSession session = null;
+        try {
+            session = CoreInstance.getInstance().open(job.getRepositoryName(),
+                    null);
+            return render(session, job);
+        } finally {
+            if (session != null) {
+                CoreInstance.getInstance().close(session);
+            }
+            lc.logout();
+        }
+    }
+
+    protected ThreadPoolExecutor getExecutor(final String processorName,
+            int concurrency) {
+        ThreadPoolExecutor executor = executors.get(processorName);
+        if (executor == null) {
+            synchronized (executors) {
+                if (shutdown) {
+                    throw new RejectedExecutionException(
+                            "Rendering queue is shut down");
+                }
+                executor = executors.get(processorName);
+                if (executor == null) {
+                    ThreadFactory factory = new ThreadFactory() {
+                        protected final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "nxtemplate-render-" + processorName
+                                            + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    };
+                    int size = Math.max(concurrency, 1);
+                    executor = new ThreadPoolExecutor(size, size, 60,
+                            TimeUnit.SECONDS,
+                            new PriorityBlockingQueue<Runnable>(), factory);
+                    executor.allowCoreThreadTimeOut(true);
+                    executors.put(processorName, executor);
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the job on the pool of its processor. When called inside a
+     * transaction, the job is only started once the transaction is committed
+     * so that it sees the submitted document state.
+     *
+     * @throws ClientException if the queue is full
+     */
+    public RenderJob submit(final RenderJob job, final int concurrency)
+            throws ClientException {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            throw new ClientException("Rendering queue is full (" + capacity
+                    + " pending jobs), can not render document "
+                    + job.getDocId());
+        }
+        if (shutdown) {
+            pending.decrementAndGet();
+            throw new ClientException("Rendering queue is shut down");
+        }
+        jobs.put(job.getId(), job);
+        if (!TransactionHelper.isTransactionActive()) {
+            enqueue(job, concurrency);
+            return job;
+        }
+        try {
+            Transaction tx = TransactionHelper.lookupTransactionManager().getTransaction();
+            tx.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        enqueue(job, concurrency);
+                    } else {
+                        abort(job, "Submitting transaction was rolled back");
+                    }
+                }
+            });
+        } catch (Exception e) {
+            pending.decrementAndGet();
+            jobs.remove(job.getId());
+            throw new ClientException("Unable to submit rendering job", e);
+        }
+        return job;
+    }
+
+    protected void enqueue(RenderJob job, int concurrency) {
+        if (shutdown) {
+            abort(job, "Rendering queue is shut down");
+            return;
+        }
+        try {
+            getExecutor(job.getProcessorName(), concurrency).execute(
+                    new RenderTask(job));
+        } catch (RejectedExecutionException e) {
+            abort(job, "Rendering queue is shut down");
+        }
+    }
+
+    /**
+     * Fails a job that will not be run.
+     */
+    protected void abort(RenderJob job, String message) {
+        pending.decrementAndGet();
+        job.failed(new ClientException(message));
+        retire(job);
+    }
+
+    /**
+     * Moves a done job to the history, keeping only its status.
+     */
+    protected void retire(RenderJob job) {
+        history.put(job.getId(), job.getStatusCopy());
+        jobs.remove(job.getId());
+    }
+
+    /**
+     * Returns the job if it is not done, a status only copy if it is in the
+     * history of the done jobs, or null.
+     */
+    public RenderJob getJob(String jobId) {
+        RenderJob job = jobs.get(jobId);
+        if (job == null) {
+            job = history.peek(jobId);
+        }
+        return job;
+    }
+
+    public int getPendingJobs() {
+        return pending.get();
+    }
+
+    protected void execute(RenderJob job) {
+        job.running();
+        boolean txStarted = TransactionHelper.startTransaction();
+        Blob result = null;
+        Throwable error = null;
+        try {
+            result = renderAsOriginatingUser(job);
+        } catch (Throwable e) {
+            error = e;
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            if (txStarted) {
+                try {
+                    TransactionHelper.commitOrRollbackTransaction();
+                } catch (Throwable e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+        if (error == null) {
+            job.completed(result);
+            fireEvent(RENDERING_COMPLETED_EVENT, job);
+        } else {
+            log.error("Rendering failed for " + job, error);
+            job.failed(error);
+            fireEvent(RENDERING_FAILED_EVENT, job);
+        }
+        retire(job);
+    }
+
+    protected void fireEvent(String eventName, RenderJob job) {
+        EventService eventService = Framework.getLocalService(EventService.class);
+        if (eventService == null) {
+            return;
+        }
+        EventContextImpl ctx = new EventContextImpl(new IdRef(job.getDocId()));
+        ctx.setRepositoryName(job.getRepositoryName());
+        ctx.setProperty(JOB_ID_PROPERTY, job.getId());
+        ctx.setProperty(TEMPLATE_NAME_PROPERTY, job.getTemplateName());
+        try {
+            eventService.fireEvent(ctx.newEvent(eventName));
+        } catch (ClientException e) {
+            log.error("Unable to fire " + eventName + " for " + job, e);
+        }
+    }
+
+    /**
+     * Stops the worker threads. Jobs that were not started are failed so that
+     * the threads waiting for them return.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (executors) {
+            for (ThreadPoolExecutor executor : executors.values()) {
+                List<Runnable> dropped = executor.shutdownNow();
+                for (Runnable task : dropped) {
+                    if (task instanceof RenderTask) {
+                        abort(((RenderTask) task).job,
+                                "Rendering queue is shut down");
+                    }
+                }
+            }
+            executors.clear();
+        }
+        // jobs still waiting for their submitting transaction are failed
+        // when it completes, see enqueue
+        history.clear();
+    }
+
+}
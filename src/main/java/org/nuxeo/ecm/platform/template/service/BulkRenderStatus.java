@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a bulk re-rendering started with
+ * {@link TemplateProcessorService#renderLinkedDocuments}.
+ */
+public class BulkRenderStatus {
+
+    // only the first failures are kept with their message
+    public static final int MAX_REPORTED_FAILURES = 1000;
+
+    protected final String templateId;
+
+    protected final long started = System.currentTimeMillis();
+
+    protected volatile long finished = 0;
+
+    // -1 until all the linked documents have been listed
+    protected volatile int total = -1;
+
+    protected final AtomicInteger processed = new AtomicInteger();
+
+    protected final AtomicInteger failed = new AtomicInteger();
+
+    protected final AtomicInteger skipped = new AtomicInteger();
+
+    protected final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+    protected final CountDownLatch done = new CountDownLatch(1);
+
+    protected volatile String error;
+
+    public BulkRenderStatus(String templateId) {
+        this.templateId = templateId;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    /**
+     * Number of linked documents, or -1 if they are still being listed.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    public int getSucceeded() {
+        return processed.get() - failed.get() - skipped.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of documents that were not bound to the template anymore.
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the error messages by document id.
+     */
+    public Map<String, String> getFailures() {
+        synchronized (failures) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                    failures));
+        }
+    }
+
+    /**
+     * Returns the error that stopped the listing of the linked documents, or
+     * null : in that case only the documents listed before are processed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public long getDuration() {
+        return (isDone() ? finished : System.currentTimeMillis()) - started;
+    }
+
+    public boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    protected void setTotal(int total) {
+        this.total = total;
+    }
+
+    protected void succeeded() {
+        processed.incrementAndGet();
+    }
+
+    protected void skipped() {
+        skipped.incrementAndGet();
+        processed.incrementAndGet();
+    }
+
+    protected void failed(String docId, String message) {
+        synchronized (failures) {
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.put(docId, message);
+            }
+        }
+        failed.incrementAndGet();
+        processed.incrementAndGet();
+    }
+
+    protected void listingFailed(String error) {
+        this.error = error;
+    }
+
+    protected void finished() {
+        finished = System.currentTimeMillis();
+        done.countDown();
+    }
+
+    @Override
+    public String toString() {
+        return "BulkRenderStatus [template=" + templateId + ", processed="
+                + getProcessed() + "/" + total + ", failed=" + getFailed()
+                + (error == null ? "" : ", error=" + error) + "]";
+    }
+
+}
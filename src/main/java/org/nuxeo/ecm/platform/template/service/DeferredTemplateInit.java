@@ -0,0 +1,290 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Extracts the parameters of new TemplateSource documents in background.
+ * <p>
+ * When enabled, the
+ * {@link org.nuxeo.ecm.platform.template.listeners.TemplateInitListener} does
+ * not run {@link TemplateSourceDocument#initTemplate(boolean)} in the creating
+ * transaction : it only marks the template as initializing, and the
+ * extraction is queued once the transaction is committed. Templates are
+ * initialized in parallel by a pool of worker threads, each one in its own
+ * transaction, and the initializing flag is cleared when done. This is
+ * mainly useful when importing many templates at once.
+ */
+public class DeferredTemplateInit {
+
+    protected static final Log log = LogFactory.getLog(DeferredTemplateInit.class);
+
+    public static final String DEFERRED_PROPERTY = "org.nuxeo.template.init.deferred";
+
+    public static final String THREADS_PROPERTY = "org.nuxeo.template.init.threads";
+
+    public static final int DEFAULT_THREADS = 4;
+
+    // a document created without transaction may not be visible yet
+    protected static final int MAX_ATTEMPTS = 10;
+
+    protected static final long RETRY_DELAY = 500;
+
+    protected final int nbThreads;
+
+    // repository:id of the scheduled templates
+    protected final Map<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    protected final AtomicInteger initialized = new AtomicInteger();
+
+    protected ScheduledThreadPoolExecutor executor;
+
+    public DeferredTemplateInit() {
+        this(TemplateCache.getConfiguredSize(THREADS_PROPERTY, DEFAULT_THREADS));
+    }
+
+    public DeferredTemplateInit(int nbThreads) {
+        this.nbThreads = Math.max(nbThreads, 1);
+    }
+
+    /**
+     * Tells if the deferred mode is enabled by the runtime configuration.
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Framework.getProperty(DEFERRED_PROPERTY,
+                "false"));
+    }
+
+    protected class InitTask implements Runnable {
+
+        protected final String repositoryName;
+
+        protected final String docId;
+
+        protected int attempts = 0;
+
+        protected InitTask(String repositoryName, String docId) {
+            this.repositoryName = repositoryName;
+            this.docId = docId;
+        }
+
+        protected String getKey() {
+            return repositoryName + ":" + docId;
+        }
+
+        @Override
+        public void run() {
+            attempts++;
+            boolean found = false;
+            try {
+                found = initTemplate(repositoryName, docId);
+            } catch (Throwable e) {
+                found = true;
+                log.error("Deferred initialization failed for template "
+                        + docId, e);
+            }
+            if (!found && attempts < MAX_ATTEMPTS && enqueue(this, RETRY_DELAY)) {
+                return;
+            }
+            if (!found) {
+                log.warn("Template " + docId
+                        + " not found, deferred initialization skipped");
+            }
+            pending.remove(getKey());
+        }
+    }
+
+    protected synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(nbThreads,
+                    new ThreadFactory() {
+                        protected final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "nxtemplate-init-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the initialization of the given template. When called inside a
+     * transaction, the initialization is only started once the transaction is
+     * committed. Templates already queued are ignored.
+     */
+    public void schedule(String repositoryName, String docId)
+            throws ClientException {
+        final InitTask task = new InitTask(repositoryName, docId);
+        if (pending.put(task.getKey(), Boolean.TRUE) != null) {
+            return;
+        }
+        if (!TransactionHelper.isTransactionActive()) {
+            enqueue(task, 0);
+            return;
+        }
+        try {
+            Transaction tx = TransactionHelper.lookupTransactionManager().getTransaction();
+            tx.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        enqueue(task, 0);
+                    } else {
+                        pending.remove(task.getKey());
+                    }
+                }
+            });
+        } catch (Exception e) {
+            pending.remove(task.getKey());
+            throw new ClientException(
+                    "Unable to schedule the initialization of template "
+                            + docId, e);
+        }
+    }
+
+    protected boolean enqueue(InitTask task, long delay) {
+        try {
+            getExecutor().schedule(task, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            // shut down
+            pending.remove(task.getKey());
+            return false;
+        }
+    }
+
+    /**
+     * Extracts the parameters of the template and clears its initializing
+     * flag.
+     *
+     * @return false if the document can not be found
+     */
+    protected boolean initTemplate(String repositoryName, final String docId)
+            throws ClientException {
+        final boolean[] found = new boolean[1];
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    DocumentRef ref = new IdRef(docId);
+                    if (!session.exists(ref)) {
+                        return;
+                    }
+                    found[0] = true;
+                    DocumentModel doc = session.getDocument(ref);
+                    TemplateSourceDocument source = doc.getAdapter(TemplateSourceDocument.class);
+                    if (source == null || !source.isInitializing()) {
+                        return;
+                    }
+                    try {
+                        source.initTemplate(false);
+                        initialized.incrementAndGet();
+                    } catch (Exception e) {
+                        log.error(
+                                "Error during parameter automatic initialization",
+                                e);
+                    }
+                    // don't init again when saving, even after a failure
+                    doc.getContextData().put(
+                            TemplateSourceDocument.INIT_DONE_FLAG, true);
+                    source.setInitializing(false, false);
+                    session.saveDocument(doc);
+                    session.save();
+                }
+            }.runUnrestricted();
+        } catch (ClientException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+        return found[0];
+    }
+
+    public boolean isPending(String repositoryName, String docId) {
+        return pending.containsKey(repositoryName + ":" + docId);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public int getInitializedCount() {
+        return initialized.get();
+    }
+
+    /**
+     * Waits until all the scheduled templates are initialized.
+     *
+     * @return false if the timeout expired before
+     */
+    public boolean awaitCompletion(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBinding;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Re-renders all the documents bound to a template, typically after the
+ * template has been fixed.
+ * <p>
+ * The ids of the linked documents are read page by page, without loading the
+ * documents, each page in its own transaction. They are split in batches
+ * processed in parallel by a pool of worker threads : each batch renders and
+ * stores its documents in a single transaction. The queue of pending batches
+ * is bounded so that the listing does not get too far ahead of the
+ * rendering. Progress and failures are reported in a {@link BulkRenderStatus}.
+ * <p>
+ * The listing and the batches run with sessions opened as the user who
+ * started the re-rendering : documents they can not read are not listed, and
+ * documents they can not write are reported as failed.
+ */
+public class LinkedDocumentsRenderer {
+
+    protected static final Log log = LogFactory.getLog(LinkedDocumentsRenderer.class);
+
+    public static final String THREADS_PROPERTY = "org.nuxeo.template.bulk.threads";
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    // number of ids read per transaction
+    protected static final int ID_PAGE_SIZE = 1000;
+
+    protected static final AtomicInteger threadCount = new AtomicInteger();
+
+    protected final String repositoryName;
+
+    protected final String templateId;
+
+    protected final String originatingUser;
+
+    protected final int batchSize;
+
+    protected final int nbThreads;
+
+    protected final BulkRenderStatus status;
+
+    public LinkedDocumentsRenderer(String repositoryName, String templateId,
+            String originatingUser, int batchSize) {
+        this.repositoryName = repositoryName;
+        this.templateId = templateId;
+        this.originatingUser = originatingUser;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        nbThreads = TemplateCache.getConfiguredSize(THREADS_PROPERTY,
+                DEFAULT_THREADS);
+        status = new BulkRenderStatus(templateId);
+    }
+
+    protected static ThreadFactory newThreadFactory() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nxtemplate-bulk-render-"
+                        + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Starts the re-rendering in background and returns immediately.
+     */
+    public BulkRenderStatus start() {
+        newThreadFactory().newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renderAll();
+                } catch (Exception e) {
+                    log.error("Bulk rendering failed for template "
+                            + templateId, e);
+                } finally {
+                    status.finished();
+                }
+            }
+        }).start();
+        return status;
+    }
+
+    public BulkRenderStatus getStatus() {
+        return status;
+    }
+
+    protected void renderAll() throws Exception {
+        log.info("Re-rendering the documents linked to template " + templateId);
+        int threads = Math.max(nbThreads, 1);
+        // when the queue is full the listing thread renders the batch itself
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2),
+                newThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+        int total = 0;
+        try {
+            List<String> ids;
+            String lastId = null;
+            do {
+                ids = fetchLinkedDocumentIds(lastId, ID_PAGE_SIZE);
+                for (int i = 0; i < ids.size(); i += batchSize) {
+                    final List<String> batch = ids.subList(i,
+                            Math.min(i + batchSize, ids.size()));
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            renderBatch(batch);
+                        }
+                    });
+                }
+                total += ids.size();
+                if (!ids.isEmpty()) {
+                    lastId = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == ID_PAGE_SIZE);
+            status.setTotal(total);
+        } catch (Exception e) {
+            status.setTotal(total);
+            status.listingFailed("Unable to list the linked documents : "
+                    + e.getMessage());
+            throw e;
+        } finally {
+            // the batches of the pages already listed must be done before
+            // the status is reported as finished
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Bulk rendering in progress : " + status);
+            }
+        }
+        log.info("Bulk rendering done : " + status);
+    }
+
+    /**
+     * Returns the page of the ids of the documents bound to the template that
+     * follows the given id, in its own transaction.
+     */
+    protected List<String> fetchLinkedDocumentIds(final String afterId,
+            final int pageSize) throws Exception {
+        final List<String> ids = new ArrayList<String>();
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UserSessionRunner(repositoryName, originatingUser) {
+                @Override
+                public void run() throws ClientException {
+                    DocumentModel template = session.getDocument(new IdRef(
+                            templateId));
+                    ids.addAll(Framework.getLocalService(
+                            TemplateProcessorService.class).getLinkedTemplateBasedDocumentIds(
+                            template, afterId, pageSize));
+                }
+            }.runAsUser();
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+        return ids;
+    }
+
+    protected void renderBatch(final List<String> batch) {
+        final Set<String> rendered = new HashSet<String>();
+        final Set<String> skipped = new HashSet<String>();
+        final Map<String, String> errors = new HashMap<String, String>();
+        boolean committed = true;
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UserSessionRunner(repositoryName, originatingUser) {
+                @Override
+                public void run() throws ClientException {
+                    for (String id : batch) {
+                        try {
+                            IdRef ref = new IdRef(id);
+                            if (!session.hasPermission(ref,
+                                    SecurityConstants.WRITE_PROPERTIES)) {
+                                errors.put(id, "Not allowed to write document");
+                                continue;
+                            }
+                            DocumentModel doc = session.getDocument(ref);
+                            if (renderDocument(doc)) {
+                                rendered.add(id);
+                            } else {
+                                skipped.add(id);
+                            }
+                        } catch (Exception e) {
+                            log.debug("Unable to render document " + id, e);
+                            errors.put(id, String.valueOf(e.getMessage()));
+                        }
+                    }
+                    session.save();
+                }
+            }.runAsUser();
+        } catch (Exception e) {
+            log.error("Unable to process batch", e);
+            committed = false;
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            if (txStarted) {
+                try {
+                    TransactionHelper.commitOrRollbackTransaction();
+                } catch (Exception e) {
+                    log.error("Unable to commit batch", e);
+                    committed = false;
+                }
+            }
+        }
+        for (String id : batch) {
+            if (errors.containsKey(id)) {
+                status.failed(id, errors.get(id));
+            } else if (!committed) {
+                status.failed(id, "Batch was rolled back");
+            } else if (skipped.contains(id)) {
+                status.skipped();
+            } else if (rendered.contains(id)) {
+                status.succeeded();
+            }
+        }
+    }
+
+    /**
+     * Renders the document with its binding to the template and stores the
+     * result.
+     *
+     * @return false if the document is not bound to the template anymore
+     */
+    protected boolean renderDocument(DocumentModel doc) throws Exception {
+        TemplateBasedDocument adapter = doc.getAdapter(TemplateBasedDocument.class);
+        if (adapter == null) {
+            return false;
+        }
+        TemplateBinding binding = new TemplateBindings(doc).getByTemplateId(templateId);
+        if (binding == null) {
+            return false;
+        }
+        adapter.renderAndStoreAsAttachment(binding.getName(), true);
+        return true;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress and result of a {@link TemplateParamsMigrator} run : number of
+ * migrated documents, and size and parse time of the parameters before and
+ * after the migration.
+ * <p>
+ * The migration runs in background : the report is updated as batches are
+ * committed and can be read at any time.
+ */
+public class ParamsMigrationReport {
+
+    // only the first failures are kept with their message
+    public static final int MAX_REPORTED_FAILURES = 1000;
+
+    protected final String targetEncoding;
+
+    protected int scanned;
+
+    protected int migrated;
+
+    protected int values;
+
+    protected long bytesBefore;
+
+    protected long bytesAfter;
+
+    protected long parseNanosBefore;
+
+    protected long parseNanosAfter;
+
+    protected int failed;
+
+    protected final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+    protected final CountDownLatch done = new CountDownLatch(1);
+
+    protected volatile String error;
+
+    public ParamsMigrationReport(String targetEncoding) {
+        this.targetEncoding = targetEncoding;
+    }
+
+    public String getTargetEncoding() {
+        return targetEncoding;
+    }
+
+    /**
+     * Number of documents holding template parameters.
+     */
+    public synchronized int getScanned() {
+        return scanned;
+    }
+
+    /**
+     * Number of documents rewritten with the target encoding.
+     */
+    public synchronized int getMigrated() {
+        return migrated;
+    }
+
+    /**
+     * Number of parameter lists rewritten : a document has one list per
+     * binding.
+     */
+    public synchronized int getValues() {
+        return values;
+    }
+
+    public synchronized long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    public synchronized long getBytesAfter() {
+        return bytesAfter;
+    }
+
+    public synchronized long getParseNanosBefore() {
+        return parseNanosBefore;
+    }
+
+    public synchronized long getParseNanosAfter() {
+        return parseNanosAfter;
+    }
+
+    public synchronized long getBytesSavedPerDocument() {
+        return migrated == 0 ? 0 : (bytesBefore - bytesAfter) / migrated;
+    }
+
+    public synchronized long getParseNanosSavedPerDocument() {
+        return migrated == 0 ? 0 : (parseNanosBefore - parseNanosAfter)
+                / migrated;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                failures));
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Returns the message of the error that stopped the migration, if any.
+     */
+    public String getError() {
+        return error;
+    }
+
+    protected synchronized void scanned() {
+        scanned++;
+    }
+
+    protected synchronized void migrated(ParamsMigrationReport docReport) {
+        migrated++;
+        values += docReport.values;
+        bytesBefore += docReport.bytesBefore;
+        bytesAfter += docReport.bytesAfter;
+        parseNanosBefore += docReport.parseNanosBefore;
+        parseNanosAfter += docReport.parseNanosAfter;
+    }
+
+    protected synchronized void value(long sizeBefore, long sizeAfter,
+            long parseBefore, long parseAfter) {
+        values++;
+        bytesBefore += sizeBefore;
+        bytesAfter += sizeAfter;
+        parseNanosBefore += parseBefore;
+        parseNanosAfter += parseAfter;
+    }
+
+    protected synchronized void failed(String docId, String message) {
+        if (failures.size() < MAX_REPORTED_FAILURES) {
+            failures.put(docId, message);
+        }
+        failed++;
+    }
+
+    protected void finished(Exception e) {
+        if (e != null) {
+            error = String.valueOf(e.getMessage());
+        }
+        done.countDown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ParamsMigrationReport [encoding=" + targetEncoding
+                + ", done=" + isDone()
+                + (error == null ? "" : ", error=" + error) + ", migrated="
+                + migrated + "/" + scanned + ", failed="
+                + failed + ", bytes=" + bytesBefore + "->" + bytesAfter
+                + ", bytesSavedPerDoc=" + getBytesSavedPerDocument()
+                + ", parseNsSavedPerDoc=" + getParseNanosSavedPerDocument()
+                + "]";
+    }
+
+}
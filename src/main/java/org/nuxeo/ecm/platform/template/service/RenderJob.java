@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Handle on a rendering submitted to the asynchronous rendering queue (see
+ * {@link TemplateProcessorService#submitRendering}).
+ * <p>
+ * When the job is configured to store its result, the rendered Blob is set as
+ * main Blob of the document; otherwise it is only kept in the handle.
+ */
+public class RenderJob {
+
+    public enum Status {
+        SCHEDULED, RUNNING, COMPLETED, FAILED
+    }
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    protected final String id;
+
+    protected final String repositoryName;
+
+    protected final String docId;
+
+    protected final String templateName;
+
+    protected final String processorName;
+
+    protected final String originatingUser;
+
+    protected final boolean store;
+
+    protected final int priority;
+
+    protected final long submitted;
+
+    protected volatile Status status = Status.SCHEDULED;
+
+    protected volatile Blob result;
+
+    protected volatile Throwable error;
+
+    protected final CountDownLatch done = new CountDownLatch(1);
+
+    public RenderJob(String repositoryName, String docId,
+            String templateName, String processorName,
+            String originatingUser, boolean store, int priority) {
+        this.id = UUID.randomUUID().toString();
+        this.repositoryName = repositoryName;
+        this.docId = docId;
+        this.templateName = templateName;
+        this.processorName = processorName;
+        this.originatingUser = originatingUser;
+        this.store = store;
+        this.priority = priority;
+        this.submitted = System.currentTimeMillis();
+    }
+
+    /**
+     * Status only copy of a done job : the rendered Blob is not kept.
+     */
+    protected RenderJob(RenderJob job) {
+        id = job.id;
+        repositoryName = job.repositoryName;
+        docId = job.docId;
+        templateName = job.templateName;
+        processorName = job.processorName;
+        originatingUser = job.originatingUser;
+        store = job.store;
+        priority = job.priority;
+        submitted = job.submitted;
+        status = job.status;
+        error = job.error;
+        done.countDown();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getDocId() {
+        return docId;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getProcessorName() {
+        return processorName;
+    }
+
+    public String getOriginatingUser() {
+        return originatingUser;
+    }
+
+    public boolean isStore() {
+        return store;
+    }
+
+    /**
+     * Jobs with a higher priority are run first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isDone() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    /**
+     * Returns the rendered Blob once the job is completed. The Blob is only
+     * available from the handle returned at submission, not from the done
+     * jobs history.
+     */
+    public Blob getResult() {
+        return result;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Waits for the job to be done.
+     *
+     * @return true if the job is done, false if the timeout elapsed
+     */
+    public boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    protected RenderJob getStatusCopy() {
+        return new RenderJob(this);
+    }
+
+    protected void running() {
+        status = Status.RUNNING;
+    }
+
+    protected void completed(Blob result) {
+        this.result = result;
+        status = Status.COMPLETED;
+        done.countDown();
+    }
+
+    protected void failed(Throwable error) {
+        this.error = error;
+        status = Status.FAILED;
+        done.countDown();
+    }
+
+    @Override
+    public String toString() {
+        return "RenderJob [id=" + id + ", doc=" + docId + ", template="
+                + templateName + ", status=" + status + "]";
+    }
+
+}
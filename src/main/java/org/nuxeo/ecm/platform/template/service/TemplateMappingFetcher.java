@@ -1,25 +1,50 @@
 package org.nuxeo.ecm.platform.template.service;
 
-import java.util.HashMap;
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
 import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
 import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocumentAdapterImpl;
 import org.nuxeo.runtime.api.Framework;
 
+/**
+ * Reads the forced types of the TemplateSource documents.
+ * <p>
+ * Without date, only the templates bound to at least one type are read.
+ * Otherwise all the templates modified since this date are read, including
+ * the deleted or unbound ones, that are returned with no type. Templates are
+ * returned most recently modified first.
+ * <p>
+ * The ids of all the live templates bound to a type are also collected, so
+ * that the bindings of the templates that were removed can be dropped.
+ */
 public class TemplateMappingFetcher extends UnrestrictedSessionRunner {
 
     protected static String repoName;
 
     protected static final Log log = LogFactory.getLog(TemplateMappingFetcher.class);
 
+    protected static final String LIVE_TEMPLATES = "select ecm:uuid, dc:modified from TemplateSource"
+            + " where ecm:isCheckedInVersion = 0 AND ecm:isProxy = 0";
+
     protected static String getRepoName() {
         if (repoName == null) {
             RepositoryManager rm = Framework.getLocalService(RepositoryManager.class);
@@ -28,37 +53,117 @@ public class TemplateMappingFetcher extends UnrestrictedSessionRunner {
         return repoName;
     }
 
-    protected Map<String, String> mapping = new HashMap<String, String>();
+    protected final Calendar since;
+
+    protected final Map<String, List<String>> templates = new LinkedHashMap<String, List<String>>();
+
+    protected final Set<String> boundIds = new HashSet<String>();
+
+    protected Calendar lastModified;
+
+    protected boolean completed = false;
 
     protected TemplateMappingFetcher() {
-        super(getRepoName());
+        this(null);
     }
 
-    @Override
-    public void run() throws ClientException {
-        StringBuffer sb = new StringBuffer("select * from Document where ");
-        sb.append(TemplateSourceDocumentAdapterImpl.TEMPLATE_FORCED_TYPES_PROP);
-        sb.append(" <> ''");
+    protected TemplateMappingFetcher(Calendar since) {
+        this(getRepoName(), since);
+    }
+
+    protected TemplateMappingFetcher(String repositoryName, Calendar since) {
+        super(repositoryName);
+        this.since = since;
+    }
+
+    protected String buildQuery(Calendar since) {
+        StringBuffer sb = new StringBuffer(LIVE_TEMPLATES);
+        if (since == null) {
+            sb.append(" AND ecm:currentLifeCycleState != 'deleted' AND ");
+            sb.append(TemplateSourceDocumentAdapterImpl.TEMPLATE_FORCED_TYPES_PROP);
+            sb.append(" <> '");
+            sb.append(TemplateSourceDocumentAdapterImpl.TEMPLATE_FORCED_TYPES_NONE);
+            sb.append("'");
+        } else {
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            sb.append(" AND dc:modified >= TIMESTAMP '");
+            sb.append(format.format(since.getTime()));
+            sb.append("'");
+        }
         sb.append(" order by dc:modified desc");
+        return sb.toString();
+    }
 
-        DocumentModelList docs = session.query(sb.toString());
+    @Override
+    public void run() throws ClientException {
+        List<String> ids = new ArrayList<String>();
+        IterableQueryResult result = session.queryAndFetch(buildQuery(since),
+                NXQL.NXQL);
+        try {
+            for (Map<String, Serializable> row : result) {
+                ids.add((String) row.get(NXQL.ECM_UUID));
+                Calendar modified = (Calendar) row.get("dc:modified");
+                if (modified != null
+                        && (lastModified == null || modified.after(lastModified))) {
+                    lastModified = modified;
+                }
+            }
+        } finally {
+            result.close();
+        }
+        if (since == null) {
+            boundIds.addAll(ids);
+        } else {
+            result = session.queryAndFetch(buildQuery(null), NXQL.NXQL);
+            try {
+                for (Map<String, Serializable> row : result) {
+                    boundIds.add((String) row.get(NXQL.ECM_UUID));
+                }
+            } finally {
+                result.close();
+            }
+        }
 
-        for (DocumentModel doc : docs) {
+        for (String id : ids) {
+            List<String> types = Collections.emptyList();
+            DocumentModel doc = session.getDocument(new IdRef(id));
             TemplateSourceDocument tmpl = doc.getAdapter(TemplateSourceDocument.class);
-            if (tmpl!=null) {
-                for (String type : tmpl.getForcedTypes()) {
-                    if (mapping.containsKey(type)) {
-                        log.warn("Several templates are mapped to type " + type + ": " + mapping.get(type) + " -- " + doc.getId());
-                        // XXX fix
-                    } else {
-                        mapping.put(type, doc.getId());
-                    }
-                }
+            if (tmpl != null && !"deleted".equals(doc.getCurrentLifeCycleState())) {
+                types = tmpl.getForcedTypes();
             }
+            templates.put(id, types);
         }
+        completed = true;
+    }
+
+    /**
+     * Returns the forced types by template id, most recently modified
+     * template first.
+     */
+    public Map<String, List<String>> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Returns the ids of the live templates bound to at least one type.
+     */
+    public Set<String> getBoundIds() {
+        return boundIds;
+    }
+
+    /**
+     * Returns false if the templates could not be read.
+     */
+    public boolean isCompleted() {
+        return completed;
     }
 
-    public Map<String, String> getMapping() {
-        return mapping;
+    /**
+     * Returns the most recent modification date of the read templates.
+     */
+    public Calendar getLastModified() {
+        return lastModified;
     }
 }
@@ -0,0 +1,260 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.platform.dublincore.listener.DublinCoreListener;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBinding;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocumentAdapterImpl;
+import org.nuxeo.ecm.platform.template.serializer.TemplateInputSerializer;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Rewrites the template parameters stored in the repository (tmpl:templateData
+ * and nxts:bindings/*&#47;templateData) with a given
+ * {@link TemplateInputSerializer}, typically to move existing documents to the
+ * compact JSON encoding.
+ * <p>
+ * Documents are processed in batches, each batch in its own transaction.
+ * dc:modified is left untouched since the parameters don't change.
+ */
+public class TemplateParamsMigrator {
+
+    protected static final Log log = LogFactory.getLog(TemplateParamsMigrator.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    protected static final String QUERY = "select " + NXQL.ECM_UUID
+            + " from Document where ecm:mixinType IN ('Template', 'TemplateBased')"
+            + " AND ecm:isCheckedInVersion = 0 AND ecm:isProxy = 0";
+
+    protected static final String SOURCE_SCHEMA = "documenttemplate";
+
+    protected static final String BINDINGS_SCHEMA = "templatesupport";
+
+    protected final String repositoryName;
+
+    protected final TemplateInputSerializer target;
+
+    protected final int batchSize;
+
+    protected final ParamsMigrationReport report;
+
+    public TemplateParamsMigrator(String repositoryName,
+            TemplateInputSerializer target, int batchSize) {
+        this.repositoryName = repositoryName;
+        this.target = target;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        report = new ParamsMigrationReport(target.getClass().getSimpleName());
+    }
+
+    /**
+     * Starts the migration in background and returns immediately : the
+     * returned report is updated as the batches are committed. The batches
+     * run in their own transactions, outside of the one of the caller.
+     */
+    public ParamsMigrationReport start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    migrateAll();
+                } catch (Exception e) {
+                    log.error("Template parameters migration failed", e);
+                    error = e;
+                } finally {
+                    report.finished(error);
+                }
+            }
+        }, "nxtemplate-params-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return report;
+    }
+
+    public ParamsMigrationReport getReport() {
+        return report;
+    }
+
+    protected void migrateAll() throws ClientException {
+        List<String> ids = fetchDocumentIds();
+        log.info("Migrating template parameters of " + ids.size()
+                + " documents to " + report.getTargetEncoding());
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            migrateBatch(ids.subList(i, Math.min(i + batchSize, ids.size())));
+        }
+        log.info("Template parameters migration done : " + report);
+    }
+
+    protected List<String> fetchDocumentIds() throws ClientException {
+        final List<String> ids = new ArrayList<String>();
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    IterableQueryResult result = session.queryAndFetch(QUERY,
+                            NXQL.NXQL);
+                    try {
+                        for (Map<String, Serializable> row : result) {
+                            ids.add((String) row.get(NXQL.ECM_UUID));
+                        }
+                    } finally {
+                        result.close();
+                    }
+                }
+            }.runUnrestricted();
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+        return ids;
+    }
+
+    protected void migrateBatch(final List<String> batch) {
+        final List<ParamsMigrationReport> migrated = new ArrayList<ParamsMigrationReport>();
+        boolean committed = true;
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    for (String id : batch) {
+                        report.scanned();
+                        try {
+                            DocumentModel doc = session.getDocument(new IdRef(
+                                    id));
+                            ParamsMigrationReport docReport = migrateDocument(doc);
+                            if (docReport.getValues() > 0) {
+                                doc.putContextData(
+                                        DublinCoreListener.DISABLE_DUBLINCORE_LISTENER,
+                                        Boolean.TRUE);
+                                session.saveDocument(doc);
+                                migrated.add(docReport);
+                            }
+                        } catch (Exception e) {
+                            log.debug("Unable to migrate document " + id, e);
+                            report.failed(id, String.valueOf(e.getMessage()));
+                        }
+                    }
+                    session.save();
+                }
+            }.runUnrestricted();
+        } catch (Exception e) {
+            log.error("Unable to migrate batch", e);
+            committed = false;
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            if (txStarted) {
+                try {
+                    TransactionHelper.commitOrRollbackTransaction();
+                } catch (Exception e) {
+                    log.error("Unable to commit batch", e);
+                    committed = false;
+                }
+            }
+        }
+        if (committed) {
+            for (ParamsMigrationReport docReport : migrated) {
+                report.migrated(docReport);
+            }
+        } else {
+            for (String id : batch) {
+                report.failed(id, "Batch was rolled back");
+            }
+        }
+    }
+
+    /**
+     * Converts the parameters of the document, without saving it.
+     *
+     * @return the sizes and parse times of the converted values
+     */
+    protected ParamsMigrationReport migrateDocument(DocumentModel doc)
+            throws Exception {
+        ParamsMigrationReport docReport = new ParamsMigrationReport(
+                report.getTargetEncoding());
+        if (doc.hasSchema(SOURCE_SCHEMA)) {
+            String data = (String) doc.getPropertyValue(TemplateSourceDocumentAdapterImpl.TEMPLATE_DATA_PROP);
+            String converted = convert(data, docReport);
+            if (converted != null) {
+                doc.setPropertyValue(
+                        TemplateSourceDocumentAdapterImpl.TEMPLATE_DATA_PROP,
+                        converted);
+            }
+        }
+        if (doc.hasSchema(BINDINGS_SCHEMA)) {
+            TemplateBindings bindings = new TemplateBindings(doc);
+            boolean modified = false;
+            for (TemplateBinding binding : bindings) {
+                String converted = convert(binding.getData(), docReport);
+                if (converted != null) {
+                    binding.setData(converted);
+                    modified = true;
+                }
+            }
+            if (modified) {
+                bindings.save(doc);
+            }
+        }
+        return docReport;
+    }
+
+    /**
+     * Returns the parameters re-encoded with the target serializer, or null
+     * if they are empty or already encoded that way.
+     */
+    protected String convert(String data, ParamsMigrationReport docReport)
+            throws Exception {
+        if (data == null || data.isEmpty()) {
+            return null;
+        }
+        long t0 = System.nanoTime();
+        List<TemplateInput> params = XMLSerializer.readFromXml(data);
+        long parseBefore = System.nanoTime() - t0;
+        String converted = target.serialize(params);
+        if (converted.equals(data)) {
+            return null;
+        }
+        t0 = System.nanoTime();
+        target.readFromXml(converted);
+        long parseAfter = System.nanoTime() - t0;
+        docReport.value(data.getBytes("UTF-8").length,
+                converted.getBytes("UTF-8").length, parseBefore, parseAfter);
+        return converted;
+    }
+
+}
@@ -1,7 +1,9 @@
 package org.nuxeo.ecm.platform.template.service;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -14,15 +16,35 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocumentAdapterImpl;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBinding;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.DiskRenderCache;
+import org.nuxeo.ecm.platform.template.cache.RenderCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateSourceCache;
+import org.nuxeo.ecm.platform.template.processors.CacheableTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.ContextAwareTemplateProcessor;
+import org.nuxeo.ecm.platform.template.processors.LifecycleAwareTemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 
 public class TemplateProcessorComponent extends DefaultComponent implements
         TemplateProcessorService {
@@ -35,16 +57,104 @@ public class TemplateProcessorComponent extends DefaultComponent implements
 
     protected TemplateProcessorRegistry processorRegistry;
 
-    protected ConcurrentHashMap<String, String> type2Template = null;
+    protected TemplateTypeMapping typeMapping;
+
+    protected volatile RenderCache renderCache;
+
+    protected volatile TemplateSourceCache templateSourceCache;
+
+    protected AsyncRenderingQueue renderingQueue;
+
+    protected DeferredTemplateInit deferredInit;
+
+    // repository:template id -> running or last bulk rendering
+    protected final Map<String, BulkRenderStatus> bulkRenderings = new ConcurrentHashMap<String, BulkRenderStatus>();
+
+    // repository name -> running or last parameters migration
+    protected final Map<String, ParamsMigrationReport> paramsMigrations = new ConcurrentHashMap<String, ParamsMigrationReport>();
+
+    // template digest -> context dependency flag
+    protected final TemplateCache<Boolean> contextDependency = new TemplateCache<Boolean>(
+            "ContextDependency", 500);
 
     @Override
     public void activate(ComponentContext context) throws Exception {
         processorRegistry = new TemplateProcessorRegistry();
+        renderingQueue = new AsyncRenderingQueue();
+        deferredInit = new DeferredTemplateInit();
+        typeMapping = new TemplateTypeMapping();
+        registerWarmUp(context);
+    }
+
+    /**
+     * Schedules the warm-up of the most used templates once the application
+     * is started, i.e. when the repository is available.
+     */
+    protected void registerWarmUp(ComponentContext context) {
+        Bundle bundle = context.getRuntimeContext().getBundle();
+        final BundleContext bundleContext = bundle != null ? bundle.getBundleContext()
+                : null;
+        if (bundleContext == null) {
+            return;
+        }
+        bundleContext.addFrameworkListener(new FrameworkListener() {
+            @Override
+            public void frameworkEvent(FrameworkEvent event) {
+                if (event.getType() != FrameworkEvent.STARTED) {
+                    return;
+                }
+                bundleContext.removeFrameworkListener(this);
+                startWarmUp();
+            }
+        });
+    }
+
+    /**
+     * Starts the warm-up of the templates of the default repository in
+     * background, if it is enabled.
+     *
+     * @return the running warm-up, or null if it is disabled
+     */
+    public TemplateWarmUp startWarmUp() {
+        try {
+            TemplateWarmUp warmUp = TemplateWarmUp.fromConfiguration(
+                    TemplateMappingFetcher.getRepoName(), this);
+            if (!warmUp.isEnabled()) {
+                return null;
+            }
+            warmUp.start();
+            return warmUp;
+        } catch (Exception e) {
+            log.warn("Unable to start the template warm-up", e);
+            return null;
+        }
     }
 
     @Override
     public void deactivate(ComponentContext context) throws Exception {
+        if (renderingQueue != null) {
+            renderingQueue.shutdown();
+            renderingQueue = null;
+        }
+        if (deferredInit != null) {
+            deferredInit.shutdown();
+            deferredInit = null;
+        }
+        if (typeMapping != null) {
+            typeMapping.clear();
+            typeMapping = null;
+        }
+        processorRegistry.shutdown();
         processorRegistry = null;
+        if (renderCache != null) {
+            renderCache.clear();
+            renderCache = null;
+        }
+        contextDependency.clear();
+        if (templateSourceCache != null) {
+            templateSourceCache.clear();
+            templateSourceCache = null;
+        }
     }
 
     public void registerContribution(Object contribution,
@@ -89,51 +199,33 @@ public class TemplateProcessorComponent extends DefaultComponent implements
         if (mt != null) {
             processor = findProcessorByMimeType(mt);
         }
+        String fileName = templateBlob.getFilename();
         if (processor == null) {
-            String fileName = templateBlob.getFilename();
             if (fileName != null) {
                 String ext = FileUtils.getFileExtension(fileName);
                 processor = findProcessorByExtension(ext);
             }
         }
+        if (processor == null && isEmpty(mt) && isEmpty(fileName)) {
+            String sniffedMt = ZipContentSniffer.sniffMimeType(templateBlob);
+            if (sniffedMt != null) {
+                processor = findProcessorByMimeType(sniffedMt);
+            }
+        }
         return processor;
     }
 
-    protected TemplateProcessorDescriptor findProcessorByMimeType(String mt) {
+    protected static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
 
-        List<TemplateProcessorDescriptor> candidates = new ArrayList<TemplateProcessorDescriptor>();
-        for (TemplateProcessorDescriptor desc : processorRegistry.getRegistredProcessors()) {
-            if (desc.getSupportedMimeTypes().contains(mt)) {
-                if (desc.isDefaultProcessor()) {
-                    return desc;
-                } else {
-                    candidates.add(desc);
-                }
-            }
-        }
-        if (candidates.size() > 0) {
-            return candidates.get(0);
-        }
-        return null;
+    protected TemplateProcessorDescriptor findProcessorByMimeType(String mt) {
+        return processorRegistry.getProcessorByMimeType(mt);
     }
 
     protected TemplateProcessorDescriptor findProcessorByExtension(
             String extension) {
-
-        List<TemplateProcessorDescriptor> candidates = new ArrayList<TemplateProcessorDescriptor>();
-        for (TemplateProcessorDescriptor desc : processorRegistry.getRegistredProcessors()) {
-            if (desc.getSupportedExtensions().contains(extension)) {
-                if (desc.isDefaultProcessor()) {
-                    return desc;
-                } else {
-                    candidates.add(desc);
-                }
-            }
-        }
-        if (candidates.size() > 0) {
-            return candidates.get(0);
-        }
-        return null;
+        return processorRegistry.getProcessorByExtension(extension);
     }
 
     public TemplateProcessorDescriptor getDescriptor(String name) {
@@ -200,18 +292,25 @@ public class TemplateProcessorComponent extends DefaultComponent implements
         return wrap(filtredResult, TemplateSourceDocument.class);
     }
 
-    @Override
-    public List<TemplateBasedDocument> getLinkedTemplateBasedDocuments(
-            DocumentModel source) throws ClientException {
-
-        StringBuffer sb = new StringBuffer(
-                "select * from Document where ecm:isCheckedInVersion = 0 AND ecm:isProxy = 0 AND ");
+    protected static String buildLinkedDocumentsQuery(String selectClause,
+            String templateId) {
+        StringBuffer sb = new StringBuffer("select ");
+        sb.append(selectClause);
+        sb.append(" from Document where ecm:isCheckedInVersion = 0 AND ecm:isProxy = 0 AND ");
         sb.append(TemplateBindings.BINDING_PROP_NAME + "/*/"
                 + TemplateBinding.TEMPLATE_ID_KEY);
         sb.append(" = '");
-        sb.append(source.getId());
+        sb.append(templateId);
         sb.append("'");
-        DocumentModelList docs = source.getCoreSession().query(sb.toString());
+        return sb.toString();
+    }
+
+    @Override
+    public List<TemplateBasedDocument> getLinkedTemplateBasedDocuments(
+            DocumentModel source) throws ClientException {
+
+        DocumentModelList docs = source.getCoreSession().query(
+                buildLinkedDocumentsQuery("*", source.getId()));
 
         List<TemplateBasedDocument> result = new ArrayList<TemplateBasedDocument>();
         for (DocumentModel doc : docs) {
@@ -223,57 +322,138 @@ public class TemplateProcessorComponent extends DefaultComponent implements
         return result;
     }
 
-    public Collection<TemplateProcessorDescriptor> getRegistredTemplateProcessors() {
-        return processorRegistry.getRegistredProcessors();
+    protected IterableQueryResult queryLinkedDocumentIds(DocumentModel source,
+            boolean ordered) throws ClientException {
+        String query = buildLinkedDocumentsQuery(NXQL.ECM_UUID,
+                source.getId());
+        if (ordered) {
+            query = query + " ORDER BY " + NXQL.ECM_UUID;
+        }
+        return source.getCoreSession().queryAndFetch(query, NXQL.NXQL);
     }
 
-    public Map<String, String> getTypeMapping() {
-        if (type2Template == null) {
-            synchronized (this) {
-                if (type2Template == null) {
-                    type2Template = new ConcurrentHashMap<String, String>();
-                    TemplateMappingFetcher fetcher = new TemplateMappingFetcher();
-                    try {
-                        fetcher.runUnrestricted();
-                    } catch (ClientException e) {
-                        log.error("Unable to fetch templates 2 types mapping",
-                                e);
-                    }
-                    type2Template.putAll(fetcher.getMapping());
-                }
+    public List<String> getLinkedTemplateBasedDocumentIds(
+            DocumentModel source, String afterId, int pageSize)
+            throws ClientException {
+        StringBuffer sb = new StringBuffer(buildLinkedDocumentsQuery(
+                NXQL.ECM_UUID, source.getId()));
+        if (afterId != null) {
+            sb.append(" AND " + NXQL.ECM_UUID + " > '");
+            sb.append(afterId.replace("'", "\\'"));
+            sb.append("'");
+        }
+        sb.append(" ORDER BY " + NXQL.ECM_UUID);
+        IterableQueryResult result = source.getCoreSession().queryAndFetch(
+                sb.toString(), NXQL.NXQL);
+        return readIds(result, 0, pageSize);
+    }
+
+    protected List<String> readIds(IterableQueryResult result, long offset,
+            int pageSize) {
+        List<String> ids = new ArrayList<String>();
+        try {
+            if (offset > 0 && !result.skipTo(offset)) {
+                return ids;
             }
+            Iterator<Map<String, Serializable>> it = result.iterator();
+            while (it.hasNext() && ids.size() < pageSize) {
+                ids.add((String) it.next().get(NXQL.ECM_UUID));
+            }
+        } finally {
+            result.close();
         }
-        return type2Template;
+        return ids;
     }
 
-    public synchronized void registerTypeMapping(DocumentModel doc)
+    public List<TemplateBasedDocument> getLinkedTemplateBasedDocuments(
+            DocumentModel source, long offset, int pageSize)
             throws ClientException {
+        List<String> ids = readIds(queryLinkedDocumentIds(source, true),
+                offset, pageSize);
+        DocumentRef[] refs = new DocumentRef[ids.size()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = new IdRef(ids.get(i));
+        }
+        List<TemplateBasedDocument> result = new ArrayList<TemplateBasedDocument>();
+        if (refs.length == 0) {
+            return result;
+        }
+        for (DocumentModel doc : source.getCoreSession().getDocuments(refs)) {
+            TemplateBasedDocument templateBasedDocument = doc.getAdapter(TemplateBasedDocument.class);
+            if (templateBasedDocument != null) {
+                result.add(templateBasedDocument);
+            }
+        }
+        return result;
+    }
+
+    public boolean hasLinkedTemplateBasedDocuments(DocumentModel source)
+            throws ClientException {
+        IterableQueryResult result = queryLinkedDocumentIds(source, false);
+        try {
+            // rows are fetched lazily : stop at the first one
+            return result.iterator().hasNext();
+        } finally {
+            result.close();
+        }
+    }
+
+    public long countLinkedTemplateBasedDocuments(DocumentModel source)
+            throws ClientException {
+        IterableQueryResult result = queryLinkedDocumentIds(source, false);
+        try {
+            return result.size();
+        } finally {
+            result.close();
+        }
+    }
+
+    public long countLinkedTemplateBasedDocuments(DocumentModel source,
+            long max) throws ClientException {
+        IterableQueryResult result = queryLinkedDocumentIds(source, false);
+        try {
+            // rows are fetched lazily : stop once max is reached
+            long count = 0;
+            Iterator<Map<String, Serializable>> it = result.iterator();
+            while (count < max && it.hasNext()) {
+                it.next();
+                count++;
+            }
+            return count;
+        } finally {
+            result.close();
+        }
+    }
+
+    public Collection<TemplateProcessorDescriptor> getRegistredTemplateProcessors() {
+        return processorRegistry.getRegistredProcessors();
+    }
+
+    public Map<String, String> getTypeMapping() {
+        return typeMapping.getMapping();
+    }
+
+    public void registerTypeMapping(DocumentModel doc) throws ClientException {
         TemplateSourceDocument tmpl = doc.getAdapter(TemplateSourceDocument.class);
         if (tmpl != null) {
-            Map<String, String> mapping = getTypeMapping();
-            // check existing mapping for this docId
-            List<String> boundTypes = new ArrayList<String>();
-            for (String type : mapping.keySet()) {
-                if (doc.getId().equals(mapping.get(type))) {
-                    boundTypes.add(type);
-                }
-            }
-            // unbind previous mapping for this docId
-            for (String type : boundTypes) {
-                mapping.remove(type);
+            if ("deleted".equals(doc.getCurrentLifeCycleState())) {
+                typeMapping.unbind(doc.getId());
+                return;
             }
             // rebind types (with override)
-            for (String type : tmpl.getForcedTypes()) {
-                String uidToClean = mapping.get(type);
-                if (uidToClean != null) {
-                    new TemplateMappingRemover(doc.getCoreSession(),
-                            uidToClean, type).runUnrestricted();
-                }
-                mapping.put(type, doc.getId());
+            Map<String, String> displaced = typeMapping.bind(doc.getId(),
+                    tmpl.getForcedTypes());
+            for (Map.Entry<String, String> entry : displaced.entrySet()) {
+                new TemplateMappingRemover(doc.getCoreSession(),
+                        entry.getValue(), entry.getKey()).runUnrestricted();
             }
         }
     }
 
+    public void unregisterTypeMapping(String templateId) {
+        typeMapping.unbind(templateId);
+    }
+
     public DocumentModel makeTemplateBasedDocument(DocumentModel targetDoc,
             DocumentModel sourceTemplateDoc, boolean save)
             throws ClientException {
@@ -305,4 +485,209 @@ public class TemplateProcessorComponent extends DefaultComponent implements
         return targetDoc;
     }
 
+    public void invalidateTemplateCaches(Blob templateBlob) {
+        if (templateBlob == null) {
+            return;
+        }
+        String digest;
+        try {
+            digest = BlobDigestHelper.getDigest(templateBlob);
+        } catch (Exception e) {
+            log.error("Unable to compute template digest", e);
+            return;
+        }
+        for (TemplateProcessorDescriptor desc : processorRegistry.getRegistredProcessors()) {
+            TemplateProcessor processor = desc.getProcessor();
+            if (processor instanceof CacheableTemplateProcessor) {
+                ((CacheableTemplateProcessor) processor).invalidateCache(digest);
+            }
+        }
+        contextDependency.invalidate(digest);
+        getRenderCache().invalidate(digest);
+    }
+
+    public boolean warmUp(TemplateSourceDocument templateSource) {
+        try {
+            Blob templateBlob = templateSource.getTemplateBlob();
+            if (templateBlob == null) {
+                return false;
+            }
+            String templateType = templateSource.getTemplateType();
+            TemplateProcessor processor = null;
+            if (templateType != null) {
+                processor = getProcessor(templateType);
+            }
+            if (processor == null) {
+                processor = findProcessor(templateBlob);
+            }
+            if (!(processor instanceof LifecycleAwareTemplateProcessor)) {
+                return false;
+            }
+            return ((LifecycleAwareTemplateProcessor) processor).warmUp(templateSource);
+        } catch (Exception e) {
+            log.warn("Unable to warm up template " + templateSource.getName(),
+                    e);
+            return false;
+        }
+    }
+
+    public RenderCache getRenderCache() {
+        RenderCache cache = renderCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = renderCache;
+                if (cache == null) {
+                    cache = createRenderCache();
+                    log.debug("Using render cache " + cache);
+                    renderCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    public TemplateSourceCache getTemplateSourceCache() {
+        TemplateSourceCache cache = templateSourceCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = templateSourceCache;
+                if (cache == null) {
+                    cache = new TemplateSourceCache();
+                    templateSourceCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    protected RenderCache createRenderCache() {
+        String className = Framework.getProperty(RenderCache.RENDER_CACHE_CLASS_PROPERTY);
+        if (className != null && !className.trim().isEmpty()) {
+            try {
+                return (RenderCache) Class.forName(className.trim()).newInstance();
+            } catch (Exception e) {
+                log.error("Unable to instantiate render cache " + className
+                        + ", using default implementation", e);
+            }
+        }
+        return new DiskRenderCache();
+    }
+
+    public boolean isContextDependent(TemplateProcessor processor,
+            Blob templateBlob) {
+        if (!(processor instanceof ContextAwareTemplateProcessor)) {
+            return true;
+        }
+        try {
+            String key = TemplateCache.buildKey(
+                    BlobDigestHelper.getDigest(templateBlob),
+                    processor.getClass().getName());
+            Boolean dependent = contextDependency.get(key);
+            if (dependent == null) {
+                dependent = ((ContextAwareTemplateProcessor) processor).isContextDependent(templateBlob);
+                contextDependency.put(key, dependent);
+            }
+            return dependent;
+        } catch (Exception e) {
+            log.warn("Unable to analyze template, rendering won't be cached : "
+                    + e.getMessage());
+            return true;
+        }
+    }
+
+    public boolean isDeferredInit() {
+        return DeferredTemplateInit.isEnabled();
+    }
+
+    public void scheduleInit(TemplateSourceDocument templateSource)
+            throws ClientException {
+        DocumentModel doc = templateSource.getAdaptedDoc();
+        deferredInit.schedule(doc.getRepositoryName(), doc.getId());
+    }
+
+    public DeferredTemplateInit getDeferredInit() {
+        return deferredInit;
+    }
+
+    public RenderJob submitRendering(
+            TemplateBasedDocument templateBasedDocument, String templateName,
+            boolean store, int priority) throws ClientException {
+        DocumentModel doc = templateBasedDocument.getAdaptedDoc();
+        if (doc.getId() == null) {
+            throw new ClientException(
+                    "Can not render asynchronously a document that is not saved");
+        }
+        CoreSession session = doc.getCoreSession();
+        if (store
+                && !session.hasPermission(doc.getRef(),
+                        SecurityConstants.WRITE_PROPERTIES)) {
+            throw new ClientException("Storing the rendering of document "
+                    + doc.getId() + " requires write access to it");
+        }
+        String processorName = templateBasedDocument.getTemplateType(templateName);
+        TemplateProcessorDescriptor desc = processorName == null ? null
+                : getDescriptor(processorName);
+        if (desc == null) {
+            throw new ClientException(
+                    "No template processor found for template type="
+                            + processorName);
+        }
+        RenderJob job = new RenderJob(doc.getRepositoryName(), doc.getId(),
+                templateName, processorName,
+                session.getPrincipal().getName(), store, priority);
+        return renderingQueue.submit(job, desc.getMaxConcurrency());
+    }
+
+    public RenderJob getRenderJob(String jobId) {
+        return renderingQueue.getJob(jobId);
+    }
+
+    public synchronized BulkRenderStatus renderLinkedDocuments(
+            DocumentModel source, int batchSize) throws ClientException {
+        if (source.getAdapter(TemplateSourceDocument.class) == null) {
+            throw new ClientException("Document " + source.getId()
+                    + " is not a template");
+        }
+        CoreSession session = source.getCoreSession();
+        if (!((NuxeoPrincipal) session.getPrincipal()).isAdministrator()
+                && !session.hasPermission(source.getRef(),
+                        SecurityConstants.WRITE)) {
+            throw new ClientException("Re-rendering the documents bound to"
+                    + " a template requires write access to the template");
+        }
+        String key = source.getRepositoryName() + ":" + source.getId();
+        BulkRenderStatus running = bulkRenderings.get(key);
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        Iterator<BulkRenderStatus> it = bulkRenderings.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        LinkedDocumentsRenderer renderer = new LinkedDocumentsRenderer(
+                source.getRepositoryName(), source.getId(),
+                session.getPrincipal().getName(), batchSize);
+        BulkRenderStatus status = renderer.start();
+        bulkRenderings.put(key, status);
+        return status;
+    }
+
+    public synchronized ParamsMigrationReport migrateParams(
+            String repositoryName, int batchSize) throws ClientException {
+        ParamsMigrationReport running = paramsMigrations.get(repositoryName);
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        ParamsMigrationReport report = new TemplateParamsMigrator(
+                repositoryName, XMLSerializer.getSerializer(), batchSize).start();
+        paramsMigrations.put(repositoryName, report);
+        return report;
+    }
+
+    public ParamsMigrationReport getParamsMigration(String repositoryName) {
+        return paramsMigrations.get(repositoryName);
+    }
+
 }
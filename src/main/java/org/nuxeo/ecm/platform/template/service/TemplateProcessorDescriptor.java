@@ -9,6 +9,7 @@ import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XNodeList;
 import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.ecm.platform.template.processors.LifecycleAwareTemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
 
 @XObject("templateProcessor")
@@ -18,7 +19,8 @@ public class TemplateProcessorDescriptor implements Serializable {
 
     protected static final Log log = LogFactory.getLog(TemplateProcessorDescriptor.class);
 
-    protected TemplateProcessor processor;
+    // single instance shared by all the renderings
+    protected transient volatile TemplateProcessor processor;
 
     @XNode("@name")
     protected String name;
@@ -36,6 +38,10 @@ public class TemplateProcessorDescriptor implements Serializable {
     @XNode("@enabled")
     protected boolean enabled = true;
 
+    // number of asynchronous renderings run in parallel for this processor
+    @XNode("@maxConcurrency")
+    protected int maxConcurrency = 2;
+
     @XNodeList(value = "supportedMimeType", type = ArrayList.class, componentType = String.class)
     protected List<String> supportedMimeTypes = new ArrayList<String>();
 
@@ -49,15 +55,54 @@ public class TemplateProcessorDescriptor implements Serializable {
         return true;
     }
 
+    /**
+     * Returns the processor instance, creating and initializing it on first
+     * call. The same instance is returned to all the callers.
+     */
     public TemplateProcessor getProcessor() {
-        if (processor == null) {
+        TemplateProcessor instance = processor;
+        if (instance == null) {
+            synchronized (this) {
+                instance = processor;
+                if (instance == null) {
+                    instance = newProcessor();
+                    processor = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    protected TemplateProcessor newProcessor() {
+        try {
+            TemplateProcessor instance = (TemplateProcessor) className.newInstance();
+            if (instance instanceof LifecycleAwareTemplateProcessor) {
+                ((LifecycleAwareTemplateProcessor) instance).init();
+            }
+            return instance;
+        } catch (Exception e) {
+            log.error("Unable to instanciate Processor", e);
+            return null;
+        }
+    }
+
+    /**
+     * Shuts down the processor instance if it was created, a new instance is
+     * created if the processor is asked for again.
+     */
+    public void shutdown() {
+        TemplateProcessor instance;
+        synchronized (this) {
+            instance = processor;
+            processor = null;
+        }
+        if (instance instanceof LifecycleAwareTemplateProcessor) {
             try {
-                processor = (TemplateProcessor) className.newInstance();
+                ((LifecycleAwareTemplateProcessor) instance).shutdown();
             } catch (Exception e) {
-                log.error("Unable to instanciate Processor", e);
+                log.error("Error while shutting down processor " + name, e);
             }
         }
-        return processor;
     }
 
     public String getName() {
@@ -89,10 +134,15 @@ public class TemplateProcessorDescriptor implements Serializable {
         return enabled;
     }
 
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
     public TemplateProcessorDescriptor clone() {
 
         TemplateProcessorDescriptor clone = new TemplateProcessorDescriptor();
         clone.enabled = enabled;
+        clone.maxConcurrency = maxConcurrency;
         clone.supportedExtensions = supportedExtensions;
         clone.supportedMimeTypes = supportedMimeTypes;
         clone.className = className;
@@ -1,6 +1,7 @@
 package org.nuxeo.ecm.platform.template.service;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -12,27 +13,89 @@ public class TemplateProcessorRegistry extends
 
     protected Map<String, TemplateProcessorDescriptor> processors = new HashMap<String, TemplateProcessorDescriptor>();
 
+    /**
+     * Immutable lookup tables computed from the registered processors. A new
+     * instance is built each time a contribution changes, so that lookups
+     * never see a partially updated registry and never need to lock.
+     */
+    protected static final class ProcessorIndex {
+
+        protected final Map<String, TemplateProcessorDescriptor> byName;
+
+        protected final Map<String, TemplateProcessorDescriptor> byMimeType;
+
+        protected final Map<String, TemplateProcessorDescriptor> byExtension;
+
+        protected ProcessorIndex(
+                Map<String, TemplateProcessorDescriptor> processors) {
+            Map<String, TemplateProcessorDescriptor> mimeTypes = new HashMap<String, TemplateProcessorDescriptor>();
+            Map<String, TemplateProcessorDescriptor> extensions = new HashMap<String, TemplateProcessorDescriptor>();
+            for (TemplateProcessorDescriptor desc : processors.values()) {
+                for (String mt : desc.getSupportedMimeTypes()) {
+                    index(mimeTypes, mt, desc);
+                }
+                for (String ext : desc.getSupportedExtensions()) {
+                    index(extensions, ext, desc);
+                }
+            }
+            byName = Collections.unmodifiableMap(new HashMap<String, TemplateProcessorDescriptor>(
+                    processors));
+            byMimeType = Collections.unmodifiableMap(mimeTypes);
+            byExtension = Collections.unmodifiableMap(extensions);
+        }
+
+        // first default processor wins, otherwise first registered candidate
+        protected static void index(
+                Map<String, TemplateProcessorDescriptor> index, String key,
+                TemplateProcessorDescriptor desc) {
+            TemplateProcessorDescriptor current = index.get(key);
+            if (current == null
+                    || (desc.isDefaultProcessor() && !current.isDefaultProcessor())) {
+                index.put(key, desc);
+            }
+        }
+    }
+
+    protected volatile ProcessorIndex index = new ProcessorIndex(processors);
+
+    protected void rebuildIndex() {
+        index = new ProcessorIndex(processors);
+    }
+
     @Override
     public TemplateProcessorDescriptor clone(TemplateProcessorDescriptor tpd) {
         return tpd.clone();
     }
 
     public TemplateProcessorDescriptor getProcessorByName(String name) {
-        return processors.get(name);
+        return index.byName.get(name);
+    }
+
+    public TemplateProcessorDescriptor getProcessorByMimeType(String mimeType) {
+        return index.byMimeType.get(mimeType);
+    }
+
+    public TemplateProcessorDescriptor getProcessorByExtension(String extension) {
+        return index.byExtension.get(extension);
     }
 
     public Collection<TemplateProcessorDescriptor> getRegistredProcessors() {
-        return processors.values();
+        return index.byName.values();
     }
 
     @Override
     public void contributionRemoved(String id, TemplateProcessorDescriptor tpd) {
-        processors.remove(id);
+        TemplateProcessorDescriptor previous = processors.remove(id);
+        rebuildIndex();
+        if (previous != null) {
+            previous.shutdown();
+        }
     }
 
     @Override
     public void contributionUpdated(String id, TemplateProcessorDescriptor tpd,
             TemplateProcessorDescriptor newTpd) {
+        TemplateProcessorDescriptor previous = processors.get(id);
         if (tpd == null || !tpd.enabled) {
             processors.remove(id);
         } else {
@@ -42,6 +105,21 @@ public class TemplateProcessorRegistry extends
                 throw new ClientRuntimeException("Unable to register processor");
             }
         }
+        rebuildIndex();
+        // shut down the replaced instance once it can no longer be looked up
+        if (previous != null && previous != tpd
+                && (tpd == null || previous.processor != tpd.processor)) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Shuts down all the registered processors.
+     */
+    public void shutdown() {
+        for (TemplateProcessorDescriptor desc : processors.values()) {
+            desc.shutdown();
+        }
     }
 
     @Override
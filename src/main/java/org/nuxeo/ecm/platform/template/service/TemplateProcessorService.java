@@ -8,8 +8,11 @@ import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.RenderCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateSourceCache;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
 
 public interface TemplateProcessorService {
@@ -34,10 +37,57 @@ public interface TemplateProcessorService {
     List<TemplateBasedDocument> getLinkedTemplateBasedDocuments(
             DocumentModel source) throws ClientException;
 
+    /**
+     * Returns a page of the documents bound to the given template, ordered by
+     * id. Only the documents of the page are loaded.
+     */
+    List<TemplateBasedDocument> getLinkedTemplateBasedDocuments(
+            DocumentModel source, long offset, int pageSize)
+            throws ClientException;
+
+    /**
+     * Returns a page of the ids of the documents bound to the given template,
+     * ordered by id, without loading the documents. Pages are chained on the
+     * last returned id so that each page is a range query, not affected by
+     * the documents bound or unbound meanwhile.
+     *
+     * @param afterId the last id of the previous page, null for the first one
+     */
+    List<String> getLinkedTemplateBasedDocumentIds(DocumentModel source,
+            String afterId, int pageSize) throws ClientException;
+
+    /**
+     * Tells if at least one document is bound to the given template : only the
+     * first matching id is fetched.
+     */
+    boolean hasLinkedTemplateBasedDocuments(DocumentModel source)
+            throws ClientException;
+
+    /**
+     * Counts the documents bound to the given template. All the matching rows
+     * are read : prefer {@link #countLinkedTemplateBasedDocuments(DocumentModel, long)}
+     * when an exact count is not needed.
+     */
+    long countLinkedTemplateBasedDocuments(DocumentModel source)
+            throws ClientException;
+
+    /**
+     * Counts the documents bound to the given template, stopping after
+     * <code>max</code> rows : a result equal to <code>max</code> means "at
+     * least <code>max</code>".
+     */
+    long countLinkedTemplateBasedDocuments(DocumentModel source, long max)
+            throws ClientException;
+
     Map<String, String> getTypeMapping();
 
     void registerTypeMapping(DocumentModel doc) throws ClientException;
 
+    /**
+     * Removes the types bound to a removed template.
+     */
+    void unregisterTypeMapping(String templateId);
+
     DocumentModel makeTemplateBasedDocument(DocumentModel targetDoc,
             DocumentModel sourceTemplateDoc, boolean save)
             throws ClientException;
@@ -45,4 +95,115 @@ public interface TemplateProcessorService {
     DocumentModel detachTemplateBasedDocument(DocumentModel targetDoc,
             String templateName, boolean save) throws ClientException;
 
+    /**
+     * Drops the prepared templates built from the given blob from the caches
+     * of all registered processors.
+     */
+    void invalidateTemplateCaches(Blob templateBlob);
+
+    /**
+     * Prepares the template of the given TemplateSource in the processor
+     * used to render it, so that the first rendering does not have to parse
+     * or compile it.
+     *
+     * @return true if the template was prepared, false if its processor has
+     *         nothing to prepare for it or if the preparation failed
+     */
+    boolean warmUp(TemplateSourceDocument templateSource);
+
+    /**
+     * Tells if the parameters of the new TemplateSources are extracted in
+     * background after commit, see {@link DeferredTemplateInit}.
+     */
+    boolean isDeferredInit();
+
+    /**
+     * Queues the parameters extraction of a TemplateSource marked as
+     * initializing. It is run once the current transaction is committed.
+     */
+    void scheduleInit(TemplateSourceDocument templateSource)
+            throws ClientException;
+
+    /**
+     * Returns the cache used to store the rendering results.
+     */
+    RenderCache getRenderCache();
+
+    /**
+     * Returns the cache of the TemplateSource documents used by the template
+     * based documents.
+     */
+    TemplateSourceCache getTemplateSourceCache();
+
+    /**
+     * Tells if the result of rendering the given template depends on the
+     * time or on the current user, in which case it must not be cached.
+     * Templates handled by processors that can not tell are considered as
+     * context dependent.
+     */
+    boolean isContextDependent(TemplateProcessor processor, Blob templateBlob);
+
+    /**
+     * Queues the rendering of a document. The rendering is run in a
+     * background thread, in its own transaction; completion is notified by a
+     * {@link AsyncRenderingQueue#RENDERING_COMPLETED_EVENT} or
+     * {@link AsyncRenderingQueue#RENDERING_FAILED_EVENT} event.
+     *
+     * The rendering runs as the user of the session of the document.
+     *
+     * @param store if true the result is stored as main Blob of the document,
+     *            otherwise it is only available from the returned handle
+     * @param priority jobs with a higher priority are run first
+     * @throws ClientException if the document is not saved, if the result
+     *             must be stored and the user can not write the document or
+     *             if the rendering queue is full
+     */
+    RenderJob submitRendering(TemplateBasedDocument templateBasedDocument,
+            String templateName, boolean store, int priority)
+            throws ClientException;
+
+    /**
+     * Returns a job submitted with {@link #submitRendering}, or null if it is
+     * unknown or too old. Once the job is done, only its status is kept : the
+     * rendered Blob is only available from the handle returned at submission.
+     */
+    RenderJob getRenderJob(String jobId);
+
+    /**
+     * Re-renders and stores, in background, all the documents bound to the
+     * given template. Documents are processed in parallel, in batches of
+     * batchSize documents per transaction. Requires write access to the
+     * template. If a re-rendering of the template is already running, its
+     * status is returned instead of starting a new one.
+     * <p>
+     * Documents are listed and rendered with the rights of the calling user :
+     * the bound documents they can not write are reported as failed.
+     *
+     * @param batchSize number of documents per transaction, a default is
+     *            used if 0
+     * @return the status used to follow the progress
+     */
+    BulkRenderStatus renderLinkedDocuments(DocumentModel source, int batchSize)
+            throws ClientException;
+
+    /**
+     * Starts rewriting the template parameters of all the documents of the
+     * repository with the configured {@link XMLSerializer} encoding, in
+     * background. If a migration is already running for the repository, it
+     * is returned instead of starting a new one.
+     *
+     * @param batchSize number of documents per transaction, a default is
+     *            used if 0
+     * @return the report used to follow the progress : number of migrated
+     *         documents and size and parse time savings
+     */
+    ParamsMigrationReport migrateParams(String repositoryName, int batchSize)
+            throws ClientException;
+
+    /**
+     * Returns the report of the running or last migration of the repository,
+     * or null if none was started.
+     */
+    ParamsMigrationReport getParamsMigration(String repositoryName);
+
 }
@@ -0,0 +1,294 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Index of the document types bound to a TemplateSource through its forced
+ * types, with the reverse index from template id to types.
+ * <p>
+ * Updates are done per template with atomic operations on concurrent maps,
+ * without global lock : the updates of a given template are serialized by a
+ * striped lock so that both indexes agree on its types. The
+ * {@link org.nuxeo.ecm.platform.template.listeners.TemplateTypeBindingListener}
+ * updates the index of the local node when a template is modified or removed.
+ * Other cluster nodes are not notified : every {@link #REFRESH_PROPERTY}
+ * milliseconds, the templates modified since the last check are read again
+ * from the repository, and the templates that are no longer live (deleted,
+ * removed) are unbound. The refresh runs in a background thread, lookups
+ * are served from the current index meanwhile.
+ */
+public class TemplateTypeMapping {
+
+    protected static final Log log = LogFactory.getLog(TemplateTypeMapping.class);
+
+    public static final String REFRESH_PROPERTY = "org.nuxeo.template.mapping.refresh";
+
+    // 30 seconds, 0 disables the refresh
+    public static final long DEFAULT_REFRESH = 30 * 1000;
+
+    // modifications done on other nodes may be stamped with a late clock
+    protected static final long CLOCK_SKEW = 60 * 1000;
+
+    protected final long refreshInterval;
+
+    protected final ConcurrentHashMap<String, String> type2Template = new ConcurrentHashMap<String, String>();
+
+    protected final Map<String, Set<String>> template2Types = new ConcurrentHashMap<String, Set<String>>();
+
+    protected static final int LOCK_STRIPES = 64;
+
+    protected final Object loadLock = new Object();
+
+    protected final Object[] bindLocks = new Object[LOCK_STRIPES];
+
+    protected final AtomicBoolean refreshing = new AtomicBoolean();
+
+    protected volatile boolean loaded = false;
+
+    protected volatile long checkedAt;
+
+    protected volatile Calendar lastModified;
+
+    public TemplateTypeMapping() {
+        this(TemplateCache.getConfiguredValue(REFRESH_PROPERTY,
+                DEFAULT_REFRESH));
+    }
+
+    public TemplateTypeMapping(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            bindLocks[i] = new Object();
+        }
+    }
+
+    protected Object getBindLock(String templateId) {
+        return bindLocks[(templateId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Returns a read-only view of the type to template id mapping, loaded
+     * from the repository the first time.
+     */
+    public Map<String, String> getMapping() {
+        checkLoaded();
+        return Collections.unmodifiableMap(type2Template);
+    }
+
+    /**
+     * Returns the types bound to the given template.
+     */
+    public Set<String> getTypes(String templateId) {
+        checkLoaded();
+        Set<String> types = template2Types.get(templateId);
+        if (types == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    protected void checkLoaded() {
+        if (!loaded) {
+            synchronized (loadLock) {
+                if (!loaded) {
+                    load();
+                    loaded = true;
+                }
+            }
+        } else if (refreshInterval > 0
+                && System.currentTimeMillis() - checkedAt > refreshInterval
+                && refreshing.compareAndSet(false, true)) {
+            checkedAt = System.currentTimeMillis();
+            startRefresh();
+        }
+    }
+
+    protected void startRefresh() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean txStarted = TransactionHelper.startTransaction();
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.error("Unable to refresh templates 2 types mapping", e);
+                } finally {
+                    if (txStarted) {
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                    refreshing.set(false);
+                }
+            }
+        }, "nxtemplate-mapping-refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    protected TemplateMappingFetcher fetch(Calendar since) {
+        TemplateMappingFetcher fetcher = new TemplateMappingFetcher(since);
+        try {
+            fetcher.runUnrestricted();
+        } catch (ClientException e) {
+            log.error("Unable to fetch templates 2 types mapping", e);
+        }
+        return fetcher;
+    }
+
+    protected void load() {
+        checkedAt = System.currentTimeMillis();
+        TemplateMappingFetcher fetcher = fetch(null);
+        // the most recently modified template wins
+        for (Map.Entry<String, List<String>> entry : fetcher.getTemplates().entrySet()) {
+            String templateId = entry.getKey();
+            for (String type : entry.getValue()) {
+                String boundId = type2Template.get(type);
+                if (boundId == null) {
+                    type2Template.put(type, templateId);
+                    getOrCreateTypes(templateId).add(type);
+                } else if (!boundId.equals(templateId)) {
+                    log.warn("Several templates are mapped to type " + type
+                            + ": " + boundId + " -- " + templateId);
+                }
+            }
+        }
+        lastModified = fetcher.getLastModified();
+    }
+
+    /**
+     * Reads again the templates modified since the last check, including by
+     * other cluster nodes, and unbinds the templates that are no longer live.
+     */
+    protected void refresh() {
+        // taken before the fetch : templates bound locally meanwhile may not
+        // be visible to its queries yet
+        Set<String> knownIds = new HashSet<String>(template2Types.keySet());
+        Calendar since = null;
+        if (lastModified != null) {
+            since = (Calendar) lastModified.clone();
+            since.add(Calendar.MILLISECOND, (int) -CLOCK_SKEW);
+        } else {
+            since = Calendar.getInstance();
+            since.setTimeInMillis(checkedAt - refreshInterval - CLOCK_SKEW);
+        }
+        TemplateMappingFetcher fetcher = fetch(since);
+        if (!fetcher.isCompleted()) {
+            return;
+        }
+        List<String> ids = new ArrayList<String>(fetcher.getTemplates().keySet());
+        // apply the most recently modified template last
+        Collections.reverse(ids);
+        for (String id : ids) {
+            bind(id, fetcher.getTemplates().get(id));
+        }
+        // trashed or removed without a dc:modified update
+        knownIds.removeAll(fetcher.getBoundIds());
+        knownIds.removeAll(ids);
+        for (String id : knownIds) {
+            unbind(id);
+        }
+        Calendar modified = fetcher.getLastModified();
+        if (modified != null
+                && (lastModified == null || modified.after(lastModified))) {
+            lastModified = modified;
+        }
+    }
+
+    protected Set<String> getOrCreateTypes(String templateId) {
+        Set<String> types = template2Types.get(templateId);
+        if (types == null) {
+            types = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            template2Types.put(templateId, types);
+        }
+        return types;
+    }
+
+    /**
+     * Binds the given types to the template, replacing its previous
+     * bindings. A type bound to another template is taken over.
+     *
+     * @return the templates that lost a type, by type
+     */
+    public Map<String, String> bind(String templateId, Collection<String> types) {
+        checkLoaded();
+        synchronized (getBindLock(templateId)) {
+            return doBind(templateId, types);
+        }
+    }
+
+    protected Map<String, String> doBind(String templateId,
+            Collection<String> types) {
+        Map<String, String> displaced = new HashMap<String, String>();
+        Set<String> newTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        newTypes.addAll(types);
+        Set<String> oldTypes = newTypes.isEmpty() ? template2Types.remove(templateId)
+                : template2Types.put(templateId, newTypes);
+        if (oldTypes != null) {
+            for (String type : oldTypes) {
+                if (!newTypes.contains(type)) {
+                    type2Template.remove(type, templateId);
+                }
+            }
+        }
+        for (String type : newTypes) {
+            String previousId = type2Template.put(type, templateId);
+            if (previousId != null && !previousId.equals(templateId)) {
+                displaced.put(type, previousId);
+                Set<String> previousTypes = template2Types.get(previousId);
+                if (previousTypes != null) {
+                    previousTypes.remove(type);
+                }
+            }
+        }
+        return displaced;
+    }
+
+    /**
+     * Removes all the bindings of the template.
+     */
+    public void unbind(String templateId) {
+        bind(templateId, Collections.<String> emptyList());
+    }
+
+    public void clear() {
+        synchronized (loadLock) {
+            loaded = false;
+            type2Template.clear();
+            template2Types.clear();
+            lastModified = null;
+        }
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Prepares the templates of the most used TemplateSource documents, so that
+ * the first renderings after a restart don't have to load, parse or compile
+ * them.
+ * <p>
+ * The warm-up is disabled unless {@link #SIZE_PROPERTY} is set. The
+ * TemplateSources are ranked by number of linked documents, counted up to
+ * {@link #RANK_COUNT_LIMIT} and loaded by batches each in its own
+ * transaction. The top ones are prepared by their processor from a small
+ * pool of background threads, each template in its own transaction. The
+ * warm-up is bounded by a time budget, after which the pending templates are
+ * skipped, and by a memory budget on the total size of the loaded template
+ * blobs.
+ */
+public class TemplateWarmUp implements Runnable {
+
+    protected static final Log log = LogFactory.getLog(TemplateWarmUp.class);
+
+    // number of templates to prepare, 0 disables the warm-up
+    public static final String SIZE_PROPERTY = "org.nuxeo.template.warmup.size";
+
+    public static final int DEFAULT_SIZE = 0;
+
+    public static final String TIMEOUT_PROPERTY = "org.nuxeo.template.warmup.timeout";
+
+    // 1 minute
+    public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    public static final String MAX_MEMORY_PROPERTY = "org.nuxeo.template.warmup.maxMemory";
+
+    // 32 MB
+    public static final long DEFAULT_MAX_MEMORY = 32 * 1024 * 1024;
+
+    public static final String THREADS_PROPERTY = "org.nuxeo.template.warmup.threads";
+
+    public static final int DEFAULT_THREADS = 2;
+
+    // templates with more linked documents are ranked equally
+    public static final long RANK_COUNT_LIMIT = 1000;
+
+    // number of TemplateSources ranked per transaction
+    protected static final int BATCH_SIZE = 20;
+
+    protected static final String QUERY = "select " + NXQL.ECM_UUID
+            + " from TemplateSource where ecm:isCheckedInVersion = 0"
+            + " AND ecm:isProxy = 0 AND ecm:currentLifeCycleState != 'deleted'";
+
+    protected final String repositoryName;
+
+    protected final TemplateProcessorService service;
+
+    protected final int size;
+
+    protected final long timeout;
+
+    protected final long maxMemory;
+
+    protected final int nbThreads;
+
+    protected final AtomicInteger prepared = new AtomicInteger();
+
+    protected final AtomicInteger skipped = new AtomicInteger();
+
+    protected final AtomicLong loadedBytes = new AtomicLong();
+
+    protected volatile boolean timedOut = false;
+
+    public TemplateWarmUp(String repositoryName,
+            TemplateProcessorService service, int size, long timeout,
+            long maxMemory, int nbThreads) {
+        this.repositoryName = repositoryName;
+        this.service = service;
+        this.size = size;
+        this.timeout = timeout;
+        this.maxMemory = maxMemory;
+        this.nbThreads = Math.max(nbThreads, 1);
+    }
+
+    /**
+     * Returns a warm-up configured from the runtime properties.
+     */
+    public static TemplateWarmUp fromConfiguration(String repositoryName,
+            TemplateProcessorService service) {
+        return new TemplateWarmUp(repositoryName, service,
+                TemplateCache.getConfiguredSize(SIZE_PROPERTY, DEFAULT_SIZE),
+                TemplateCache.getConfiguredValue(TIMEOUT_PROPERTY,
+                        DEFAULT_TIMEOUT), TemplateCache.getConfiguredValue(
+                        MAX_MEMORY_PROPERTY, DEFAULT_MAX_MEMORY),
+                TemplateCache.getConfiguredSize(THREADS_PROPERTY,
+                        DEFAULT_THREADS));
+    }
+
+    public boolean isEnabled() {
+        return size > 0 && timeout > 0 && maxMemory > 0;
+    }
+
+    /**
+     * Runs the warm-up from a background thread.
+     */
+    public Thread start() {
+        Thread thread = new Thread(this, "nxtemplate-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        if (!isEnabled()) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        long deadline = t0 + timeout;
+        try {
+            List<String> ids = selectTemplates(deadline);
+            prepareTemplates(ids, deadline);
+        } catch (Exception e) {
+            log.error("Template warm-up failed", e);
+        }
+        log.info("Template warm-up done in "
+                + (System.currentTimeMillis() - t0) + "ms : " + prepared
+                + " template(s) prepared, " + skipped + " skipped, "
+                + loadedBytes + " bytes loaded"
+                + (timedOut ? " (time budget exceeded)" : ""));
+    }
+
+    /**
+     * Returns the ids of the TemplateSources with the most linked documents.
+     */
+    protected List<String> selectTemplates(final long deadline)
+            throws ClientException {
+        final List<String> ids = new ArrayList<String>();
+        final Map<String, Long> usage = new HashMap<String, Long>();
+        runInTransaction(new UnrestrictedSessionRunner(repositoryName) {
+            @Override
+            public void run() throws ClientException {
+                IterableQueryResult result = session.queryAndFetch(QUERY,
+                        NXQL.NXQL);
+                try {
+                    for (Map<String, Serializable> row : result) {
+                        ids.add((String) row.get(NXQL.ECM_UUID));
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+        });
+        for (int i = 0; i < ids.size() && !timedOut; i += BATCH_SIZE) {
+            final List<String> batch = ids.subList(i,
+                    Math.min(i + BATCH_SIZE, ids.size()));
+            runInTransaction(new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    DocumentRef[] refs = new DocumentRef[batch.size()];
+                    for (int j = 0; j < refs.length; j++) {
+                        refs[j] = new IdRef(batch.get(j));
+                    }
+                    for (DocumentModel doc : session.getDocuments(refs)) {
+                        if (System.currentTimeMillis() > deadline) {
+                            timedOut = true;
+                            return;
+                        }
+                        usage.put(doc.getId(),
+                                service.countLinkedTemplateBasedDocuments(
+                                        doc, RANK_COUNT_LIMIT));
+                    }
+                }
+            });
+        }
+        List<String> ranked = new ArrayList<String>(usage.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String id1, String id2) {
+                return usage.get(id2).compareTo(usage.get(id1));
+            }
+        });
+        skipped.addAndGet(ids.size() - Math.min(ranked.size(), size));
+        return ranked.size() > size ? ranked.subList(0, size) : ranked;
+    }
+
+    protected void prepareTemplates(List<String> ids, final long deadline)
+            throws InterruptedException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(nbThreads, ids.size()), new ThreadFactory() {
+                    protected final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "nxtemplate-warmup-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        for (final String id : ids) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (System.currentTimeMillis() > deadline) {
+                        timedOut = true;
+                        skipped.incrementAndGet();
+                        return;
+                    }
+                    if (prepareTemplate(id)) {
+                        prepared.incrementAndGet();
+                    } else {
+                        skipped.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        long remaining = deadline - System.currentTimeMillis();
+        if (!executor.awaitTermination(Math.max(remaining, 0),
+                TimeUnit.MILLISECONDS)) {
+            timedOut = true;
+            executor.shutdownNow();
+        }
+    }
+
+    protected void runInTransaction(UnrestrictedSessionRunner runner)
+            throws ClientException {
+        boolean txStarted = TransactionHelper.startTransaction();
+        try {
+            runner.runUnrestricted();
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    protected boolean prepareTemplate(final String id) {
+        final boolean[] done = new boolean[1];
+        try {
+            runInTransaction(new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    DocumentModel doc = session.getDocument(new IdRef(id));
+                    TemplateSourceDocument source = doc.getAdapter(TemplateSourceDocument.class);
+                    if (source == null) {
+                        return;
+                    }
+                    Blob blob = source.getTemplateBlob();
+                    if (blob == null || !reserveMemory(blob.getLength())) {
+                        return;
+                    }
+                    done[0] = service.warmUp(source);
+                    if (!done[0] && blob.getLength() > 0) {
+                        // nothing was prepared : give the budget back
+                        loadedBytes.addAndGet(-blob.getLength());
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.debug("Unable to prepare template " + id, e);
+        }
+        return done[0];
+    }
+
+    /**
+     * Accounts for a template blob of the given size, returns false if it
+     * does not fit in the memory budget.
+     */
+    protected boolean reserveMemory(long length) {
+        if (length < 0) {
+            // unknown size : only accept it while under budget
+            return loadedBytes.get() < maxMemory;
+        }
+        if (loadedBytes.addAndGet(length) > maxMemory) {
+            loadedBytes.addAndGet(-length);
+            return false;
+        }
+        return true;
+    }
+
+    public int getPrepared() {
+        return prepared.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public long getLoadedBytes() {
+        return loadedBytes.get();
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import javax.security.auth.login.LoginContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Counterpart of {@link UnrestrictedSessionRunner} for background work done
+ * on behalf of a user : {@link #run()} is called with a session opened as
+ * this user, so that it is subject to their rights.
+ * <p>
+ * Work requested from a system session is run unrestricted.
+ */
+public abstract class UserSessionRunner {
+
+    protected static final Log log = LogFactory.getLog(UserSessionRunner.class);
+
+    protected final String repositoryName;
+
+    protected final String username;
+
+    protected CoreSession session;
+
+    public UserSessionRunner(String repositoryName, String username) {
+        this.repositoryName = repositoryName;
+        this.username = username;
+    }
+
+    public abstract void run() throws ClientException;
+
+    public void runAsUser() throws ClientException {
+        if (username == null
+                || SecurityConstants.SYSTEM_USERNAME.equals(username)) {
+            new UnrestrictedSessionRunner(repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    UserSessionRunner.this.session = session;
+                    try {
+                        UserSessionRunner.this.run();
+                    } finally {
+                        UserSessionRunner.this.session = null;
+                    }
+                }
+            }.runUnrestricted();
+            return;
+        }
+        LoginContext lc;
+        try {
+            lc = Framework.loginAsUser(username);
+        } catch (Exception e) {
+            throw new ClientException("Unable to login as " + username, e);
+        }
+        try {
+            session = CoreInstance.getInstance().open(repositoryName, null);
+            try {
+                run();
+            } finally {
+                CoreInstance.getInstance().close(session);
+                session = null;
+            }
+        } finally {
+            try {
+                lc.logout();
+            } catch (Exception e) {
+                log.warn("Unable to logout " + username, e);
+            }
+        }
+    }
+
+}
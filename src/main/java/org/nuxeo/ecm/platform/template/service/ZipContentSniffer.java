@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2012 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.template.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Guesses the mime type of a template blob that has neither a mime type nor a
+ * filename by looking at its content : ODF and OOXML templates are ZIP
+ * archives that can be recognized from their first entries.
+ */
+public class ZipContentSniffer {
+
+    protected static final Log log = LogFactory.getLog(ZipContentSniffer.class);
+
+    protected static final byte[] ZIP_SIGNATURE = { 'P', 'K', 3, 4 };
+
+    public static final String ODF_MIMETYPE_ENTRY = "mimetype";
+
+    public static final String DOCX_MIMETYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+
+    public static final String XLSX_MIMETYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    public static final String PPTX_MIMETYPE = "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+
+    // ODF and OOXML put their marker entries at the start of the archive
+    protected static final int MAX_SCANNED_ENTRIES = 32;
+
+    protected static final int MAX_MIMETYPE_LENGTH = 128;
+
+    private ZipContentSniffer() {
+    }
+
+    /**
+     * Returns the mime type guessed from the content of the blob, or null if
+     * the blob is not a recognized ZIP based document.
+     */
+    public static String sniffMimeType(Blob blob) {
+        InputStream in = null;
+        try {
+            in = blob.getStream();
+            if (in == null) {
+                return null;
+            }
+            in = new BufferedInputStream(in);
+            if (!hasZipSignature(in)) {
+                return null;
+            }
+            return sniffZipMimeType(new ZipInputStream(in));
+        } catch (IOException e) {
+            log.debug("Unable to sniff blob content", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close blob stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the ZIP local file header signature, the stream must support
+     * mark and is reset to its start.
+     */
+    protected static boolean hasZipSignature(InputStream in)
+            throws IOException {
+        in.mark(ZIP_SIGNATURE.length);
+        try {
+            for (int i = 0; i < ZIP_SIGNATURE.length; i++) {
+                if (in.read() != ZIP_SIGNATURE[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    protected static String sniffZipMimeType(ZipInputStream zip)
+            throws IOException {
+        ZipEntry entry;
+        int scanned = 0;
+        while ((entry = zip.getNextEntry()) != null
+                && scanned++ < MAX_SCANNED_ENTRIES) {
+            String name = entry.getName();
+            if (ODF_MIMETYPE_ENTRY.equals(name)) {
+                return readMimeTypeEntry(zip);
+            } else if (name.startsWith("word/")) {
+                return DOCX_MIMETYPE;
+            } else if (name.startsWith("xl/")) {
+                return XLSX_MIMETYPE;
+            } else if (name.startsWith("ppt/")) {
+                return PPTX_MIMETYPE;
+            }
+        }
+        return null;
+    }
+
+    protected static String readMimeTypeEntry(InputStream in)
+            throws IOException {
+        byte[] buffer = new byte[MAX_MIMETYPE_LENGTH];
+        int len = 0;
+        int read;
+        while (len < buffer.length
+                && (read = in.read(buffer, len, buffer.length - len)) > 0) {
+            len += read;
+        }
+        String mimeType = new String(buffer, 0, len, "US-ASCII").trim();
+        return mimeType.length() > 0 ? mimeType : null;
+    }
+
+}
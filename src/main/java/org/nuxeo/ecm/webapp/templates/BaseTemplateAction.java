@@ -25,6 +25,11 @@ public class BaseTemplateAction implements Serializable {
 
     protected static final Log log = LogFactory.getLog(BaseTemplateAction.class);
 
+    public static final int LINKED_DOCUMENTS_PAGE_SIZE = 50;
+
+    // the widget shows "more than" past this number of bound documents
+    public static final int LINKED_DOCUMENTS_COUNT_LIMIT = 1000;
+
     @In(create = true)
     protected transient NavigationContext navigationContext;
 
@@ -67,6 +72,37 @@ public class BaseTemplateAction implements Serializable {
                 TemplateSourceDocument.class);
     }
 
+    /**
+     * Returns the first documents bound to the current template : the widget
+     * does not list all of them.
+     */
+    public List<TemplateBasedDocument> getCurrentTemplateLinkedDocuments()
+            throws ClientException {
+        TemplateSourceDocument template = getCurrentDocumentAsTemplateSourceDocument();
+        if (template == null) {
+            return null;
+        }
+        return template.getTemplateBasedDocuments(0, LINKED_DOCUMENTS_PAGE_SIZE);
+    }
+
+    /**
+     * Returns the number of documents bound to the current template, capped
+     * to {@link #LINKED_DOCUMENTS_COUNT_LIMIT} + 1 so that the count does not
+     * scan all of them.
+     */
+    public long getCurrentTemplateLinkedDocumentsCount()
+            throws ClientException {
+        TemplateSourceDocument template = getCurrentDocumentAsTemplateSourceDocument();
+        if (template == null) {
+            return 0;
+        }
+        return template.getTemplateBasedDocumentsCount(LINKED_DOCUMENTS_COUNT_LIMIT + 1);
+    }
+
+    public int getLinkedDocumentsCountLimit() {
+        return LINKED_DOCUMENTS_COUNT_LIMIT;
+    }
+
     public DocumentModel resolveTemplateById(String uuid) {
         try {
             return documentManager.getDocument(new IdRef(uuid));
@@ -1,7 +1,10 @@
 package org.nuxeo.ecm.platform.template.tests;
 
 import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -11,6 +14,7 @@ import org.nuxeo.ecm.core.event.EventService;
 import org.nuxeo.ecm.core.storage.sql.SQLRepositoryTestCase;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
 import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
 import org.nuxeo.runtime.api.Framework;
 
@@ -134,4 +138,33 @@ public class TestAdapters extends SQLRepositoryTestCase {
 
     }
 
+    public void testBindingsInvalidation() throws Exception {
+        DocumentModel root = session.getRootDocument();
+        DocumentModel template = session.createDocumentModel(
+                root.getPathAsString(), "template", "TemplateSource");
+        template.setProperty("dublincore", "title", "MyTemplate");
+        template = session.createDocument(template);
+
+        DocumentModel testDoc = session.createDocumentModel(
+                root.getPathAsString(), "templatedDoc", "TemplateBasedFile");
+        testDoc.setProperty("dublincore", "title", "MyTestDoc");
+        testDoc = session.createDocument(testDoc);
+
+        TemplateBasedDocument adapter = testDoc.getAdapter(TemplateBasedDocument.class);
+        // adapters are cached by the DocumentModel
+        assertSame(adapter, testDoc.getAdapter(TemplateBasedDocument.class));
+        assertEquals(0, adapter.getTemplateNames().size());
+
+        // bindings are reloaded once the document has been saved
+        testDoc = adapter.setTemplate(template, true);
+        adapter = testDoc.getAdapter(TemplateBasedDocument.class);
+        assertEquals(1, adapter.getTemplateNames().size());
+
+        // and when the property is changed outside of the adapter
+        testDoc.setPropertyValue(TemplateBindings.BINDING_PROP_NAME,
+                new ArrayList<Map<String, Serializable>>());
+        assertSame(adapter, testDoc.getAdapter(TemplateBasedDocument.class));
+        assertEquals(0, adapter.getTemplateNames().size());
+    }
+
 }
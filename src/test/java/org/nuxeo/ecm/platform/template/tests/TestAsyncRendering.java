@@ -0,0 +1,73 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.service.RenderJob;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestAsyncRendering extends SimpleTemplateDocTestCase {
+
+    protected TemplateBasedDocument setupAndSave() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        List<TemplateInput> params = new ArrayList<TemplateInput>();
+        params.add(new TemplateInput("variable1", "AsyncVar"));
+        adapter.saveParams(TEMPLATE_NAME, params, true);
+        session.save();
+        return adapter;
+    }
+
+    public void testAsyncRendering() throws Exception {
+        TemplateBasedDocument adapter = setupAndSave();
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+
+        RenderJob job = tps.submitRendering(adapter, TEMPLATE_NAME, false,
+                RenderJob.DEFAULT_PRIORITY);
+        assertNotNull(job);
+        assertNotNull(tps.getRenderJob(job.getId()));
+
+        assertTrue(job.await(30, TimeUnit.SECONDS));
+        assertEquals(RenderJob.Status.COMPLETED, job.getStatus());
+        assertEquals(job.getId(), tps.getRenderJob(job.getId()).getId());
+        Blob result = job.getResult();
+        assertNotNull(result);
+        assertTrue(result.getString().contains("AsyncVar"));
+        assertTrue(result.getString().contains(
+                adapter.getAdaptedDoc().getTitle()));
+    }
+
+    public void testAsyncRenderAndStore() throws Exception {
+        TemplateBasedDocument adapter = setupAndSave();
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+
+        RenderJob job = tps.submitRendering(adapter, TEMPLATE_NAME, true, 10);
+        assertTrue(job.await(30, TimeUnit.SECONDS));
+        assertEquals(RenderJob.Status.COMPLETED, job.getStatus());
+
+        // process invalidations from the rendering session
+        session.save();
+        DocumentModel doc = session.getDocument(adapter.getAdaptedDoc().getRef());
+        Blob stored = doc.getAdapter(BlobHolder.class).getBlob();
+        assertNotNull(stored);
+        assertTrue(stored.getString().contains("AsyncVar"));
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
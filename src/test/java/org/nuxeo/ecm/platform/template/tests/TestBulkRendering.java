@@ -0,0 +1,128 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.service.BulkRenderStatus;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestBulkRendering extends SimpleTemplateDocTestCase {
+
+    protected static final int NB_DOCS = 7;
+
+    protected List<TemplateInput> getParams() {
+        List<TemplateInput> params = new ArrayList<TemplateInput>();
+        params.add(new TemplateInput("variable1", "BulkVar"));
+        return params;
+    }
+
+    protected DocumentModel templateDoc;
+
+    protected List<DocumentModel> createLinkedDocuments() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        templateDoc = adapter.getSourceTemplateDoc(TEMPLATE_NAME);
+
+        List<DocumentModel> docs = new ArrayList<DocumentModel>();
+        docs.add(adapter.saveParams(TEMPLATE_NAME, getParams(), true));
+        DocumentModel root = session.getRootDocument();
+        for (int i = 1; i < NB_DOCS; i++) {
+            DocumentModel doc = session.createDocumentModel(
+                    root.getPathAsString(), "bulkDoc" + i, "TemplateBasedFile");
+            doc.setPropertyValue("dc:title", "BulkDoc" + i);
+            doc = session.createDocument(doc);
+            TemplateBasedDocument tbd = doc.getAdapter(TemplateBasedDocument.class);
+            tbd.setTemplate(templateDoc, true);
+            doc = tbd.saveParams(TEMPLATE_NAME, getParams(), true);
+            docs.add(doc);
+        }
+        session.save();
+        return docs;
+    }
+
+    public void testRenderLinkedDocuments() throws Exception {
+        List<DocumentModel> docs = createLinkedDocuments();
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        // 3 docs per transaction
+        BulkRenderStatus status = tps.renderLinkedDocuments(templateDoc, 3);
+        assertTrue(status.await(60, TimeUnit.SECONDS));
+
+        assertEquals(NB_DOCS, status.getTotal());
+        assertEquals(NB_DOCS, status.getProcessed());
+        assertEquals(NB_DOCS, status.getSucceeded());
+        assertEquals(0, status.getFailed());
+        assertTrue(status.getFailures().isEmpty());
+
+        // process invalidations from the rendering sessions
+        session.save();
+        for (DocumentModel doc : docs) {
+            doc = session.getDocument(doc.getRef());
+            Blob stored = doc.getAdapter(BlobHolder.class).getBlob();
+            assertNotNull(stored);
+            assertTrue(stored.getString().contains(doc.getTitle()));
+            assertTrue(stored.getString().contains("BulkVar"));
+        }
+    }
+
+    public void testLinkedDocumentsLookup() throws Exception {
+        List<DocumentModel> docs = createLinkedDocuments();
+        TemplateSourceDocument source = templateDoc.getAdapter(TemplateSourceDocument.class);
+
+        assertTrue(source.hasTemplateBasedDocuments());
+        assertEquals(NB_DOCS, source.getTemplateBasedDocumentsCount());
+        // capped count
+        assertEquals(2, source.getTemplateBasedDocumentsCount(2));
+        assertEquals(NB_DOCS, source.getTemplateBasedDocumentsCount(NB_DOCS + 1));
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        Set<String> ids = new HashSet<String>();
+        String lastId = null;
+        for (int offset = 0; offset < NB_DOCS; offset += 3) {
+            List<String> page = tps.getLinkedTemplateBasedDocumentIds(
+                    templateDoc, lastId, 3);
+            assertEquals(Math.min(3, NB_DOCS - offset), page.size());
+            ids.addAll(page);
+            lastId = page.get(page.size() - 1);
+        }
+        assertEquals(NB_DOCS, ids.size());
+        for (DocumentModel doc : docs) {
+            assertTrue(ids.contains(doc.getId()));
+        }
+        assertTrue(tps.getLinkedTemplateBasedDocumentIds(templateDoc,
+                lastId, 3).isEmpty());
+
+        List<TemplateBasedDocument> firstPage = source.getTemplateBasedDocuments(
+                0, 2);
+        assertEquals(2, firstPage.size());
+
+        // unbound template
+        DocumentModel otherTemplate = session.createDocumentModel("/",
+                "otherTemplate", "TemplateSource");
+        otherTemplate = session.createDocument(otherTemplate);
+        source = otherTemplate.getAdapter(TemplateSourceDocument.class);
+        assertFalse(source.hasTemplateBasedDocuments());
+        assertEquals(0, source.getTemplateBasedDocumentsCount());
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
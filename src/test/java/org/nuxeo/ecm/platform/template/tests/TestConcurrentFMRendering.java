@@ -0,0 +1,110 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.ecm.platform.template.processors.fm.DigestTemplateLoader;
+
+import freemarker.cache.MruCacheStorage;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Stress test for the template store used by the FreeMarkerProcessor :
+ * renders the same templates from an increasing number of threads and logs
+ * the throughput for each thread count.
+ */
+public class TestConcurrentFMRendering extends TestCase {
+
+    protected static final Log log = LogFactory.getLog(TestConcurrentFMRendering.class);
+
+    protected static final int NB_TEMPLATES = 10;
+
+    protected static final int RENDERINGS_PER_THREAD = 2000;
+
+    protected TemplateCache<String> sources;
+
+    protected Configuration cfg;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        sources = new TemplateCache<String>("test", NB_TEMPLATES);
+        for (int i = 0; i < NB_TEMPLATES; i++) {
+            sources.put("tmpl" + i, "<h1>Template " + i
+                    + " : ${title}</h1><#list items as item>${item}</#list>");
+        }
+        cfg = new Configuration();
+        cfg.setTemplateLoader(new DigestTemplateLoader(sources));
+        cfg.setLocalizedLookup(false);
+        cfg.setCacheStorage(new MruCacheStorage(NB_TEMPLATES, NB_TEMPLATES));
+    }
+
+    protected Callable<Integer> newRenderer(final int seed) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int errors = 0;
+                for (int i = 0; i < RENDERINGS_PER_THREAD; i++) {
+                    int idx = (seed + i) % NB_TEMPLATES;
+                    Map<String, Object> ctx = new HashMap<String, Object>();
+                    ctx.put("title", "T" + i);
+                    List<String> items = new ArrayList<String>();
+                    items.add("a");
+                    items.add("b");
+                    ctx.put("items", items);
+                    StringWriter writer = new StringWriter();
+                    cfg.getTemplate("tmpl" + idx).process(ctx, writer);
+                    if (!writer.toString().equals(
+                            "<h1>Template " + idx + " : T" + i + "</h1>ab")) {
+                        errors++;
+                    }
+                }
+                return errors;
+            }
+        };
+    }
+
+    public void testConcurrentRendering() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int nbThreads = 1; nbThreads <= cores; nbThreads = nbThreads * 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+            try {
+                List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+                long t0 = System.nanoTime();
+                for (int t = 0; t < nbThreads; t++) {
+                    results.add(executor.submit(newRenderer(t)));
+                }
+                for (Future<Integer> result : results) {
+                    assertEquals(0, result.get().intValue());
+                }
+                long elapsed = System.nanoTime() - t0;
+                long throughput = (long) nbThreads * RENDERINGS_PER_THREAD
+                        * 1000000000L / Math.max(elapsed, 1);
+                log.info(nbThreads + " thread(s) : " + throughput
+                        + " renderings/s");
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        // parsed templates are shared
+        Template t1 = cfg.getTemplate("tmpl0");
+        Template t2 = cfg.getTemplate("tmpl0");
+        assertSame(t1, t2);
+        assertEquals(NB_TEMPLATES, sources.size());
+    }
+
+}
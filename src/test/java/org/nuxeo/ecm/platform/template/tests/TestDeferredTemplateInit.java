@@ -0,0 +1,108 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.util.List;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.service.DeferredTemplateInit;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorComponent;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestDeferredTemplateInit extends SimpleTemplateDocTestCase {
+
+    protected static final int NB_TEMPLATES = 10;
+
+    @Override
+    public void tearDown() throws Exception {
+        Framework.getProperties().remove(DeferredTemplateInit.DEFERRED_PROPERTY);
+        super.tearDown();
+    }
+
+    protected DocumentModel createTemplate(String name) throws Exception {
+        DocumentModel templateDoc = session.createDocumentModel(
+                session.getRootDocument().getPathAsString(), name,
+                "TemplateSource");
+        templateDoc.setProperty("dublincore", "title", name);
+        templateDoc.setPropertyValue("tmpl:templateName", name);
+        templateDoc.setProperty("file", "content", getTemplateBlob());
+        return session.createDocument(templateDoc);
+    }
+
+    protected boolean hasParam(TemplateSourceDocument source, String name)
+            throws Exception {
+        for (TemplateInput param : source.getParams()) {
+            if (name.equals(param.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testSynchronousInitByDefault() throws Exception {
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        assertFalse(tps.isDeferredInit());
+
+        DocumentModel templateDoc = createTemplate("syncTemplate");
+        TemplateSourceDocument source = templateDoc.getAdapter(TemplateSourceDocument.class);
+        assertFalse(source.isInitializing());
+        assertTrue(hasParam(source, "variable1"));
+    }
+
+    public void testDeferredInit() throws Exception {
+        Framework.getProperties().setProperty(
+                DeferredTemplateInit.DEFERRED_PROPERTY, "true");
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        assertTrue(tps.isDeferredInit());
+        DeferredTemplateInit deferredInit = ((TemplateProcessorComponent) tps).getDeferredInit();
+        int initialized = deferredInit.getInitializedCount();
+
+        String[] ids = new String[NB_TEMPLATES];
+        for (int i = 0; i < NB_TEMPLATES; i++) {
+            DocumentModel templateDoc = createTemplate("template" + i);
+            TemplateSourceDocument source = templateDoc.getAdapter(TemplateSourceDocument.class);
+            // parameters are not extracted in the creating transaction
+            assertTrue(source.isInitializing());
+            assertTrue(source.getParams().isEmpty());
+            ids[i] = templateDoc.getId();
+        }
+        session.save();
+
+        assertTrue(deferredInit.awaitCompletion(20000));
+        assertEquals(initialized + NB_TEMPLATES,
+                deferredInit.getInitializedCount());
+
+        // see the changes of the workers
+        session.save();
+        for (String id : ids) {
+            DocumentModel templateDoc = session.getDocument(new IdRef(id));
+            TemplateSourceDocument source = templateDoc.getAdapter(TemplateSourceDocument.class);
+            assertFalse(source.isInitializing());
+            List<TemplateInput> params = source.getParams();
+            assertTrue(hasParam(source, "variable1"));
+            assertFalse(params.isEmpty());
+        }
+
+        // saving the initialized template does not schedule it again
+        DocumentModel templateDoc = session.getDocument(new IdRef(ids[0]));
+        templateDoc.setPropertyValue("dc:description", "modified");
+        session.saveDocument(templateDoc);
+        session.save();
+        assertEquals(0, deferredInit.getPendingCount());
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.platform.template.cache.DiskRenderCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+
+public class TestDiskRenderCache extends TestCase {
+
+    protected File dir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("renderCache", "");
+        dir.delete();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtils.deleteTree(dir);
+        super.tearDown();
+    }
+
+    protected Blob getResult(String content) {
+        Blob blob = new StringBlob(content);
+        blob.setMimeType("text/html");
+        blob.setFilename("result.html");
+        return blob;
+    }
+
+    public void testStoreAndRead() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(dir, 1024);
+        assertTrue(cache.isEnabled());
+
+        String key = TemplateCache.buildKey("d1", "docId", "12", "tmpl", "");
+        assertNull(cache.get(key));
+        Blob stored = cache.put(key, getResult("<html>Result</html>"));
+        assertEquals("<html>Result</html>", stored.getString());
+        assertEquals("result.html", stored.getFilename());
+
+        Blob cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals("<html>Result</html>", cached.getString());
+        assertEquals("text/html", cached.getMimeType());
+        assertEquals("result.html", cached.getFilename());
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, dir.list().length);
+    }
+
+    public void testSizeBasedEviction() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(dir, 25);
+
+        cache.put("d1:a", getResult("0123456789"));
+        cache.put("d1:b", getResult("0123456789"));
+        // touch a so that b is the eldest entry
+        assertNotNull(cache.get("d1:a"));
+        cache.put("d1:c", getResult("0123456789"));
+
+        assertEquals(2, cache.size());
+        assertEquals(20, cache.getTotalSize());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("d1:b"));
+        assertNotNull(cache.get("d1:c"));
+        assertEquals(2, dir.list().length);
+
+        // bigger than the whole cache : not stored
+        Blob big = cache.put("d1:d",
+                getResult("012345678901234567890123456789"));
+        assertEquals("012345678901234567890123456789", big.getString());
+        assertNull(cache.get("d1:d"));
+        assertEquals(20, cache.getTotalSize());
+    }
+
+    public void testInvalidateByTemplateDigest() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(dir, 1024);
+
+        cache.put(TemplateCache.buildKey("d1", "doc1"), getResult("1"));
+        cache.put(TemplateCache.buildKey("d1", "doc2"), getResult("2"));
+        cache.put(TemplateCache.buildKey("d2", "doc1"), getResult("3"));
+
+        cache.invalidate("d1");
+
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getTotalSize());
+        assertNull(cache.get(TemplateCache.buildKey("d1", "doc1")));
+        assertEquals("3",
+                cache.get(TemplateCache.buildKey("d2", "doc1")).getString());
+        assertEquals(1, dir.list().length);
+    }
+
+    public void testDisabled() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(dir, 0);
+        assertFalse(cache.isEnabled());
+        assertEquals("A", cache.put("d1:a", getResult("A")).getString());
+        assertNull(cache.get("d1:a"));
+    }
+
+}
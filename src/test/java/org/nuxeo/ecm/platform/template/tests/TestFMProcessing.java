@@ -10,10 +10,19 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.source.TemplateSourceDocument;
+import org.nuxeo.ecm.platform.template.cache.DiskRenderCache;
+import org.nuxeo.ecm.platform.template.cache.RenderCache;
+import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
+import org.nuxeo.ecm.platform.template.processors.fm.FreeMarkerProcessor;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
 
 public class TestFMProcessing extends SimpleTemplateDocTestCase {
 
     public void testDocumentsAttributes() throws Exception {
+        Framework.getProperties().setProperty(
+                DiskRenderCache.MAX_SIZE_PROPERTY, "1000000");
         TemplateBasedDocument adapter = setupTestDocs();
         DocumentModel testDoc = adapter.getAdaptedDoc();
         assertNotNull(testDoc);
@@ -36,6 +45,62 @@ public class TestFMProcessing extends SimpleTemplateDocTestCase {
         assertTrue(xmlContent.contains(testDoc.getId()));
         assertTrue(xmlContent.contains("YoVar1"));
 
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+
+        // second rendering of the unchanged document uses the render cache
+        RenderCache renderCache = tps.getRenderCache();
+        long renderHits = renderCache.getHits();
+        newBlob = adapter.renderWithTemplate(TEMPLATE_NAME);
+        assertEquals(xmlContent, newBlob.getString());
+        assertEquals(renderHits + 1, renderCache.getHits());
+
+        // the processor reuses the parsed template
+        FreeMarkerProcessor processor = (FreeMarkerProcessor) tps.getProcessor(processorType);
+        long hits = processor.getCache().getHits();
+        newBlob = processor.renderTemplate(adapter, TEMPLATE_NAME);
+        assertTrue(newBlob.getString().contains("YoVar1"));
+        assertEquals(hits + 1, processor.getCache().getHits());
+        assertEquals(1, processor.getCache().size());
+
+        // modifying the document changes the cache key
+        testDoc = adapter.getAdaptedDoc();
+        testDoc.setPropertyValue("dc:title", "MyModifiedTestDoc");
+        testDoc = session.saveDocument(testDoc);
+        adapter = testDoc.getAdapter(TemplateBasedDocument.class);
+        long renderMisses = renderCache.getMisses();
+        newBlob = adapter.renderWithTemplate(TEMPLATE_NAME);
+        assertTrue(newBlob.getString().contains("MyModifiedTestDoc"));
+        assertEquals(renderMisses + 1, renderCache.getMisses());
+    }
+
+    public void testWarmUp() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        TemplateSourceDocument source = adapter.getSourceTemplate(TEMPLATE_NAME);
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        FreeMarkerProcessor processor = (FreeMarkerProcessor) tps.getProcessor(source.getTemplateType());
+        // the instance is shared
+        assertSame(processor, tps.getProcessor(source.getTemplateType()));
+
+        processor.shutdown();
+        assertEquals(0, processor.getCache().size());
+
+        assertTrue(tps.warmUp(source));
+        assertEquals(1, processor.getCache().size());
+
+        // the first rendering finds the prepared template
+        long hits = processor.getCache().getHits();
+        Blob newBlob = processor.renderTemplate(adapter, TEMPLATE_NAME);
+        assertTrue(newBlob.getString().contains(
+                adapter.getAdaptedDoc().getTitle()));
+        assertEquals(hits + 1, processor.getCache().getHits());
+    }
+
+    public void testContextDependentTemplate() throws Exception {
+        assertTrue(FreeMarkerVariableExtractor.isContextDependent("Hello ${username}"));
+        assertTrue(FreeMarkerVariableExtractor.isContextDependent("<#list auditEntries as entry>${entry.eventId}</#list>"));
+        assertTrue(FreeMarkerVariableExtractor.isContextDependent("${.now}"));
+        assertFalse(FreeMarkerVariableExtractor.isContextDependent("${doc.title} ${myusername}"));
     }
 
     @Override
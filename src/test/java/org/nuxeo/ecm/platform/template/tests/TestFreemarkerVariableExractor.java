@@ -1,19 +1,37 @@
 package org.nuxeo.ecm.platform.template.tests;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.XMLSerializer;
 import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
 import org.nuxeo.ecm.platform.template.processors.xdocreport.XDocReportProcessor;
+import org.nuxeo.ecm.platform.template.processors.xdocreport.ZipXmlHelper;
 
 public class TestFreemarkerVariableExractor extends TestCase {
 
+    protected static final Log log = LogFactory.getLog(TestFreemarkerVariableExractor.class);
+
+    protected static final int NB_VARIABLES = 1000;
+
+    protected static final int NB_PARAGRAPHS = 50000;
+
     public void testExtractor() throws Exception {
 
         File file = FileUtils.getResourceFileFromContext("data/testFM.tpl");
@@ -47,6 +65,76 @@ public class TestFreemarkerVariableExractor extends TestCase {
         assertFalse(vars.contains("doc['dc:title']"));
         assertFalse(vars.contains("doc['dc:subjects']"));
 
+        // streaming extraction gives the same result
+        assertEquals(vars,
+                FreeMarkerVariableExtractor.extractVariables(new StringReader(
+                        content)));
+    }
+
+    public void testTokenizer() throws Exception {
+        List<String> vars = FreeMarkerVariableExtractor.extractVariables("${aa} ${bb.c} ${aa} [#if dd > 2][#if ee == \"]\"][/#if][/#if]"
+                + "[#list doc['dc:subjects'] as ss]${ss}[/#list] $[#x] ${unterminated");
+        assertEquals(Arrays.asList("aa", "bb", "dd", "ee"), vars);
+    }
+
+    protected File createLargeDocX() throws Exception {
+        File file = File.createTempFile("testLargeTemplate", ".docx");
+        ZipOutputStream zOut = new ZipOutputStream(new FileOutputStream(file));
+        zOut.putNextEntry(new ZipEntry("[Content_Types].xml"));
+        zOut.write("<Types/>".getBytes("UTF-8"));
+        zOut.closeEntry();
+        zOut.putNextEntry(new ZipEntry(ZipXmlHelper.DOCX_MAIN_FILE));
+        Writer writer = new OutputStreamWriter(zOut, "UTF-8");
+        writer.write("<w:document><w:body>");
+        for (int i = 0; i < NB_PARAGRAPHS; i++) {
+            int v = i % NB_VARIABLES;
+            writer.write("<w:p><w:r><w:t>Some text \u00e9\u20ac ${var" + v
+                    + ".title} [#if cond" + v + "]yes[/#if] [#list list" + v
+                    + " as item]${item}[/#list]</w:t></w:r></w:p>");
+        }
+        writer.write("</w:body></w:document>");
+        writer.flush();
+        zOut.closeEntry();
+        zOut.close();
+        return file;
+    }
+
+    public void testLargeDocXExtraction() throws Exception {
+        File file = createLargeDocX();
+        try {
+            Blob blob = new FileBlob(file);
+
+            long t0 = System.currentTimeMillis();
+            String content = ZipXmlHelper.readXMLContent(blob,
+                    ZipXmlHelper.DOCX_MAIN_FILE);
+            List<String> fromString = FreeMarkerVariableExtractor.extractVariables(content);
+            long stringTime = System.currentTimeMillis() - t0;
+            content = null;
+
+            t0 = System.currentTimeMillis();
+            List<String> vars;
+            Reader reader = ZipXmlHelper.openXMLContent(blob,
+                    ZipXmlHelper.DOCX_MAIN_FILE);
+            try {
+                vars = FreeMarkerVariableExtractor.extractVariables(reader);
+            } finally {
+                reader.close();
+            }
+            long streamTime = System.currentTimeMillis() - t0;
+
+            log.info(NB_PARAGRAPHS + " paragraphs : loaded content "
+                    + stringTime + "ms, streamed content " + streamTime
+                    + "ms");
+
+            assertEquals(fromString, vars);
+            assertEquals(3 * NB_VARIABLES, vars.size());
+            assertEquals("var0", vars.get(0));
+            assertEquals("cond0", vars.get(1));
+            assertEquals("list0", vars.get(2));
+            assertFalse(vars.contains("item"));
+        } finally {
+            file.delete();
+        }
     }
 
     public void testDocXParamExtraction() throws Exception {
@@ -14,9 +14,19 @@ import org.nuxeo.ecm.core.convert.plugins.text.extractors.XL2TextConverter;
 import org.nuxeo.ecm.platform.template.TemplateInput;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
 import org.nuxeo.ecm.platform.template.processors.jxls.JXLSTemplateProcessor;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
 
 public class TestJXLSProcessing extends SimpleTemplateDocTestCase {
 
+    public void testNothingToWarmUp() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        // JXLS has nothing to prepare : the template must not be reported
+        // as prepared
+        assertFalse(tps.warmUp(adapter.getSourceTemplate(TEMPLATE_NAME)));
+    }
+
     public void testFileUpdateFromParams() throws Exception {
 
         TemplateBasedDocument adapter = setupTestDocs();
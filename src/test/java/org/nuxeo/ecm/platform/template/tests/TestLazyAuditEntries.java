@@ -0,0 +1,209 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.platform.audit.api.DocumentHistoryReader;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.audit.impl.LogEntryImpl;
+import org.nuxeo.ecm.platform.template.fm.AuditEntriesModel;
+import org.nuxeo.ecm.platform.template.fm.FreeMarkerVariableExtractor;
+import org.nuxeo.ecm.platform.template.fm.LazyAuditEntries;
+
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.Template;
+
+public class TestLazyAuditEntries extends TestCase {
+
+    protected static class CountingAuditEntries extends LazyAuditEntries {
+
+        protected int fetches = 0;
+
+        public CountingAuditEntries(List<LogEntry> source, int pageSize,
+                int maxEntries) {
+            super(new DocumentModelImpl("File"), null, source, pageSize,
+                    maxEntries);
+        }
+
+        @Override
+        protected List<LogEntry> fetchPage(int pageIndex)
+                throws ClientException {
+            fetches++;
+            return super.fetchPage(pageIndex);
+        }
+    }
+
+    protected static class ReaderAuditEntries extends LazyAuditEntries {
+
+        public ReaderAuditEntries(DocumentHistoryReader reader, int pageSize,
+                int maxEntries) {
+            super(new DocumentModelImpl("File"), reader, null, pageSize,
+                    maxEntries);
+        }
+    }
+
+    /**
+     * Audit reader serving pages of the given entries, pages being numbered
+     * from 0.
+     */
+    protected DocumentHistoryReader buildReader(final List<LogEntry> entries,
+            final List<Long> requestedPages) {
+        return (DocumentHistoryReader) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { DocumentHistoryReader.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (!"getDocumentHistory".equals(method.getName())) {
+                            throw new UnsupportedOperationException(
+                                    method.getName());
+                        }
+                        long pageIndex = ((Number) args[1]).longValue();
+                        long pageSize = ((Number) args[2]).longValue();
+                        requestedPages.add(pageIndex);
+                        int from = (int) Math.min(pageIndex * pageSize,
+                                entries.size());
+                        int to = (int) Math.min(from + pageSize,
+                                entries.size());
+                        return new ArrayList<LogEntry>(entries.subList(from,
+                                to));
+                    }
+                });
+    }
+
+    protected List<LogEntry> buildEntries(int nb) {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (int i = 0; i < nb; i++) {
+            LogEntryImpl entry = new LogEntryImpl();
+            entry.setId(i);
+            entry.setEventId("TestEvent" + i);
+            entry.setComment("Comment" + i);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public void testPaging() throws Exception {
+        CountingAuditEntries entries = new CountingAuditEntries(
+                buildEntries(25), 10, 1000);
+
+        // nothing is fetched until the entries are read
+        assertFalse(entries.isFetched());
+        assertEquals(0, entries.fetches);
+
+        Iterator<LogEntry> it = entries.iterator();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, it.next().getId());
+        }
+        assertEquals(1, entries.fetches);
+
+        assertEquals(15, entries.get(15).getId());
+        assertEquals(2, entries.fetches);
+
+        assertEquals(25, entries.size());
+        assertEquals(3, entries.fetches);
+
+        // no more queries once everything is loaded
+        assertEquals(25, entries.size());
+        assertEquals(3, entries.fetches);
+    }
+
+    public void testMaxEntries() throws Exception {
+        CountingAuditEntries entries = new CountingAuditEntries(
+                buildEntries(50), 10, 15);
+
+        assertEquals(15, entries.size());
+        assertEquals(2, entries.fetches);
+
+        int count = 0;
+        for (LogEntry entry : entries) {
+            assertEquals(count++, entry.getId());
+        }
+        assertEquals(15, count);
+
+        try {
+            entries.get(15);
+            fail("entries should be capped");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testHistoryReaderPaging() throws Exception {
+        List<Long> requestedPages = new ArrayList<Long>();
+        LazyAuditEntries entries = new ReaderAuditEntries(buildReader(
+                buildEntries(25), requestedPages), 10, 1000);
+
+        // the most recent entries are on the first page
+        assertEquals(0, entries.get(0).getId());
+        assertEquals(Long.valueOf(0), requestedPages.get(0));
+
+        assertEquals(25, entries.size());
+        int count = 0;
+        for (LogEntry entry : entries) {
+            assertEquals(count++, entry.getId());
+        }
+        assertEquals(25, count);
+        assertEquals(Arrays.asList(0L, 1L, 2L), requestedPages);
+    }
+
+    public void testTemplateModel() throws Exception {
+        CountingAuditEntries entries = new CountingAuditEntries(
+                buildEntries(25), 10, 1000);
+
+        Map<String, Object> ctx = new HashMap<String, Object>();
+        ctx.put("auditEntries", new AuditEntriesModel(entries,
+                new DefaultObjectWrapper()));
+        ctx.put("title", "Title");
+
+        Configuration cfg = new Configuration();
+
+        // the audit is not queried when the template does not use it
+        render(cfg, "${title}", ctx);
+        assertFalse(entries.isFetched());
+
+        String result = render(cfg,
+                "<#list auditEntries as entry>${entry.id}<#if entry_index == 2><#break></#if></#list>",
+                ctx);
+        assertEquals("012", result);
+        assertEquals(1, entries.fetches);
+
+        assertEquals("25", render(cfg, "${auditEntries?size}", ctx));
+    }
+
+    public void testStaticUsage() throws Exception {
+        assertTrue(FreeMarkerVariableExtractor.usesVariable(
+                "<#list auditEntries as entry>${entry.eventId}</#list>",
+                "auditEntries"));
+        assertTrue(FreeMarkerVariableExtractor.usesVariable(
+                "[#list auditEntries as entry]${entry.comment}[/#list]",
+                "auditEntries"));
+        assertFalse(FreeMarkerVariableExtractor.usesVariable(
+                "${doc.title} ${myAuditEntriesCount}", "auditEntries"));
+    }
+
+    protected String render(Configuration cfg, String content,
+            Map<String, Object> ctx) throws Exception {
+        Template template = new Template("test", new StringReader(content),
+                cfg);
+        StringWriter writer = new StringWriter();
+        template.process(ctx, writer);
+        return writer.toString();
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.platform.template.odt.OOoArchiveModifier;
+
+public class TestOOoArchiveModifier extends TestCase {
+
+    protected File workingDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        workingDir = new File(System.getProperty("java.io.tmpdir"),
+                "TestOOoArchiveModifier" + System.currentTimeMillis());
+        workingDir.mkdirs();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtils.deleteTree(workingDir);
+        super.tearDown();
+    }
+
+    protected Set<String> getEntryNames(File file) throws Exception {
+        Set<String> names = new HashSet<String>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zip.close();
+        }
+        return names;
+    }
+
+    public void testAddPictures() throws Exception {
+        File source = FileUtils.getResourceFileFromContext("data/testDoc.odt");
+        File oooFile = new File(workingDir, "result.odt");
+        FileUtils.copy(source, oooFile);
+        Set<String> sourceEntries = getEntryNames(oooFile);
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        Blob picture = new ByteArrayBlob(new byte[] { 1, 2, 3 }, "image/png");
+        picture.setFilename("pict&1.png");
+        blobs.add(picture);
+        Blob content = new ByteArrayBlob("Some text".getBytes("UTF-8"),
+                "text/plain");
+        content.setFilename("text.txt");
+        blobs.add(content);
+
+        File result = new OOoArchiveModifier().updateArchive(workingDir,
+                oooFile, blobs);
+        assertEquals(oooFile, result);
+
+        // mimetype is still the first, uncompressed, entry
+        ZipInputStream zin = new ZipInputStream(
+                new FileInputStream(result));
+        try {
+            ZipEntry first = zin.getNextEntry();
+            assertEquals(OOoArchiveModifier.MIMETYPE_ENTRY, first.getName());
+            assertEquals(ZipEntry.STORED, first.getMethod());
+        } finally {
+            zin.close();
+        }
+
+        Set<String> entries = getEntryNames(result);
+        assertTrue(entries.containsAll(sourceEntries));
+        assertTrue(entries.contains("Pictures/pict&1.png"));
+        assertTrue(entries.contains("Content/text.txt"));
+        assertEquals(sourceEntries.size() + 2, entries.size());
+
+        ZipFile zip = new ZipFile(result);
+        try {
+            String manifest = new String(FileUtils.readBytes(zip.getInputStream(zip.getEntry(OOoArchiveModifier.MANIFEST_ENTRY))), "UTF-8");
+            assertTrue(manifest.contains("manifest:media-type=\"image/png\" manifest:full-path=\"Pictures/pict&amp;1.png\""));
+            assertTrue(manifest.contains("manifest:full-path=\"Content/text.txt\""));
+            assertTrue(manifest.trim().endsWith("</manifest:manifest>"));
+            assertEquals("Some text", new String(FileUtils.readBytes(zip.getInputStream(zip.getEntry("Content/text.txt"))), "UTF-8"));
+        } finally {
+            zip.close();
+        }
+
+        // no working files left behind
+        assertEquals(1, workingDir.listFiles().length);
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBindings;
+import org.nuxeo.ecm.platform.template.serializer.JsonTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.service.ParamsMigrationReport;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestParamsMigration extends SimpleTemplateDocTestCase {
+
+    @Override
+    public void tearDown() throws Exception {
+        XMLSerializer.setSerializer(null);
+        super.tearDown();
+    }
+
+    public void testMigrateToJson() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        DocumentModel testDoc = adapter.saveParams(TEMPLATE_NAME,
+                getTestParams(), true);
+        session.save();
+
+        String legacy = new TemplateBindings(testDoc).get(TEMPLATE_NAME).getData();
+        assertFalse(JsonTemplateInputSerializer.isJson(legacy));
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        XMLSerializer.setSerializer(new JsonTemplateInputSerializer());
+        ParamsMigrationReport report = tps.migrateParams(
+                session.getRepositoryName(), 1);
+        assertTrue(report.await(60, TimeUnit.SECONDS));
+        assertNull(report.getError());
+        assertSame(report, tps.getParamsMigration(session.getRepositoryName()));
+
+        assertEquals(0, report.getFailed());
+        assertTrue(report.getMigrated() >= 1);
+        assertTrue(report.getBytesAfter() < report.getBytesBefore());
+        assertTrue(report.getBytesSavedPerDocument() > 0);
+
+        // process invalidations from the migration sessions
+        session.save();
+        testDoc = session.getDocument(testDoc.getRef());
+        String migrated = new TemplateBindings(testDoc).get(TEMPLATE_NAME).getData();
+        assertTrue(JsonTemplateInputSerializer.isJson(migrated));
+
+        List<TemplateInput> params = testDoc.getAdapter(
+                TemplateBasedDocument.class).getParams(TEMPLATE_NAME);
+        List<TemplateInput> expected = XMLSerializer.readFromXml(legacy);
+        assertEquals(expected.size(), params.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), params.get(i).toString());
+        }
+
+        // already migrated
+        report = tps.migrateParams(session.getRepositoryName(), 0);
+        assertTrue(report.await(60, TimeUnit.SECONDS));
+        assertEquals(0, report.getMigrated());
+        assertTrue(report.getScanned() >= 2);
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
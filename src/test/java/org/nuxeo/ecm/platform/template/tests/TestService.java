@@ -1,6 +1,16 @@
 package org.nuxeo.ecm.platform.template.tests;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.platform.template.processors.TemplateProcessor;
 import org.nuxeo.ecm.platform.template.processors.docx.WordXMLRawTemplateProcessor;
@@ -8,6 +18,7 @@ import org.nuxeo.ecm.platform.template.processors.xdocreport.XDocReportProcessor
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorComponent;
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorDescriptor;
 import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.ecm.platform.template.service.ZipContentSniffer;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
@@ -130,4 +141,76 @@ public class TestService extends NXRuntimeTestCase {
 
     }
 
+    public void testSingleProcessorInstance() throws Exception {
+
+        deployContrib("org.nuxeo.ecm.platform.template.manager",
+                "OSGI-INF/templateprocessor-contrib.xml");
+
+        final TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+
+        int nbThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            List<Future<TemplateProcessor>> results = new ArrayList<Future<TemplateProcessor>>();
+            for (int i = 0; i < nbThreads; i++) {
+                results.add(executor.submit(new Callable<TemplateProcessor>() {
+                    @Override
+                    public TemplateProcessor call() throws Exception {
+                        return tps.getProcessor("XDocReportProcessor");
+                    }
+                }));
+            }
+            TemplateProcessor processor = tps.getProcessor("XDocReportProcessor");
+            assertNotNull(processor);
+            for (Future<TemplateProcessor> result : results) {
+                assertSame(processor, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // a replaced contribution gets a new instance
+        TemplateProcessor processor = tps.getProcessor("rawWordXML");
+        deployContrib("org.nuxeo.ecm.platform.template.manager.test",
+                "OSGI-INF/templateprocessor-contrib2.xml");
+        assertNotNull(tps.getProcessor("rawWordXML"));
+        assertNotSame(processor, tps.getProcessor("rawWordXML"));
+    }
+
+    protected Blob getAnonymousBlob(String path) {
+        File file = FileUtils.getResourceFileFromContext(path);
+        Blob blob = new FileBlob(file);
+        blob.setFilename(null);
+        blob.setMimeType(null);
+        return blob;
+    }
+
+    public void testContentSniffing() throws Exception {
+
+        deployContrib("org.nuxeo.ecm.platform.template.manager",
+                "OSGI-INF/templateprocessor-contrib.xml");
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+
+        Blob odtBlob = getAnonymousBlob("data/testDoc.odt");
+        assertEquals("application/vnd.oasis.opendocument.text",
+                ZipContentSniffer.sniffMimeType(odtBlob));
+        assertEquals("XDocReportProcessor", tps.findProcessorName(odtBlob));
+
+        Blob docxBlob = getAnonymousBlob("data/testDoc.docx");
+        assertEquals(ZipContentSniffer.DOCX_MIMETYPE,
+                ZipContentSniffer.sniffMimeType(docxBlob));
+        assertEquals("XDocReportProcessor", tps.findProcessorName(docxBlob));
+
+        // not a ZIP archive
+        Blob textBlob = new StringBlob("Empty");
+        textBlob.setMimeType(null);
+        assertNull(ZipContentSniffer.sniffMimeType(textBlob));
+        assertNull(tps.findProcessor(textBlob));
+
+        // sniffing is only a fallback
+        odtBlob.setFilename("bidon.bidon");
+        assertNull(tps.findProcessor(odtBlob));
+    }
+
 }
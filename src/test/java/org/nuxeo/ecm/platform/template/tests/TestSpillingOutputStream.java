@@ -0,0 +1,53 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.template.processors.SpillingOutputStream;
+
+public class TestSpillingOutputStream extends TestCase {
+
+    protected File spilled;
+
+    public void testKeepSmallResultsInMemory() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(10);
+        out.write("12345".getBytes());
+        out.write('6');
+        assertTrue(out.isInMemory());
+
+        Blob blob = out.getBlob("text/plain");
+        assertEquals("123456", blob.getString());
+        assertEquals("text/plain", blob.getMimeType());
+    }
+
+    public void testSpillBigResults() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(10);
+        out.write("12345".getBytes());
+        assertTrue(out.isInMemory());
+        out.write("67890ABCDE".getBytes());
+        assertFalse(out.isInMemory());
+        out.write('F');
+        out.close();
+    }
+
+    public void testDiscardSpilledFile() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(10) {
+            @Override
+            protected void checkThreshold(int len) throws IOException {
+                super.checkThreshold(len);
+                spilled = file;
+            }
+        };
+        out.write("1234567890ABCDE".getBytes());
+        assertFalse(out.isInMemory());
+        assertTrue(spilled.exists());
+
+        // failure before getBlob : the temporary file must be removed
+        out.discard();
+        assertFalse(spilled.exists());
+    }
+
+}
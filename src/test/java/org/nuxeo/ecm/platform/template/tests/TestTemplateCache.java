@@ -0,0 +1,68 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.platform.template.cache.BlobDigestHelper;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+
+public class TestTemplateCache extends TestCase {
+
+    public void testLRUEviction() throws Exception {
+        TemplateCache<String> cache = new TemplateCache<String>("test", 2);
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+        // touch a so that b is the eldest entry
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testInvalidateByDigest() throws Exception {
+        TemplateCache<String> cache = new TemplateCache<String>("test", 10);
+
+        cache.put(TemplateCache.buildKey("d1", "tmpl1"), "1");
+        cache.put(TemplateCache.buildKey("d1", "tmpl2"), "2");
+        cache.put(TemplateCache.buildKey("d2", "tmpl1"), "3");
+
+        cache.invalidate("d1");
+
+        assertEquals(1, cache.size());
+        assertNull(cache.get(TemplateCache.buildKey("d1", "tmpl1")));
+        assertEquals("3", cache.get(TemplateCache.buildKey("d2", "tmpl1")));
+    }
+
+    public void testExpiration() throws Exception {
+        TemplateCache<String> cache = new TemplateCache<String>("test", 10,
+                50);
+
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testDigest() throws Exception {
+        Blob blob1 = new StringBlob("Some template content");
+        Blob blob2 = new StringBlob("Some template content");
+        Blob blob3 = new StringBlob("Some other template content");
+
+        String digest = BlobDigestHelper.getDigest(blob1);
+        assertNotNull(digest);
+        assertEquals(digest, BlobDigestHelper.getDigest(blob2));
+        assertFalse(digest.equals(BlobDigestHelper.getDigest(blob3)));
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.template.InputType;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+import org.nuxeo.ecm.platform.template.cache.TemplateInputCache;
+
+/**
+ * Checks the {@link TemplateInputCache} and logs the allocations (or the time
+ * when the JVM can not measure allocations) per parameters read, with and
+ * without the cache.
+ */
+public class TestTemplateInputCache extends TestCase {
+
+    protected static final Log log = LogFactory.getLog(TestTemplateInputCache.class);
+
+    protected static final int NB_PARAMS = 20;
+
+    protected static final int ITERATIONS = 2000;
+
+    protected String buildXml() throws Exception {
+        List<TemplateInput> params = new ArrayList<TemplateInput>();
+        for (int i = 0; i < NB_PARAMS; i++) {
+            TemplateInput input = new TemplateInput("field" + i, "Value" + i);
+            input.setDesciption("Description " + i);
+            params.add(input);
+        }
+        params.add(new TemplateInput("date", new Date()));
+        TemplateInput prop = new TemplateInput("prop");
+        prop.setType(InputType.DocumentProperty);
+        prop.setSource("dc:description");
+        params.add(prop);
+        return XMLSerializer.serialize(params);
+    }
+
+    public void testCachedParams() throws Exception {
+        String xml = buildXml();
+
+        List<TemplateInput> shared = TemplateInputCache.getReadOnlyParams(xml);
+        assertSame(shared, TemplateInputCache.getReadOnlyParams(xml));
+        try {
+            shared.add(new TemplateInput("other"));
+            fail("shared params should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // OK
+        }
+
+        List<TemplateInput> parsed = XMLSerializer.readFromXml(xml);
+        List<TemplateInput> copy = TemplateInputCache.getParams(xml);
+        assertEquals(parsed.size(), copy.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            assertEquals(parsed.get(i).toString(), copy.get(i).toString());
+            assertNotSame(shared.get(i), copy.get(i));
+        }
+
+        // copies can be modified without affecting the cache
+        copy.get(0).setStringValue("Modified");
+        copy.add(new TemplateInput("other"));
+        assertEquals("Value0",
+                TemplateInputCache.getParams(xml).get(0).getStringValue());
+        assertEquals(parsed.size(), TemplateInputCache.getParams(xml).size());
+
+        // dates are not shared either
+        TemplateInput date = copy.get(NB_PARAMS);
+        long time = date.getDateValue().getTime();
+        date.getDateValue().setTime(0);
+        TemplateInput cached = TemplateInputCache.getParams(xml).get(NB_PARAMS);
+        assertEquals(time, cached.getDateValue().getTime());
+    }
+
+    public void testAllocationsPerRead() throws Exception {
+        final String xml = buildXml();
+
+        long parse = measure(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    XMLSerializer.readFromXml(xml);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        long cached = measure(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TemplateInputCache.getParams(xml);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        String unit = isAllocationMeasured() ? "bytes" : "ns";
+        log.info("Reading " + (NB_PARAMS + 2) + " params : " + parse / ITERATIONS
+                + " " + unit + "/read when parsing, " + cached / ITERATIONS
+                + " " + unit + "/read with the cache");
+        assertTrue(cached < parse);
+    }
+
+    protected boolean isAllocationMeasured() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread when supported by the
+     * JVM, the elapsed time in nanoseconds otherwise.
+     */
+    protected long measure(Runnable task) {
+        // warm up
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            task.run();
+        }
+        if (isAllocationMeasured()) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            long before = bean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                task.run();
+            }
+            return bean.getThreadAllocatedBytes(threadId) - before;
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        return System.nanoTime() - t0;
+    }
+
+}
@@ -0,0 +1,202 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.template.InputType;
+import org.nuxeo.ecm.platform.template.TemplateInput;
+import org.nuxeo.ecm.platform.template.XMLSerializer;
+import org.nuxeo.ecm.platform.template.serializer.Dom4jTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.serializer.JsonTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.serializer.StreamingTemplateInputSerializer;
+import org.nuxeo.ecm.platform.template.serializer.TemplateInputSerializer;
+
+/**
+ * Checks that the {@link StreamingTemplateInputSerializer} is compatible with
+ * the dom4j based one, and logs the serialize / parse throughput of both
+ * implementations.
+ */
+public class TestTemplateInputSerializers extends TestCase {
+
+    protected static final Log log = LogFactory.getLog(TestTemplateInputSerializers.class);
+
+    protected static final int BENCH_DURATION_MS = 500;
+
+    protected TemplateInputSerializer dom4j = new Dom4jTemplateInputSerializer();
+
+    protected TemplateInputSerializer streaming = new StreamingTemplateInputSerializer();
+
+    protected List<TemplateInput> buildParams(int nb) {
+        List<TemplateInput> params = new ArrayList<TemplateInput>();
+        for (int i = 0; i < nb; i++) {
+            TemplateInput input;
+            switch (i % 4) {
+            case 0:
+                input = new TemplateInput("field" + i, "Value " + i);
+                input.setDesciption("Description " + i);
+                break;
+            case 1:
+                input = new TemplateInput("field" + i, new Date());
+                input.setReadOnly(true);
+                break;
+            case 2:
+                input = new TemplateInput("field" + i, Boolean.TRUE);
+                break;
+            default:
+                input = new TemplateInput("field" + i);
+                input.setType(InputType.DocumentProperty);
+                input.setSource("dc:title");
+                input.setAutoLoop(true);
+                break;
+            }
+            params.add(input);
+        }
+        return params;
+    }
+
+    protected void assertSameParams(List<TemplateInput> expected,
+            List<TemplateInput> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TemplateInput e = expected.get(i);
+            TemplateInput a = actual.get(i);
+            assertEquals(e.toString(), a.toString());
+            assertEquals(e.getDesciption(), a.getDesciption());
+            assertEquals(e.getSource(), a.getSource());
+            assertEquals(e.isReadOnly(), a.isReadOnly());
+            assertEquals(e.isAutoLoop(), a.isAutoLoop());
+        }
+    }
+
+    public void testSameOutput() throws Exception {
+        List<TemplateInput> params = buildParams(8);
+
+        TemplateInput special = new TemplateInput("special",
+                "a < b && c > \"d\" 'e'\ttab\nline");
+        special.setDesciption("<p>Some & \"quoted\" 'text'</p>\n\u00e9\u20ac");
+        params.add(special);
+
+        TemplateInput empty = new TemplateInput("empty", "");
+        empty.setDesciption("");
+        params.add(empty);
+
+        TemplateInput noValue = new TemplateInput("noValue");
+        params.add(noValue);
+
+        String xml = dom4j.serialize(params);
+        assertEquals(xml, streaming.serialize(params));
+
+        assertSameParams(dom4j.readFromXml(xml), streaming.readFromXml(xml));
+        assertEquals("<p>Some & \"quoted\" 'text'</p>\n\u00e9\u20ac",
+                streaming.readFromXml(xml).get(8).getDesciption());
+
+        List<TemplateInput> none = new ArrayList<TemplateInput>();
+        assertEquals(dom4j.serialize(none), streaming.serialize(none));
+        assertEquals(0, streaming.readFromXml(dom4j.serialize(none)).size());
+    }
+
+    public void testJsonEncoding() throws Exception {
+        TemplateInputSerializer json = new JsonTemplateInputSerializer();
+        List<TemplateInput> params = buildParams(8);
+        TemplateInput special = new TemplateInput("special",
+                "a < b && c > \"d\" 'e'");
+        special.setDesciption("{\"not\": \"json\"}\n\u00e9\u20ac");
+        params.add(special);
+
+        String xml = streaming.serialize(params);
+        String encoded = json.serialize(params);
+        assertTrue(JsonTemplateInputSerializer.isJson(encoded));
+        assertFalse(JsonTemplateInputSerializer.isJson(xml));
+        assertTrue(encoded.length() < xml.length());
+        log.info("9 params : " + xml.length() + " chars as XML, "
+                + encoded.length() + " chars as JSON");
+
+        // legacy XML is read transparently
+        assertSameParams(streaming.readFromXml(xml), json.readFromXml(xml));
+        List<TemplateInput> fromXml = streaming.readFromXml(xml);
+        assertSameParams(fromXml,
+                XMLSerializer.readFromXml(json.serialize(fromXml)));
+
+        // dates are stored with milliseconds
+        assertEquals(params.get(1).getDateValue(),
+                json.readFromXml(encoded).get(1).getDateValue());
+    }
+
+    public void testConcurrentDates() throws Exception {
+        final Date date = new Date();
+        final String expected = XMLSerializer.formatDate(date);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int errors = 0;
+                        for (int i = 0; i < 1000; i++) {
+                            String formatted = XMLSerializer.formatDate(date);
+                            if (!expected.equals(formatted)
+                                    || !expected.equals(XMLSerializer.formatDate(XMLSerializer.parseDate(formatted)))) {
+                                errors++;
+                            }
+                        }
+                        return errors;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testThroughput() throws Exception {
+        for (int nb : new int[] { 10, 100, 1000 }) {
+            List<TemplateInput> params = buildParams(nb);
+            String xml = dom4j.serialize(params);
+            for (TemplateInputSerializer serializer : new TemplateInputSerializer[] {
+                    dom4j, streaming, new JsonTemplateInputSerializer() }) {
+                long serializations = run(serializer, params, null);
+                long parsings = run(serializer, null, xml);
+                log.info(serializer.getClass().getSimpleName() + " " + nb
+                        + " params : " + serializations * 1000
+                        / BENCH_DURATION_MS + " serialize/s, " + parsings
+                        * 1000 / BENCH_DURATION_MS + " parse/s");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of operations done in {@link #BENCH_DURATION_MS},
+     * after a warm up of the same duration.
+     */
+    protected long run(TemplateInputSerializer serializer,
+            List<TemplateInput> params, String xml) throws Exception {
+        long count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            count = 0;
+            long end = System.currentTimeMillis() + BENCH_DURATION_MS;
+            while (System.currentTimeMillis() < end) {
+                if (params != null) {
+                    serializer.serialize(params);
+                } else {
+                    serializer.readFromXml(xml);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
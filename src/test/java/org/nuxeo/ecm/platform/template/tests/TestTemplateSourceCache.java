@@ -0,0 +1,71 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.cache.TemplateCache;
+import org.nuxeo.ecm.platform.template.cache.TemplateSourceCache;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestTemplateSourceCache extends SimpleTemplateDocTestCase {
+
+    public void testSharedCacheDisabledByDefault() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        assertFalse(tps.getTemplateSourceCache().isSharedCacheEnabled());
+
+        assertNotNull(adapter.getTemplateBlob(TEMPLATE_NAME));
+        DocumentModel templateDoc = adapter.getSourceTemplateDoc(TEMPLATE_NAME);
+        assertNotNull(templateDoc.getCoreSession());
+    }
+
+    public void testSharedCache() throws Exception {
+        Framework.getProperties().setProperty(
+                TemplateSourceCache.SHARED_CACHE_SIZE_PROPERTY, "10");
+        TemplateBasedDocument adapter = setupTestDocs();
+        session.save();
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        TemplateSourceCache cache = tps.getTemplateSourceCache();
+        assertTrue(cache.isSharedCacheEnabled());
+        TemplateCache<DocumentModel> shared = cache.getSharedCache();
+
+        Blob blob = adapter.getTemplateBlob(TEMPLATE_NAME);
+        assertNotNull(blob);
+        long misses = shared.getMisses();
+        long hits = shared.getHits();
+
+        // template metadata is read from the shared cache
+        assertEquals("test.ftl",
+                adapter.getTemplateBlob(TEMPLATE_NAME).getFilename());
+        adapter.getTemplateType(TEMPLATE_NAME);
+        assertEquals(misses, shared.getMisses());
+        assertEquals(hits + 2, shared.getHits());
+
+        // documents returned by the public API are still attached
+        DocumentModel templateDoc = adapter.getSourceTemplateDoc(TEMPLATE_NAME);
+        assertNotNull(templateDoc.getCoreSession());
+
+        // modifying the template invalidates the cache
+        templateDoc.setPropertyValue("dc:description", "modified");
+        session.saveDocument(templateDoc);
+        session.save();
+        assertEquals(0, shared.size());
+        adapter.getTemplateType(TEMPLATE_NAME);
+        assertEquals(misses + 1, shared.getMisses());
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
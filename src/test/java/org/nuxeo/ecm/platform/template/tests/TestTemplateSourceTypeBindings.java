@@ -111,6 +111,26 @@ public class TestTemplateSourceTypeBindings extends SQLRepositoryTestCase {
         assertFalse(t1.getForcedTypes().contains("Note"));
     }
 
+    public void testBindingRemovedWithTemplate() throws Exception {
+
+        TemplateSourceDocument t1 = createTemplateDoc("t1");
+        t1.setForcedTypes(new String[] { "File" }, true);
+        session.save();
+
+        // wait for Async listener to run !
+        Framework.getLocalService(EventService.class).waitForAsyncCompletion();
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        assertEquals(t1.getAdaptedDoc().getId(), tps.getTypeMapping().get(
+                "File"));
+
+        session.removeDocument(t1.getAdaptedDoc().getRef());
+        session.save();
+        Framework.getLocalService(EventService.class).waitForAsyncCompletion();
+
+        assertNull(tps.getTypeMapping().get("File"));
+    }
+
     public void testAutomaticTemplateBinding() throws Exception {
 
         // create a template and a simple mapping
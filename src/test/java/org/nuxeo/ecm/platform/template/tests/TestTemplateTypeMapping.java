@@ -0,0 +1,157 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.platform.template.service.TemplateMappingFetcher;
+import org.nuxeo.ecm.platform.template.service.TemplateTypeMapping;
+
+public class TestTemplateTypeMapping extends TestCase {
+
+    protected TemplateTypeMapping mapping;
+
+    // simulates the repository state seen by the refresh
+    protected static class RefreshedMapping extends TemplateTypeMapping {
+
+        protected Map<String, String> modified = Collections.emptyMap();
+
+        protected String[] bound = new String[0];
+
+        protected RefreshedMapping() {
+            super(0);
+        }
+
+        @Override
+        protected void load() {
+        }
+
+        @Override
+        protected TemplateMappingFetcher fetch(Calendar since) {
+            return new TemplateMappingFetcher("test", since) {
+                {
+                    for (Map.Entry<String, String> entry : modified.entrySet()) {
+                        templates.put(entry.getKey(),
+                                Arrays.asList(entry.getValue()));
+                    }
+                    boundIds.addAll(Arrays.asList(bound));
+                    completed = true;
+                }
+            };
+        }
+
+        public void doRefresh() {
+            refresh();
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // no repository : start from an empty index
+        mapping = new TemplateTypeMapping(0) {
+            @Override
+            protected void load() {
+            }
+        };
+    }
+
+    public void testBindAndOverride() throws Exception {
+        Map<String, String> displaced = mapping.bind("t1",
+                Arrays.asList("File", "Note"));
+        assertTrue(displaced.isEmpty());
+        assertEquals("t1", mapping.getMapping().get("File"));
+        assertEquals("t1", mapping.getMapping().get("Note"));
+        assertEquals(new HashSet<String>(Arrays.asList("File", "Note")),
+                mapping.getTypes("t1"));
+
+        // t2 takes over Note
+        displaced = mapping.bind("t2", Arrays.asList("Note"));
+        assertEquals(Collections.singletonMap("Note", "t1"), displaced);
+        assertEquals("t1", mapping.getMapping().get("File"));
+        assertEquals("t2", mapping.getMapping().get("Note"));
+        assertEquals(Collections.singleton("File"), mapping.getTypes("t1"));
+        assertEquals(Collections.singleton("Note"), mapping.getTypes("t2"));
+
+        // rebinding replaces the previous types of the template
+        displaced = mapping.bind("t1", Arrays.asList("Folder"));
+        assertTrue(displaced.isEmpty());
+        assertNull(mapping.getMapping().get("File"));
+        assertEquals("t1", mapping.getMapping().get("Folder"));
+        assertEquals("t2", mapping.getMapping().get("Note"));
+    }
+
+    public void testUnbind() throws Exception {
+        mapping.bind("t1", Arrays.asList("File"));
+        mapping.bind("t2", Arrays.asList("Note"));
+
+        mapping.unbind("t1");
+        assertNull(mapping.getMapping().get("File"));
+        assertTrue(mapping.getTypes("t1").isEmpty());
+        assertEquals("t2", mapping.getMapping().get("Note"));
+
+        // unbinding a template that lost its type keeps the new owner
+        mapping.bind("t3", Arrays.asList("Note"));
+        mapping.unbind("t2");
+        assertEquals("t3", mapping.getMapping().get("Note"));
+        assertEquals(1, mapping.getMapping().size());
+    }
+
+    public void testRefreshUnbindsRemovedTemplates() throws Exception {
+        RefreshedMapping refreshed = new RefreshedMapping();
+        refreshed.bind("t1", Arrays.asList("File"));
+        refreshed.bind("t2", Arrays.asList("Note"));
+        refreshed.bind("t3", Arrays.asList("Folder"));
+
+        // t1 was trashed on another node without dc:modified update, t3 was
+        // rebound
+        refreshed.modified = Collections.singletonMap("t3", "Workspace");
+        refreshed.bound = new String[] { "t2", "t3" };
+        refreshed.doRefresh();
+
+        assertNull(refreshed.getMapping().get("File"));
+        assertTrue(refreshed.getTypes("t1").isEmpty());
+        assertEquals("t2", refreshed.getMapping().get("Note"));
+        assertNull(refreshed.getMapping().get("Folder"));
+        assertEquals("t3", refreshed.getMapping().get("Workspace"));
+    }
+
+    public void testConcurrentBinds() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String type = "Type" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        mapping.bind("t1", Arrays.asList(type));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // both indexes agree on the types of t1
+        assertEquals(1, mapping.getTypes("t1").size());
+        String type = mapping.getTypes("t1").iterator().next();
+        assertEquals(Collections.singletonMap(type, "t1"),
+                mapping.getMapping());
+    }
+
+    public void testReadOnlyView() throws Exception {
+        mapping.bind("t1", Arrays.asList("File"));
+        try {
+            mapping.getMapping().put("Note", "t1");
+            fail("mapping should be read only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.processors.fm.FreeMarkerProcessor;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.ecm.platform.template.service.TemplateWarmUp;
+import org.nuxeo.runtime.api.Framework;
+
+public class TestTemplateWarmUp extends SimpleTemplateDocTestCase {
+
+    protected FreeMarkerProcessor getProcessor(TemplateBasedDocument adapter)
+            throws Exception {
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        return (FreeMarkerProcessor) tps.getProcessor(adapter.getSourceTemplate(
+                TEMPLATE_NAME).getTemplateType());
+    }
+
+    public void testWarmUp() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        session.save();
+
+        FreeMarkerProcessor processor = getProcessor(adapter);
+        processor.shutdown();
+        assertEquals(0, processor.getCache().size());
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        TemplateWarmUp warmUp = new TemplateWarmUp(
+                session.getRepositoryName(), tps, 10, 10000, 1024 * 1024, 2);
+        assertTrue(warmUp.isEnabled());
+        warmUp.run();
+
+        assertEquals(1, warmUp.getPrepared());
+        assertEquals(0, warmUp.getSkipped());
+        assertFalse(warmUp.isTimedOut());
+        assertTrue(warmUp.getLoadedBytes() > 0);
+        assertEquals(1, processor.getCache().size());
+    }
+
+    public void testMemoryBudget() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+        session.save();
+
+        FreeMarkerProcessor processor = getProcessor(adapter);
+        processor.shutdown();
+
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        TemplateWarmUp warmUp = new TemplateWarmUp(
+                session.getRepositoryName(), tps, 10, 10000, 1, 2);
+        warmUp.run();
+
+        assertEquals(0, warmUp.getPrepared());
+        assertEquals(1, warmUp.getSkipped());
+        assertEquals(0, processor.getCache().size());
+    }
+
+    public void testDisabled() throws Exception {
+        TemplateProcessorService tps = Framework.getLocalService(TemplateProcessorService.class);
+        assertFalse(new TemplateWarmUp(session.getRepositoryName(), tps, 0,
+                10000, 1024, 2).isEnabled());
+        // opt-in
+        assertFalse(TemplateWarmUp.fromConfiguration(
+                session.getRepositoryName(), tps).isEnabled());
+    }
+
+    @Override
+    protected Blob getTemplateBlob() {
+        File file = FileUtils.getResourceFileFromContext("data/test.ftl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("test.ftl");
+        return fileBlob;
+    }
+
+}
@@ -3,7 +3,10 @@ package org.nuxeo.ecm.platform.template.tests;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -118,6 +121,25 @@ public class TestWordXMLRawProcessing extends SQLRepositoryTestCase {
         assertTrue(xmlContent.contains("name=\"sName_of_Licensee\"><vt:lpwstr>John Smith</vt:lpwstr>"));
         assertTrue(xmlContent.contains("name=\"name_of_the_call\"><vt:lpwstr>some description</vt:lpwstr>"));
 
+        // the other entries are copied unchanged
+        File source = FileUtils.getResourceFileFromContext("data/sample templatet.docx");
+        ZipFile sourceZip = new ZipFile(source);
+        ZipFile renderedZip = new ZipFile(((FileBlob) newBlob).getFile());
+        try {
+            assertEquals(sourceZip.size(), renderedZip.size());
+            Enumeration<? extends ZipEntry> entries = sourceZip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry rendered = renderedZip.getEntry(entry.getName());
+                assertNotNull(rendered);
+                if (!WordXMLRawTemplateProcessor.CUSTOM_PROPERTIES_ENTRY.equals(entry.getName())) {
+                    assertEquals(entry.getCrc(), rendered.getCrc());
+                }
+            }
+        } finally {
+            sourceZip.close();
+            renderedZip.close();
+        }
     }
 
     /**
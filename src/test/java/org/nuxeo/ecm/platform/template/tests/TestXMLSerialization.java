@@ -57,8 +57,8 @@ public class TestXMLSerialization extends TestCase {
 
         assertEquals("field2", params2.get(1).getName());
         assertEquals(InputType.DateValue, params2.get(1).getType());
-        assertEquals(XMLSerializer.dateFormat.format(date),
-                XMLSerializer.dateFormat.format(params2.get(1).getDateValue()));
+        assertEquals(XMLSerializer.formatDate(date),
+                XMLSerializer.formatDate(params2.get(1).getDateValue()));
 
         assertEquals("field3", params2.get(2).getName());
         assertEquals(InputType.BooleanValue, params2.get(2).getType());
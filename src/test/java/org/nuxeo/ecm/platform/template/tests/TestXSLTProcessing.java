@@ -3,14 +3,21 @@ package org.nuxeo.ecm.platform.template.tests;
 import java.io.File;
 import java.io.Serializable;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.template.adapters.doc.TemplateBasedDocument;
+import org.nuxeo.ecm.platform.template.processors.xslt.XSLTProcessor;
+import org.nuxeo.ecm.platform.template.service.TemplateProcessorService;
+import org.nuxeo.runtime.api.Framework;
 
 public class TestXSLTProcessing extends SimpleTemplateDocTestCase {
 
+    private static final Log log = LogFactory.getLog(TestXSLTProcessing.class);
+
     public void testDocumentsAttributes() throws Exception {
         TemplateBasedDocument adapter = setupTestDocs();
 
@@ -36,6 +43,49 @@ public class TestXSLTProcessing extends SimpleTemplateDocTestCase {
 
     }
 
+    public void testCompiledStylesheetReuse() throws Exception {
+        TemplateBasedDocument adapter = setupTestDocs();
+
+        File file = FileUtils.getResourceFileFromContext("data/nuxeoremoting.wsdl");
+        Blob fileBlob = new FileBlob(file);
+        fileBlob.setFilename("nuxeoremoting.wsdl");
+
+        DocumentModel testDoc = adapter.getAdaptedDoc();
+        testDoc.setPropertyValue("file:content", (Serializable) fileBlob);
+        testDoc = session.saveDocument(testDoc);
+        adapter = testDoc.getAdapter(TemplateBasedDocument.class);
+
+        XSLTProcessor processor = (XSLTProcessor) Framework.getLocalService(
+                TemplateProcessorService.class).getProcessor("XSLTProcessor");
+        processor.getCache().clear();
+
+        // call the processor directly to bypass the render cache
+
+        // cold : the stylesheet is compiled
+        long t0 = System.currentTimeMillis();
+        Blob newBlob = processor.renderTemplate(adapter, TEMPLATE_NAME);
+        long cold = System.currentTimeMillis() - t0;
+        assertTrue(newBlob.getString().contains(
+                "This page was generated by wsdl-viewer.xsl"));
+        assertEquals(1, processor.getCache().size());
+
+        // warm : only a Transformer is created
+        int nbWarmRuns = 10;
+        long hits = processor.getCache().getHits();
+        t0 = System.currentTimeMillis();
+        for (int i = 0; i < nbWarmRuns; i++) {
+            newBlob = processor.renderTemplate(adapter, TEMPLATE_NAME);
+        }
+        long warm = (System.currentTimeMillis() - t0) / nbWarmRuns;
+        assertTrue(newBlob.getString().contains(
+                "This page was generated by wsdl-viewer.xsl"));
+        assertEquals(hits + nbWarmRuns, processor.getCache().getHits());
+        assertEquals(1, processor.getCache().size());
+
+        log.info("XSLT transform latency : cold " + cold + "ms, warm " + warm
+                + "ms");
+    }
+
     @Override
     protected Blob getTemplateBlob() {
         File file = FileUtils.getResourceFileFromContext("data/wsdl-viewer.xsl");
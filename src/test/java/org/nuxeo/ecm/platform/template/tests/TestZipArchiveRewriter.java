@@ -0,0 +1,226 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.platform.template.odt.ZipArchiveRewriter;
+
+public class TestZipArchiveRewriter extends TestCase {
+
+    protected static final Log log = LogFactory.getLog(TestZipArchiveRewriter.class);
+
+    protected static final int NB_PICTURES = 20;
+
+    protected static final int PICTURE_SIZE = 256 * 1024;
+
+    protected static final int ITERATIONS = 10;
+
+    protected File workingDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        workingDir = new File(System.getProperty("java.io.tmpdir"),
+                "TestZipArchiveRewriter" + System.currentTimeMillis());
+        workingDir.mkdirs();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtils.deleteTree(workingDir);
+        super.tearDown();
+    }
+
+    protected Map<String, byte[]> readEntries(File file) throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                entries.put(entry.getName(),
+                        FileUtils.readBytes(zip.getInputStream(entry)));
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    public void testRewrite() throws Exception {
+        File source = FileUtils.getResourceFileFromContext("data/testDoc.odt");
+        Map<String, byte[]> sourceEntries = readEntries(source);
+
+        File target = new File(workingDir, "result.odt");
+        ZipArchiveRewriter rewriter = new ZipArchiveRewriter(source);
+        rewriter.rewrite("content.xml", new ZipArchiveRewriter.EntryWriter() {
+            @Override
+            public void write(InputStream original, OutputStream out)
+                    throws IOException {
+                assertNotNull(original);
+                out.write(FileUtils.readBytes(original));
+                out.write("<!-- modified -->".getBytes("UTF-8"));
+            }
+        });
+        rewriter.put("Pictures/added.png", new byte[] { 1, 2, 3 });
+        rewriter.replace("missing.xml", new ZipArchiveRewriter.EntryWriter() {
+            @Override
+            public void write(InputStream original, OutputStream out)
+                    throws IOException {
+                fail("missing entries are not added by replace");
+            }
+        });
+        rewriter.remove("meta.xml");
+        rewriter.writeTo(target);
+
+        assertEquals(sourceEntries.size() - 2, rewriter.getCopiedEntries());
+        assertEquals(2, rewriter.getCompressedEntries());
+
+        Map<String, byte[]> entries = readEntries(target);
+        // one entry added, one removed
+        assertEquals(sourceEntries.size(), entries.size());
+        assertFalse(entries.containsKey("meta.xml"));
+        assertFalse(entries.containsKey("missing.xml"));
+        assertEquals(3, entries.get("Pictures/added.png").length);
+        assertTrue(new String(entries.get("content.xml"), "UTF-8").endsWith("<!-- modified -->"));
+        for (String name : sourceEntries.keySet()) {
+            if (!name.equals("content.xml") && !name.equals("meta.xml")) {
+                assertTrue(name, Arrays.equals(
+                        sourceEntries.get(name), entries.get(name)));
+            }
+        }
+
+        // entry order and compression methods are kept
+        ZipInputStream zin = new ZipInputStream(new FileInputStream(target));
+        try {
+            ZipEntry first = zin.getNextEntry();
+            assertEquals("mimetype", first.getName());
+            assertEquals(ZipEntry.STORED, first.getMethod());
+            ZipEntry entry;
+            int count = 1;
+            while ((entry = zin.getNextEntry()) != null) {
+                count++;
+                FileUtils.readBytes(zin);
+            }
+            assertEquals(entries.size(), count);
+        } finally {
+            zin.close();
+        }
+    }
+
+    protected File createPictureArchive() throws Exception {
+        File file = new File(workingDir, "pictures.odt");
+        Random random = new Random(0);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("content.xml"));
+            out.write("<office:document-content/>".getBytes("UTF-8"));
+            out.closeEntry();
+            byte[] picture = new byte[PICTURE_SIZE];
+            for (int i = 0; i < NB_PICTURES; i++) {
+                // pictures are already compressed : random data
+                random.nextBytes(picture);
+                out.putNextEntry(new ZipEntry("Pictures/picture" + i + ".jpg"));
+                out.write(picture);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    protected void recompress(File source, File target) throws Exception {
+        ZipInputStream in = new ZipInputStream(new FileInputStream(source));
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                if ("content.xml".equals(entry.getName())) {
+                    out.write("<office:document-content>modified</office:document-content>".getBytes("UTF-8"));
+                } else {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    protected void rewrite(File source, File target) throws Exception {
+        new ZipArchiveRewriter(source).put("content.xml",
+                "<office:document-content>modified</office:document-content>".getBytes("UTF-8")).writeTo(
+                target);
+    }
+
+    protected long getCpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean.isCurrentThreadCpuTimeSupported()) {
+            return bean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    public void testCpuSavings() throws Exception {
+        File source = createPictureArchive();
+        File recompressed = new File(workingDir, "recompressed.odt");
+        File rewritten = new File(workingDir, "rewritten.odt");
+
+        // warm up
+        recompress(source, recompressed);
+        rewrite(source, rewritten);
+
+        long t0 = getCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            recompress(source, recompressed);
+        }
+        long recompressTime = getCpuTime() - t0;
+
+        t0 = getCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            rewrite(source, rewritten);
+        }
+        long rewriteTime = getCpuTime() - t0;
+
+        log.info(NB_PICTURES + " pictures of " + PICTURE_SIZE / 1024
+                + "KB : full recompression " + recompressTime / ITERATIONS
+                / 1000 + "us, raw copy " + rewriteTime / ITERATIONS / 1000
+                + "us");
+
+        Map<String, byte[]> expected = readEntries(recompressed);
+        Map<String, byte[]> entries = readEntries(rewritten);
+        assertEquals(expected.keySet(), entries.keySet());
+        for (String name : expected.keySet()) {
+            assertTrue(name, Arrays.equals(expected.get(name),
+                    entries.get(name)));
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.nuxeo.ecm.platform.template.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.template.processors.xdocreport.ZipXmlHelper;
+
+public class TestZipXmlHelper extends TestCase {
+
+    protected String xmlContent;
+
+    protected byte[] zipContent;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // multi-bytes characters spread over several read buffers
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><text>");
+        for (int i = 0; i < 50000; i++) {
+            sb.append("\u00e9\u20ac");
+        }
+        sb.append("</text>");
+        xmlContent = sb.toString();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zOut = new ZipOutputStream(bytes);
+        zOut.putNextEntry(new ZipEntry("mimetype"));
+        zOut.write("application/vnd.oasis.opendocument.text".getBytes("UTF-8"));
+        zOut.closeEntry();
+        zOut.putNextEntry(new ZipEntry(ZipXmlHelper.OOO_MAIN_FILE));
+        zOut.write(xmlContent.getBytes("UTF-8"));
+        zOut.closeEntry();
+        zOut.close();
+        zipContent = bytes.toByteArray();
+    }
+
+    public void testReadFromStream() throws Exception {
+        Blob blob = new ByteArrayBlob(zipContent, "application/zip");
+        assertEquals(xmlContent, ZipXmlHelper.readXMLContent(blob,
+                ZipXmlHelper.OOO_MAIN_FILE));
+        assertNull(ZipXmlHelper.readXMLContent(blob,
+                ZipXmlHelper.DOCX_MAIN_FILE));
+    }
+
+    public void testReadFromFile() throws Exception {
+        File file = File.createTempFile("testZipXmlHelper", ".zip");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(zipContent);
+            out.close();
+            Blob blob = new FileBlob(file);
+            assertEquals(xmlContent, ZipXmlHelper.readXMLContent(blob,
+                    ZipXmlHelper.OOO_MAIN_FILE));
+            assertNull(ZipXmlHelper.readXMLContent(blob,
+                    ZipXmlHelper.DOCX_MAIN_FILE));
+        } finally {
+            file.delete();
+        }
+    }
+
+}